@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+
+/**
+ * Reads an imported stylesheet for the parser while keeping it within what
+ * is left of the size limit and of the time allowed for all imports. Reading
+ * stops with an exception as soon as either runs out, rather than after the
+ * whole stylesheet has come in.
+ * 
+ * The parser does not pass on the exceptions of its input as they are, so
+ * why reading stopped is kept here for the scanner to look at afterwards.
+ */
+class BudgetedInputStream extends InputStream {
+
+	private final URI uri;
+	private final InputStream in;
+	private final int sizeLimit;
+	private final long deadline;
+
+	private int count = 0;
+	private boolean tooLarge = false;
+	private boolean timedOut = false;
+	private boolean failed = false;
+
+	/**
+	 * @param uri
+	 *            the stylesheet being read, for error messages
+	 * @param in
+	 *            the contents of the stylesheet
+	 * @param sizeLimit
+	 *            the most bytes that may be read
+	 * @param deadline
+	 *            the time, as by <code>System.currentTimeMillis()</code>,
+	 *            after which no more may be read
+	 */
+	BudgetedInputStream(URI uri, InputStream in, int sizeLimit, long deadline) {
+		this.uri = uri;
+		this.in = in;
+		this.sizeLimit = sizeLimit;
+		this.deadline = deadline;
+	}
+
+	public int read() throws IOException {
+
+		checkDeadline();
+
+		int c;
+		try {
+			c = in.read();
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+
+		if (c != -1) {
+			count(1);
+		}
+
+		return c;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		checkDeadline();
+
+		// never ask for more than one byte past the limit
+		len = (int) Math.min(len, (long) sizeLimit - count + 1);
+
+		int n;
+		try {
+			n = in.read(b, off, len);
+		} catch (IOException ioe) {
+			failed = true;
+			throw ioe;
+		}
+
+		if (n > 0) {
+			count(n);
+		}
+
+		return n;
+	}
+
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return true if the stylesheet turned out to be larger than the size
+	 *         limit
+	 */
+	boolean isTooLarge() {
+		return tooLarge;
+	}
+
+	/**
+	 * @return true if the time allowed ran out before the stylesheet was
+	 *         read to the end
+	 */
+	boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * @return true if the stylesheet could not be read to the end
+	 */
+	boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return true if reading was stopped for any reason
+	 */
+	boolean isAborted() {
+		return tooLarge || timedOut || failed;
+	}
+
+	private void checkDeadline() throws IOException {
+		if (System.currentTimeMillis() > deadline) {
+			timedOut = true;
+			throw new InterruptedIOException("Ran out of time reading stylesheet " + uri);
+		}
+	}
+
+	private void count(int n) throws IOException {
+		count += n;
+		if (count > sizeLimit) {
+			tooLarge = true;
+			throw new StyleSheetTooLargeException(uri, sizeLimit);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.util.ArrayList;
+
+/**
+ * A small tokenizer for inline style declarations, used in place of the
+ * Batik parser for the plain declarations that make up nearly all real
+ * <code>style</code> attributes. It produces each value directly in the
+ * form <code>CssValidator.lexicalValueToString()</code> would give the
+ * matching Batik lexical unit, without building lexical units at all.
+ * 
+ * Only a conservative subset of CSS is handled: identifiers, numbers with
+ * the common units, percentages, hex colors, simple strings, commas and
+ * <code>!important</code>. For anything else (functions, URLs, comments,
+ * escapes, unusual units or any syntax error) <code>tokenize()</code>
+ * returns null and the caller must fall back to Batik, so the tokenizer
+ * never has to mimic Batik's error recovery.
+ */
+public final class CssDeclarationTokenizer {
+
+	/*
+	 * Units Batik turns into a dedicated lexical unit type, as it reports
+	 * them through getDimensionUnitText().
+	 */
+	private static final String[] UNITS = {
+		"px", "em", "ex", "in", "cm", "mm", "pt", "pc", "deg", "rad", "grad", "ms", "s", "hz", "khz"
+	};
+
+	private static final int MAX_INTEGER_DIGITS = 9;
+
+	private CssDeclarationTokenizer() {
+	}
+
+	/**
+	 * Splits a style declaration into its properties.
+	 * 
+	 * @param css
+	 *            the contents of a style attribute
+	 * @param names
+	 *            receives the property names, in order
+	 * @return a list with the values of each declaration as a
+	 *         <code>String[]</code>, in the same order as the names; or null
+	 *         if the declaration has to be parsed by Batik
+	 */
+	public static ArrayList tokenize(String css, ArrayList names) {
+
+		ArrayList declarations = new ArrayList();
+		ArrayList values = new ArrayList();
+		int length = css.length();
+		int i = skipWhitespace(css, 0);
+
+		while (i < length) {
+
+			if (css.charAt(i) == ';') {
+				i = skipWhitespace(css, i + 1);
+				continue;
+			}
+
+			// property name
+			int start = i;
+			while (i < length && isNameChar(css.charAt(i))) {
+				i++;
+			}
+			if (i == start || !isLowerCaseLetter(css.charAt(start))) {
+				return null;
+			}
+			String name = css.substring(start, i);
+
+			i = skipWhitespace(css, i);
+			if (i == length || css.charAt(i) != ':') {
+				return null;
+			}
+			i = skipWhitespace(css, i + 1);
+
+			// values, up to the end of the declaration
+			values.clear();
+
+			// a comma needs a value on either side of it
+			boolean afterComma = false;
+
+			while (i < length && css.charAt(i) != ';') {
+
+				char ch = css.charAt(i);
+				int end;
+
+				if (ch == ',') {
+					if (values.isEmpty() || afterComma) {
+						return null;
+					}
+					values.add(",");
+					end = i + 1;
+				} else if (ch == '!') {
+					end = i + 1 + "important".length();
+					if (!css.startsWith("important", i + 1) || !isDelimiter(css, end) || values.isEmpty() || afterComma) {
+						return null;
+					}
+					// must be the last thing in the declaration
+					int next = skipWhitespace(css, end);
+					if (next < length && css.charAt(next) != ';') {
+						return null;
+					}
+				} else if (ch == '#') {
+					end = i + 1;
+					while (end < length && Character.digit(css.charAt(end), 16) != -1 && css.charAt(end) < 128) {
+						end++;
+					}
+					String hex = hexColor(css, i + 1, end);
+					if (hex == null || !isDelimiter(css, end)) {
+						return null;
+					}
+					values.add(hex);
+				} else if (ch == '"' || ch == '\'') {
+					end = css.indexOf(ch, i + 1);
+					if (end == -1) {
+						return null;
+					}
+					String string = css.substring(i + 1, end);
+					for (int j = 0; j < string.length(); j++) {
+						char c = string.charAt(j);
+						if (c == '\\' || c < ' ' || c > '~') {
+							return null;
+						}
+					}
+					end++;
+					if (!isDelimiter(css, end)) {
+						return null;
+					}
+					values.add(string.indexOf(' ') != -1 ? "\"" + string + "\"" : string);
+				} else if (isDigit(ch) || ch == '.' || ch == '-') {
+					end = number(css, i, values);
+					if (end == -1) {
+						return null;
+					}
+				} else if (isLetter(ch)) {
+					end = i + 1;
+					while (end < length && isNameChar(css.charAt(end))) {
+						end++;
+					}
+					String ident = css.substring(i, end);
+					if (!isDelimiter(css, end) || "inherit".equalsIgnoreCase(ident)) {
+						return null;
+					}
+					values.add(ident);
+				} else {
+					return null;
+				}
+
+				afterComma = ch == ',';
+				i = skipWhitespace(css, end);
+			}
+
+			if (values.isEmpty() || afterComma) {
+				return null;
+			}
+
+			names.add(name);
+			declarations.add(values.toArray(new String[values.size()]));
+
+		}
+
+		return declarations;
+	}
+
+	/**
+	 * Reads a number, with an optional sign, unit or percent sign, and adds
+	 * its string form to the values.
+	 * 
+	 * @return the index just past the number, or -1 if it is not one the
+	 *         tokenizer handles
+	 */
+	private static int number(String css, int start, ArrayList values) {
+
+		int length = css.length();
+		int i = start;
+
+		if (css.charAt(i) == '-') {
+			i++;
+		}
+
+		int digitsStart = i;
+		while (i < length && isDigit(css.charAt(i))) {
+			i++;
+		}
+		int integerDigits = i - digitsStart;
+		boolean isReal = false;
+
+		if (i < length && css.charAt(i) == '.') {
+			isReal = true;
+			i++;
+			int fractionStart = i;
+			while (i < length && isDigit(css.charAt(i))) {
+				i++;
+			}
+			if (i == fractionStart) {
+				return -1;
+			}
+		} else if (integerDigits == 0) {
+			return -1;
+		}
+
+		String number = css.substring(start, i);
+
+		if (i < length && css.charAt(i) == '%') {
+			i++;
+			if (!isDelimiter(css, i)) {
+				return -1;
+			}
+			values.add(Float.parseFloat(number) + "%");
+			return i;
+		}
+
+		int unitStart = i;
+		while (i < length && isLetter(css.charAt(i))) {
+			i++;
+		}
+
+		if (!isDelimiter(css, i)) {
+			return -1;
+		}
+
+		if (unitStart == i) {
+			if (isReal) {
+				values.add(String.valueOf(Float.parseFloat(number)));
+			} else {
+				if (integerDigits > MAX_INTEGER_DIGITS) {
+					return -1;
+				}
+				values.add(String.valueOf(Integer.parseInt(number)));
+			}
+			return i;
+		}
+
+		String unit = css.substring(unitStart, i);
+		for (int u = 0; u < UNITS.length; u++) {
+			if (UNITS[u].equals(unit)) {
+				values.add(Float.parseFloat(number) + unit);
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Converts three or six hex digits into the rgb() form Batik reports hex
+	 * colors in.
+	 */
+	private static String hexColor(String css, int start, int end) {
+
+		int r, g, b;
+
+		if (end - start == 3) {
+			r = Character.digit(css.charAt(start), 16) * 17;
+			g = Character.digit(css.charAt(start + 1), 16) * 17;
+			b = Character.digit(css.charAt(start + 2), 16) * 17;
+		} else if (end - start == 6) {
+			r = Integer.parseInt(css.substring(start, start + 2), 16);
+			g = Integer.parseInt(css.substring(start + 2, start + 4), 16);
+			b = Integer.parseInt(css.substring(start + 4, start + 6), 16);
+		} else {
+			return null;
+		}
+
+		return "rgb(" + r + ',' + g + ',' + b + ')';
+	}
+
+	/**
+	 * A token must be followed by whitespace, a comma, the end of the
+	 * declaration or the end of the input.
+	 */
+	private static boolean isDelimiter(String css, int i) {
+		if (i >= css.length()) {
+			return true;
+		}
+		char ch = css.charAt(i);
+		return isWhitespace(ch) || ch == ',' || ch == ';' || ch == '!';
+	}
+
+	private static int skipWhitespace(String css, int i) {
+		while (i < css.length() && isWhitespace(css.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(char ch) {
+		return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == '\f';
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	private static boolean isLowerCaseLetter(char ch) {
+		return ch >= 'a' && ch <= 'z';
+	}
+
+	private static boolean isLetter(char ch) {
+		return isLowerCaseLetter(ch) || (ch >= 'A' && ch <= 'Z');
+	}
+
+	private static boolean isNameChar(char ch) {
+		return isLetter(ch) || isDigit(ch) || ch == '-' || ch == '_';
+	}
+}
@@ -37,6 +37,7 @@ import java.util.ResourceBundle;
 
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.model.Property;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
 import org.w3c.css.sac.CSSException;
@@ -83,7 +84,7 @@ public class CssHandler implements DocumentHandler {
 	 * The encaspulated results including the error messages
 	 */
 //	private final CleanResults results;
-	private final Collection errorMessages;
+	private Collection errorMessages;
 	
 	/**
 	 * The error message bundled to pull from.
@@ -93,19 +94,19 @@ public class CssHandler implements DocumentHandler {
 	/**
 	 * A queue of imported stylesheets; used to track imported stylesheets
 	 */
-	private final LinkedList importedStyleSheets;
+	private LinkedList importedStyleSheets;
 
 	/**
 	 * The tag currently being examined (if any); used for inline stylesheet
 	 * error messages
 	 */
-	private final String tagName;
+	private String tagName;
 
 	/**
 	 * Indicates whether we are scanning a stylesheet or an inline declaration.
 	 * true if this is an inline declaration; false otherwise
 	 */
-	private final boolean isInline;
+	private boolean isInline;
 
 	/**
 	 * Indicates whether the handler is currently parsing the contents between
@@ -149,16 +150,77 @@ public class CssHandler implements DocumentHandler {
 		this.isInline = (tagName != null);
 	}
 
+	/**
+	 * Prepares the handler for another stylesheet or inline declaration, so
+	 * a <code>CssScanner</code> can keep one handler rather than creating a
+	 * new one (and a new validator) for every scan.
+	 * 
+	 * @param embeddedStyleSheets
+	 *            the queue of stylesheets imported
+	 * @param tagName
+	 *            the associated tag name for an inline style, or null for a
+	 *            stylesheet
+	 */
+	public void reset(LinkedList embeddedStyleSheets, ArrayList errorMessages,
+			String tagName) {
+		this.styleSheet.setLength(0);
+		this.errorMessages = errorMessages;
+		this.importedStyleSheets = embeddedStyleSheets;
+		this.tagName = tagName;
+		this.isInline = (tagName != null);
+		this.selectorOpen = false;
+	}
+
 	/**
 	 * Returns the cleaned stylesheet.
 	 * 
 	 * @return the cleaned styesheet
 	 */
 	public String getCleanStylesheet() {
+
 		// Always ensure results contain most recent generation of stylesheet
 		return styleSheet.toString();
 	}
 
+	/**
+	 * @return the tag name of the inline style being scanned, or null for a
+	 *         stylesheet
+	 */
+	String getTagName() {
+		return tagName;
+	}
+
+	/**
+	 * @return the length of the cleaned stylesheet so far
+	 */
+	int getCleanStylesheetLength() {
+		return styleSheet.length();
+	}
+
+	/**
+	 * @return the part of the cleaned stylesheet from the given index on
+	 */
+	String getCleanStylesheet(int start) {
+		return styleSheet.substring(start);
+	}
+
+	/**
+	 * Adds an already cleaned piece of stylesheet to the output, as if it
+	 * had been parsed by this handler.
+	 */
+	void appendCleanStylesheet(String cleanCss) {
+		styleSheet.append(cleanCss);
+	}
+
+	/**
+	 * Throws away the cleaned stylesheet from the given index on, for a
+	 * stylesheet whose parsing was cut short.
+	 */
+	void truncateCleanStylesheet(int length) {
+		styleSheet.setLength(length);
+		selectorOpen = false;
+	}
+
 	/**
 	 * Returns the error messages generated during parsing.
 	 * @return the error messages generated during parsing
@@ -484,43 +546,92 @@ public class CssHandler implements DocumentHandler {
 			return;
 		}
 
-		// validate the property
-		if (validator.isValidProperty(name, value)) {
+		// validate the values as they are appended to the output, and take
+		// the declaration back out if one of them turns out to be invalid
+		Property property = validator.getProperty(name);
+		int mark = styleSheet.length();
+		boolean isValid = property != null;
+
+		if (isValid) {
 
 			if (!isInline) { styleSheet.append('\t'); }
 			styleSheet.append(name);
 			styleSheet.append(':');
 
-			// append all values
-			while (value != null) {
+			for (LexicalUnit lu = value; lu != null && isValid; lu = lu.getNextLexicalUnit()) {
 				styleSheet.append(' ');
-				styleSheet.append(validator.lexicalValueToString(value));
-				value = value.getNextLexicalUnit();
+				isValid = validator.appendValidValue(property, lu, styleSheet);
 			}
+		}
+
+		if (isValid) {
+
 			styleSheet.append(';');
 			if (!isInline) { styleSheet.append('\n'); }
 
 		} else {
 
-			if (tagName != null) {
-				errorMessages.add(ErrorMessageUtil.getMessage(
-					messages,
-					ErrorMessageUtil.ERROR_CSS_TAG_PROPERTY_INVALID,
-					new Object[] {
-						HTMLEntityEncoder.htmlEntityEncode(tagName),
-						HTMLEntityEncoder.htmlEntityEncode(name),
-						HTMLEntityEncoder.htmlEntityEncode(validator
-							.lexicalValueToString(value)) }));			
-			} else {
-			    	errorMessages.add(ErrorMessageUtil.getMessage(
-			    		messages,
-			    		ErrorMessageUtil.ERROR_STYLESHEET_PROPERTY_INVALID,
-					new Object[] {
-						HTMLEntityEncoder.htmlEntityEncode(name),
-						HTMLEntityEncoder.htmlEntityEncode(validator
-							.lexicalValueToString(value)) }));
+			styleSheet.setLength(mark);
+			addInvalidPropertyError(name, validator.lexicalValueToString(value));
+
+		}
+
+	}
+
+	/**
+	 * The counterpart of <code>property()</code> for declarations split up by
+	 * <code>CssDeclarationTokenizer</code> rather than Batik. The values are
+	 * already in the form <code>CssValidator.lexicalValueToString()</code>
+	 * produces, so the result is the same either way.
+	 * 
+	 * @param name
+	 *            the name of the property
+	 * @param values
+	 *            the string representations of the values
+	 */
+	public void property(String name, String[] values) {
+
+		if (!selectorOpen && !isInline) {
+			return;
+		}
+
+		if (validator.isValidProperty(name, values)) {
+
+			if (!isInline) { styleSheet.append('\t'); }
+			styleSheet.append(name);
+			styleSheet.append(':');
+
+			for (int i = 0; i < values.length; i++) {
+				styleSheet.append(' ');
+				styleSheet.append(values[i]);
 			}
+			styleSheet.append(';');
+			if (!isInline) { styleSheet.append('\n'); }
+
+		} else {
+
+			addInvalidPropertyError(name, values[0]);
+
+		}
+	}
+
+	private void addInvalidPropertyError(String name, String value) {
 
+		if (tagName != null) {
+			errorMessages.add(ErrorMessageUtil.getMessage(
+				messages,
+				ErrorMessageUtil.ERROR_CSS_TAG_PROPERTY_INVALID,
+				new Object[] {
+					HTMLEntityEncoder.htmlEntityEncode(tagName),
+					HTMLEntityEncoder.htmlEntityEncode(name),
+					HTMLEntityEncoder.htmlEntityEncode(value) }));
+		} else {
+			errorMessages.add(ErrorMessageUtil.getMessage(
+				messages,
+				ErrorMessageUtil.ERROR_STYLESHEET_PROPERTY_INVALID,
+				new Object[] {
+					HTMLEntityEncoder.htmlEntityEncode(name),
+					HTMLEntityEncoder.htmlEntityEncode(value) }));
 		}
 	}
 }
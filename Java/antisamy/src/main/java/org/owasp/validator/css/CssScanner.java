@@ -60,7 +60,7 @@ public class CssScanner {
 
     protected static final int DEFAULT_TIMEOUT = 1000;
 
-    private static final String CDATA = "^\\s*<!\\[CDATA\\[(.*)\\]\\]>\\s*$";
+    private static final Pattern CDATA = Pattern.compile("^\\s*<!\\[CDATA\\[(.*)\\]\\]>\\s*$", Pattern.DOTALL);
     
     /**
      * The parser to be used in any scanning
@@ -76,6 +76,11 @@ public class CssScanner {
      * The message bundled to pull error messages from.
      */
     protected final ResourceBundle messages;
+
+    /**
+     * The handler used for the most recent scan; reset for every new one
+     */
+    private CssHandler handler = null;
     
     /**
      * Constructs a scanner based on the given policy.
@@ -106,6 +111,18 @@ public class CssScanner {
      */
     public CleanResults scanStyleSheet(String taintedCss, int sizeLimit)
 	    throws ScanException {
+	return scanStyleSheet(taintedCss, sizeLimit, new StyleSheetImports());
+    }
+
+    /**
+     * Scans the contents of a full stylesheet as part of a larger scan,
+     * whose other stylesheets share the import limits and have their
+     * imports tracked in <code>imports</code>.
+     * 
+     * @see #scanStyleSheet(String, int)
+     */
+    public CleanResults scanStyleSheet(String taintedCss, int sizeLimit,
+	    StyleSheetImports imports) throws ScanException {
 
 	Date startOfScan = new Date();
 	ArrayList errorMessages = new ArrayList();
@@ -114,8 +131,7 @@ public class CssScanner {
 	 * and end with ]]>(\s)*.
 	 */
 
-	Pattern p = Pattern.compile(CDATA, Pattern.DOTALL);
-	Matcher m = p.matcher(taintedCss);
+	Matcher m = CDATA.matcher(taintedCss);
 	
 	boolean isCdata = m.matches();
 	
@@ -127,7 +143,7 @@ public class CssScanner {
 	// account for any sheets that may be imported by the current CSS
 	LinkedList stylesheets = new LinkedList();
 
-	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages, messages);
+	CssHandler handler = getHandler(stylesheets, errorMessages, null);
 
 	// parse the stylesheet
 	parser.setDocumentHandler(handler);
@@ -150,7 +166,7 @@ public class CssScanner {
 		throw new ScanException(pe);
 	}
 
-	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit);
+	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit, imports);
 
 	String cleaned = handler.getCleanStylesheet();
 	
@@ -185,6 +201,28 @@ public class CssScanner {
      */
     public CleanResults scanInlineStyle(String taintedCss, String tagName,
 	    int sizeLimit) throws ScanException {
+	return scanInlineStyle(taintedCss, tagName, sizeLimit, new StyleSheetImports());
+    }
+
+    /**
+     * Scans an inline style declaration as part of a larger scan, whose
+     * stylesheets share the import limits and have their imports tracked
+     * in <code>imports</code>.
+     * 
+     * @see #scanInlineStyle(String, String, int)
+     */
+    public CleanResults scanInlineStyle(String taintedCss, String tagName,
+	    int sizeLimit, StyleSheetImports imports) throws ScanException {
+
+	InlineStyleCache cache = policy.getInlineStyleCache();
+	int policyVersion = policy.getVersion();
+
+	if (cache != null) {
+	    CleanResults cached = cache.get(policyVersion, tagName, taintedCss, messages);
+	    if (cached != null) {
+		return cached;
+	    }
+	}
 
 	Date startOfScan = new Date();
 
@@ -194,27 +232,62 @@ public class CssScanner {
 	// account for any sheets that may be imported by the current CSS
 	LinkedList stylesheets = new LinkedList();
 
-	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages,
-		tagName, messages);
+	CssHandler handler = getHandler(stylesheets, errorMessages, tagName);
 
-	parser.setDocumentHandler(handler);
+	// plain declarations are split up without going through Batik
+	ArrayList names = new ArrayList();
+	ArrayList declarations = null;
+	if (!"false".equals(policy.getDirective(Policy.INLINE_STYLE_FAST_PATH))) {
+	    declarations = CssDeclarationTokenizer.tokenize(taintedCss, names);
+	}
 
-	try {
-	    // parse the inline style declaration
-	    // note this does not count against the size limit because it
-	    // should already have been counted by the caller since it was
-	    // embedded in the HTML
-	    parser.parseStyleDeclaration(taintedCss);
-	} catch (IOException ioe) {
-	    throw new ScanException(ioe);
+	if (declarations != null) {
+	    for (int i = 0; i < declarations.size(); i++) {
+		handler.property((String) names.get(i), (String[]) declarations.get(i));
+	    }
+
+	} else {
+	    parser.setDocumentHandler(handler);
+
+	    try {
+		// parse the inline style declaration
+		// note this does not count against the size limit because it
+		// should already have been counted by the caller since it was
+		// embedded in the HTML
+		parser.parseStyleDeclaration(taintedCss);
+	    } catch (IOException ioe) {
+		throw new ScanException(ioe);
+	    }
 	}
 
-	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit);
+	// results that depend on imported stylesheets are not cached
+	boolean cacheable = cache != null && stylesheets.isEmpty();
+
+	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit, imports);
 
-	return new CleanResults(startOfScan, new Date(), handler
+	CleanResults results = new CleanResults(startOfScan, new Date(), handler
 		.getCleanStylesheet(), null, errorMessages);
+
+	if (cacheable) {
+	    cache.put(policyVersion, tagName, taintedCss, messages, results);
+	}
+
+	return results;
     }
     
+    private CssHandler getHandler(LinkedList stylesheets, ArrayList errorMessages,
+	    String tagName) {
+
+	if (handler == null) {
+	    handler = new CssHandler(policy, stylesheets, errorMessages, tagName,
+		    messages);
+	} else {
+	    handler.reset(stylesheets, errorMessages, tagName);
+	}
+
+	return handler;
+    }
+
     /**
 	 * Parses through a <code>LinkedList</code> of imported stylesheet
 	 * URIs, this method parses through those stylesheets and validates them
@@ -229,11 +302,14 @@ public class CssScanner {
 	 * @param sizeLimit
 	 *                the limit on the total size in bites of any imported
 	 *                stylesheets
+	 * @param imports
+	 *                the stylesheets imported so far during the scan
 	 * @throws ScanException
 	 *                 if an error occurs during scanning
 	 */
 	protected void parseImportedStylesheets(LinkedList stylesheets, CssHandler handler,
-			ArrayList errorMessages, int sizeLimit) throws ScanException {
+			ArrayList errorMessages, int sizeLimit, StyleSheetImports imports) throws ScanException {
+
 		// Implemented in ExternalCssScanner.java
 	}
 
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.model.AntiSamyPattern;
+
+/**
+ * The selector patterns of a policy, looked up once, together with a bounded
+ * memo of selectors that have already been validated. Stylesheets repeat the
+ * same selectors a lot, and those only have to be checked once per policy.
+ * 
+ * One instance belongs to one <code>Policy</code> and is shared by all
+ * scanners using it; it is safe to use from several threads.
+ * 
+ * @see org.owasp.validator.html.Policy#getCssSelectorRules()
+ */
+public class CssSelectorRules {
+
+	public static final int MAX_MEMO_SIZE = 1000;
+
+	private final Pattern elementSelector;
+	private final Pattern elementExclusion;
+	private final Pattern classSelector;
+	private final Pattern classExclusion;
+	private final Pattern idSelector;
+	private final Pattern idExclusion;
+	private final Pattern pseudoElementSelector;
+	private final Pattern pseudoElementExclusion;
+	private final Pattern attributeSelector;
+	private final Pattern attributeExclusion;
+
+	private final LinkedHashMap memo;
+
+	public CssSelectorRules(Policy policy) {
+		elementSelector = getPattern(policy, "cssElementSelector");
+		elementExclusion = getPattern(policy, "cssElementExclusion");
+		classSelector = getPattern(policy, "cssClassSelector");
+		classExclusion = getPattern(policy, "cssClassExclusion");
+		idSelector = getPattern(policy, "cssIDSelector");
+		idExclusion = getPattern(policy, "cssIDExclusion");
+		pseudoElementSelector = getPattern(policy, "cssPseudoElementSelector");
+		pseudoElementExclusion = getPattern(policy, "cssPsuedoElementExclusion");
+		attributeSelector = getPattern(policy, "cssAttributeSelector");
+		attributeExclusion = getPattern(policy, "cssAttributeExclusion");
+
+		memo = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > MAX_MEMO_SIZE;
+			}
+		};
+	}
+
+	private static Pattern getPattern(Policy policy, String name) {
+		AntiSamyPattern pattern = policy.getRegularExpression(name);
+		return pattern == null ? null : pattern.getPattern();
+	}
+
+	public boolean isValidElement(String name) {
+		return matches(elementSelector, elementExclusion, name);
+	}
+
+	public boolean isValidClass(String name) {
+		return matches(classSelector, classExclusion, name);
+	}
+
+	public boolean isValidId(String name) {
+		return matches(idSelector, idExclusion, name);
+	}
+
+	public boolean isValidPseudoElement(String name) {
+		return matches(pseudoElementSelector, pseudoElementExclusion, name);
+	}
+
+	public boolean isValidAttribute(String name) {
+		return matches(attributeSelector, attributeExclusion, name);
+	}
+
+	/*
+	 * A missing pattern fails with a NullPointerException, just as it did
+	 * when the patterns were looked up for every selector.
+	 */
+	private static boolean matches(Pattern pattern, Pattern exclusion, String name) {
+		// NOTE: intentionally using non-short-circuited AND operator, so both
+		// patterns are always evaluated
+		return pattern.matcher(name).matches() & !exclusion.matcher(name).matches();
+	}
+
+	/**
+	 * Returns the remembered outcome for a selector: <code>Boolean.TRUE</code>
+	 * or <code>Boolean.FALSE</code>, the name reported by the
+	 * <code>UnknownSelectorException</code> it caused, or null if the selector
+	 * has not been seen yet.
+	 */
+	public synchronized Object getOutcome(String selectorName) {
+		return memo.get(selectorName);
+	}
+
+	public synchronized void putOutcome(String selectorName, Object outcome) {
+		memo.put(selectorName, outcome);
+	}
+
+	public synchronized int getMemoSize() {
+		return memo.size();
+	}
+}
@@ -28,16 +28,11 @@
  */
 package org.owasp.validator.css;
 
-import java.util.Iterator;
-import java.util.regex.Pattern;
-
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
-import org.owasp.validator.html.model.AntiSamyPattern;
 import org.owasp.validator.html.model.Property;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
 
-import org.w3c.css.sac.AttributeCondition;
 import org.w3c.css.sac.CombinatorCondition;
 import org.w3c.css.sac.Condition;
 import org.w3c.css.sac.ConditionalSelector;
@@ -53,6 +48,9 @@ import org.w3c.css.sac.SimpleSelector;
  * Encapsulates all the neceesary operations for validating individual eleements
  * of a stylesheet (namely: selectors, conditions and properties).
  * 
+ * A validator keeps scratch buffers for property values and must not be
+ * used from several threads at once.
+ * 
  * @author Jason Li
  * 
  */
@@ -63,6 +61,18 @@ public class CssValidator {
 	 */
 	private final Policy policy;
 
+	/**
+	 * The selector patterns of the policy, looked up on first use
+	 */
+	private CssSelectorRules selectorRules;
+
+	/**
+	 * Scratch buffers for formatting and lower-casing values, reused from
+	 * one value to the next
+	 */
+	private final StringBuffer value = new StringBuffer();
+	private final StringBuffer lowerCaseValue = new StringBuffer();
+
 	/**
 	 * Constructs a validator for CSS selectors, conditions and properties based
 	 * on the given policy.
@@ -85,31 +95,88 @@ public class CssValidator {
 	 * @return true if this property name/value is valid; false otherwise
 	 */
 	public boolean isValidProperty(String name, LexicalUnit lu) {
-		boolean isValid = false;
-		Property property = null;
+		Property property = getProperty(name);
 
-		if (name != null) {
-			property = policy.getPropertyByName(name.toLowerCase());
+		// if we were able to find the property by name, validate the value
+		if (property == null) {
+			return false;
 		}
 
-		// if we were able to find the property by name, validate the value
-		if (property != null) {
+		// validate all values attached to this property
+		while (lu != null) {
+			value.setLength(0);
+
+			if (!appendValidValue(property, lu, value)) {
+				return false;
+			}
+
+			lu = lu.getNextLexicalUnit();
+		}
 
-			// validate all values attached to this property
-			isValid = true;
-			while (lu != null) {
-				String value = lexicalValueToString(lu);
+		return true;
+	}
+
+	/**
+	 * Determines whether the given property is valid according to this
+	 * validator's policy, for values that are already in the form
+	 * <code>lexicalValueToString()</code> produces.
+	 * 
+	 * @param name
+	 *            the name of the property
+	 * @param values
+	 *            the string representations of the values
+	 * @return true if this property name/value is valid; false otherwise
+	 */
+	public boolean isValidProperty(String name, String[] values) {
+		Property property = getProperty(name);
 
-				if (value == null || !validateValue(property, value)) {
-					isValid = false;
-					break;
-				}
+		if (property == null) {
+			return false;
+		}
 
-				lu = lu.getNextLexicalUnit();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null || !validateValue(property, values[i], 0)) {
+				return false;
 			}
 		}
 
-		return isValid;
+		return true;
+	}
+
+	/**
+	 * Looks up a property of this validator's policy by name.
+	 * 
+	 * @param name
+	 *            the name of the property, in any case
+	 * @return the property, or null if the policy does not know it
+	 */
+	public Property getProperty(String name) {
+		return name == null ? null : policy.getPropertyByName(name);
+	}
+
+	/**
+	 * Appends the string representation of a single value to the given
+	 * buffer and validates it where it was appended, so a valid value goes
+	 * to the output without an intermediate <code>String</code>. The buffer
+	 * is not rolled back when the value turns out to be invalid.
+	 * 
+	 * @param property
+	 *            the property the value belongs to
+	 * @param lu
+	 *            the value; only this unit is used, not the ones following it
+	 * @param out
+	 *            the buffer to append the value to
+	 * @return true if the value could be represented and is allowed for the
+	 *         property; false otherwise
+	 */
+	public boolean appendValidValue(Property property, LexicalUnit lu, StringBuffer out) {
+		int start = out.length();
+
+		if (!appendLexicalValue(lu, out)) {
+			return false;
+		}
+
+		return validateValue(property, out, start);
 	}
 
 	/**
@@ -128,6 +195,36 @@ public class CssValidator {
 	public boolean isValidSelector(String selectorName, Selector selector)
 			throws ScanException {
 
+		// selectorName is the string form of the selector, so the outcome of
+		// an earlier validation of the same name can be reused
+		CssSelectorRules rules = getSelectorRules();
+		Object outcome = rules.getOutcome(selectorName);
+
+		if (outcome == null) {
+			try {
+				outcome = validateSelector(selectorName, selector) ? Boolean.TRUE : Boolean.FALSE;
+			} catch (UnknownSelectorException use) {
+				rules.putOutcome(selectorName, use.getSelectorName());
+				throw use;
+			}
+			rules.putOutcome(selectorName, outcome);
+		} else if (outcome instanceof String) {
+			throw new UnknownSelectorException((String) outcome);
+		}
+
+		return ((Boolean) outcome).booleanValue();
+	}
+
+	private CssSelectorRules getSelectorRules() {
+		if (selectorRules == null) {
+			selectorRules = policy.getCssSelectorRules();
+		}
+		return selectorRules;
+	}
+
+	private boolean validateSelector(String selectorName, Selector selector)
+			throws ScanException {
+
 		// determine correct behavior
 		switch (selector.getSelectorType()) {
 		case Selector.SAC_ANY_NODE_SELECTOR:
@@ -140,23 +237,23 @@ public class CssValidator {
 		case Selector.SAC_DESCENDANT_SELECTOR:
 			// these are compound selectors - decompose into simple selectors
 			DescendantSelector descSelector = (DescendantSelector) selector;
-			return isValidSelector(selectorName, descSelector
+			return validateSelector(selectorName, descSelector
 					.getSimpleSelector())
-					& isValidSelector(selectorName, descSelector
+					& validateSelector(selectorName, descSelector
 							.getAncestorSelector());
 		case Selector.SAC_CONDITIONAL_SELECTOR:
 			// this is a compound selector - decompose into simple selectors
 			ConditionalSelector condSelector = (ConditionalSelector) selector;
-			return isValidSelector(selectorName, condSelector
+			return validateSelector(selectorName, condSelector
 					.getSimpleSelector())
 					& isValidCondition(selectorName, condSelector
 							.getCondition());
 		case Selector.SAC_DIRECT_ADJACENT_SELECTOR:
 			// this is a compound selector - decompose into simple selectors
 			SiblingSelector sibSelector = (SiblingSelector) selector;
-			return isValidSelector(selectorName, sibSelector
+			return validateSelector(selectorName, sibSelector
 					.getSiblingSelector())
-					& isValidSelector(selectorName, sibSelector.getSelector());
+					& validateSelector(selectorName, sibSelector.getSelector());
 		case Selector.SAC_NEGATIVE_SELECTOR:
 			// this is a compound selector with one simple selector
 			return validateSimpleSelector((NegativeSelector) selector);
@@ -183,13 +280,7 @@ public class CssValidator {
 	private boolean validateSimpleSelector(SimpleSelector selector) {
 		// ensure the name follows the valid pattern and is not blacklisted
 		// by the exclusion pattern.
-		// NOTE: intentionally using non-short-circuited AND operator to
-		// generate all relevant error messages
-		return policy.getRegularExpression("cssElementSelector").getPattern()
-				.matcher(selector.toString().toLowerCase()).matches()
-				& !policy.getRegularExpression("cssElementExclusion")
-						.getPattern()
-						.matcher(selector.toString().toLowerCase()).matches();
+		return getSelectorRules().isValidElement(selector.toString().toLowerCase());
 	}
 
 	/**
@@ -219,29 +310,22 @@ public class CssValidator {
 		case Condition.SAC_CLASS_CONDITION:
 			// this is a basic class condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
-			return validateCondition((AttributeCondition) condition, policy
-					.getRegularExpression("cssClassSelector"), policy
-					.getRegularExpression("cssClassExclusion"));
+			return getSelectorRules().isValidClass(condition.toString().toLowerCase());
 		case Condition.SAC_ID_CONDITION:
 			// this is a basic ID condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
-			return validateCondition((AttributeCondition) condition, policy
-					.getRegularExpression("cssIDSelector"), policy
-					.getRegularExpression("cssIDExclusion"));
+			return getSelectorRules().isValidId(condition.toString().toLowerCase());
 		case Condition.SAC_PSEUDO_CLASS_CONDITION:
 			// this is a basic psuedo element condition; compare condition
 			// against valid pattern and is not blacklisted by exclusion pattern
-			return validateCondition((AttributeCondition) condition, policy
-					.getRegularExpression("cssPseudoElementSelector"), policy
-					.getRegularExpression("cssPsuedoElementExclusion"));
+			return getSelectorRules().isValidPseudoElement(condition.toString().toLowerCase());
 		case Condition.SAC_BEGIN_HYPHEN_ATTRIBUTE_CONDITION:
 		case Condition.SAC_ONE_OF_ATTRIBUTE_CONDITION:
 		case Condition.SAC_ATTRIBUTE_CONDITION:
 			// this is a basic class condition; compare condition against
 			// valid pattern and is not blacklisted by exclusion pattern
-			return validateCondition((AttributeCondition) condition, policy
-					.getRegularExpression("cssAttributeSelector"), policy
-					.getRegularExpression("cssAttributeExclusion"));
+			return getSelectorRules().isValidAttribute(condition.toString().toLowerCase());
+
 		case Condition.SAC_NEGATIVE_CONDITION:
 			// this is a compound condition; decompose to simple condition
 			return isValidCondition(selectorName,
@@ -258,33 +342,6 @@ public class CssValidator {
 		}
 	}
 
-	/**
-	 * Validates a basic condition against the white list pattern and the
-	 * blacklist pattern
-	 * 
-	 * @param condition
-	 *            the object representation of the condition
-	 * @param pattern
-	 *            the positive pattern of valid conditions
-	 * @param exclusionPattern
-	 *            the negative pattern of excluded conditions
-	 * @param results
-	 *            the <code>CleanResults</code> object to add any error
-	 *            messages to
-	 * @return true if this selector name is valid; false otherwise
-	 */
-	private boolean validateCondition(AttributeCondition condition,
-			AntiSamyPattern pattern, AntiSamyPattern exclusionPattern) {
-		// check that the name of the condition matches valid pattern and does
-		// not match exclusion pattern
-		// NOTE: intentionally using non-short-circuited AND operator to
-		// generate all relevant error messages
-		return pattern.getPattern().matcher(condition.toString().toLowerCase())
-				.matches()
-				& !exclusionPattern.getPattern().matcher(
-						condition.toString().toLowerCase()).matches();
-	}
-
 	/**
 	 * Determines whether the given property value is valid according to this
 	 * validator's policy.
@@ -293,47 +350,32 @@ public class CssValidator {
 	 *            the object representation of the property and its associated
 	 *            policy
 	 * @param value
-	 *            the string representation of the value
+	 *            the string representation of the value, from
+	 *            <code>start</code> to its end
+	 * @param start
+	 *            the index the value starts at
 	 * @return true if the property is valid; false otherwise
 	 */
-	private boolean validateValue(Property property, String value) {
-		boolean isValid = false;
+	private boolean validateValue(Property property, CharSequence value, int start) {
+		// normalize the value to lowercase; anything beyond ASCII is left to
+		// String.toLowerCase()
+		lowerCaseValue.setLength(0);
 
-		// normalize the value to lowercase
-		value = value.toLowerCase();
+		for (int i = start; i < value.length(); i++) {
+			char c = value.charAt(i);
 
-		// check if the value matches any of the allowed literal values
-		Iterator allowedValues = property.getAllowedValues().iterator();
-		while (allowedValues.hasNext() && !isValid) {
-			String allowedValue = (String) allowedValues.next();
-
-			if (allowedValue != null && allowedValue.equals(value)) {
-				isValid = true;
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			} else if (c > 127) {
+				return property.isAllowedValue(value.subSequence(start, value.length()).toString().toLowerCase());
 			}
-		}
-
-		// check if the value matches any of the allowed regular expressions
-		Iterator allowedRegexps = property.getAllowedRegExp().iterator();
-		while (allowedRegexps.hasNext() && !isValid) {
-			Pattern pattern = (Pattern) allowedRegexps.next();
 
-			if (pattern != null && pattern.matcher(value).matches()) {
-				isValid = true;
-			}
+			lowerCaseValue.append(c);
 		}
 
-		// check if the value matches any of the allowed shorthands
-		Iterator shorthandRefs = property.getShorthandRefs().iterator();
-		while (shorthandRefs.hasNext() && !isValid) {
-			String shorthandRef = (String) shorthandRefs.next();
-			Property shorthand = policy.getPropertyByName(shorthandRef);
-
-			if (shorthand != null) {
-				isValid = validateValue(shorthand, value);
-			}
-		}
-
-		return isValid;
+		// the literals and regular expressions of the property and of all
+		// its shorthands were flattened when the policy was loaded
+		return property.isAllowedValue(lowerCaseValue);
 	}
 
 	/**
@@ -346,6 +388,22 @@ public class CssValidator {
 	 * @return a <code>String</code> representation of the given lexical unit
 	 */
 	public String lexicalValueToString(LexicalUnit lu) {
+		StringBuffer sb = new StringBuffer();
+		return appendLexicalValue(lu, sb) ? sb.toString() : null;
+	}
+
+	/**
+	 * Appends the same representation <code>lexicalValueToString()</code>
+	 * returns to the given buffer.
+	 * 
+	 * @param lu
+	 *            the lexical unit to convert
+	 * @param sb
+	 *            the buffer to append to
+	 * @return true if the unit could be represented; false if it is of a type
+	 *         that is not supported, in which case nothing was appended
+	 */
+	public boolean appendLexicalValue(LexicalUnit lu, StringBuffer sb) {
 		switch (lu.getLexicalUnitType()) {
 		case LexicalUnit.SAC_PERCENTAGE:
 		case LexicalUnit.SAC_DIMENSION:
@@ -365,26 +423,33 @@ public class CssValidator {
 		case LexicalUnit.SAC_HERTZ:
 		case LexicalUnit.SAC_KILOHERTZ:
 			// these are all measurements
-			return lu.getFloatValue() + lu.getDimensionUnitText();
+			sb.append(lu.getFloatValue()).append(lu.getDimensionUnitText());
+			return true;
 		case LexicalUnit.SAC_INTEGER:
 			// just a number
-			return String.valueOf(lu.getIntegerValue());
+			sb.append(lu.getIntegerValue());
+			return true;
 		case LexicalUnit.SAC_REAL:
 			// just a number
-			return String.valueOf(lu.getFloatValue());
+			sb.append(lu.getFloatValue());
+			return true;
 		case LexicalUnit.SAC_STRING_VALUE:
 		case LexicalUnit.SAC_IDENT:
 			// just a string/identifier
 			String stringValue = lu.getStringValue();
-			if(stringValue.indexOf(" ") != -1)
-				stringValue = "\""+stringValue+"\"";
-			return stringValue;
+			if (stringValue.indexOf(" ") != -1) {
+				sb.append('"').append(stringValue).append('"');
+			} else {
+				sb.append(stringValue);
+			}
+			return true;
 		case LexicalUnit.SAC_URI:
 			// this is a URL
-			return "url(" + lu.getStringValue() + ")";
+			sb.append("url(").append(lu.getStringValue()).append(')');
+			return true;
 		case LexicalUnit.SAC_RGBCOLOR:
 			// this is a rgb encoded color
-			StringBuffer sb = new StringBuffer("rgb(");
+			sb.append("rgb(");
 			LexicalUnit param = lu.getParameters();
 			sb.append(param.getIntegerValue()); // R value
 			sb.append(',');
@@ -396,13 +461,14 @@ public class CssValidator {
 			param = param.getNextLexicalUnit(); // B value
 			sb.append(param.getIntegerValue());
 			sb.append(')');
-
-			return sb.toString();
+			return true;
 		case LexicalUnit.SAC_INHERIT:
 			// constant
-			return "inherit";
+			sb.append("inherit");
+			return true;
 		case LexicalUnit.SAC_OPERATOR_COMMA:
-		    	return ",";
+			sb.append(',');
+			return true;
 		case LexicalUnit.SAC_ATTR:
 		case LexicalUnit.SAC_COUNTER_FUNCTION:
 		case LexicalUnit.SAC_COUNTERS_FUNCTION:
@@ -413,7 +479,7 @@ public class CssValidator {
 		default:
 			// these are properties that shouldn't be necessary for most run
 			// of the mill HTML/CSS
-			return null;
+			return false;
 		}
 	}
 }
@@ -28,18 +28,16 @@
  */
 package org.owasp.validator.css;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.ResourceBundle;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpContentTooLargeException;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
 import org.owasp.validator.html.util.ErrorMessageUtil;
@@ -66,109 +64,254 @@ public class ExternalCssScanner extends CssScanner {
 	 * @param sizeLimit
 	 *                the limit on the total size in bites of any imported
 	 *                stylesheets
+	 * @param imports
+	 *                the stylesheets imported so far during the scan
 	 * @throws ScanException
 	 *                 if an error occurs during scanning
 	 */
 	protected void parseImportedStylesheets(LinkedList stylesheets, CssHandler handler,
-			ArrayList errorMessages, int sizeLimit) throws ScanException {
-			
-			int importedStylesheets = 0;
-			
-			// if stylesheets were imported by the inline style declaration,
-			// continue parsing the nested styles. Note this only happens
-			// if CSS importing was enabled in the policy file
-			if (!stylesheets.isEmpty()) {
-			    HttpClient httpClient = new HttpClient();
-			
-			    // Ensure that we have appropriate timeout values so we don't
-			    // get DoSed waiting for returns
-			    HttpConnectionManagerParams params = httpClient
-				    .getHttpConnectionManager().getParams();
-			
-			    int timeout = DEFAULT_TIMEOUT;
-			
-			    try {
-				timeout = Integer.parseInt(policy
-					.getDirective(Policy.CONNECTION_TIMEOUT));
-			    } catch (NumberFormatException nfe) {
-			    }
-			
-			    params.setConnectionTimeout(timeout);
-			    params.setSoTimeout(timeout);
-			    httpClient.getHttpConnectionManager().setParams(params);
-			
-			    int allowedImports = Policy.DEFAULT_MAX_STYLESHEET_IMPORTS;
-			    try {
-				allowedImports = Integer.parseInt(policy
-					.getDirective("maxStyleSheetImports"));
-			    } catch (NumberFormatException nfe) {
-			    }
-			
-			    while (!stylesheets.isEmpty()) {
-			
-				URI stylesheetUri = (URI) stylesheets.removeFirst();
-			
-				if (++importedStylesheets > allowedImports) {
-				    errorMessages.add(ErrorMessageUtil.getMessage(
-				    	messages,
-					    ErrorMessageUtil.ERROR_CSS_IMPORT_EXCEEDED,
-					    new Object[] {
-						    HTMLEntityEncoder
-							    .htmlEntityEncode(stylesheetUri
-								    .toString()),
-						    String.valueOf(allowedImports) }));
-				    continue;
+			ArrayList errorMessages, int sizeLimit, StyleSheetImports imports) throws ScanException {
+
+		// if stylesheets were imported by the inline style declaration,
+		// continue parsing the nested styles. Note this only happens
+		// if CSS importing was enabled in the policy file
+		if (stylesheets.isEmpty()) {
+			return;
+		}
+
+		int timeout = DEFAULT_TIMEOUT;
+		try {
+			timeout = Integer.parseInt(policy.getDirective(Policy.CONNECTION_TIMEOUT));
+		} catch (NumberFormatException nfe) {
+		}
+
+		int allowedImports = Policy.DEFAULT_MAX_STYLESHEET_IMPORTS;
+		try {
+			allowedImports = Integer.parseInt(policy.getDirective("maxStyleSheetImports"));
+		} catch (NumberFormatException nfe) {
+		}
+
+		// all imports together may take as long as each of them may
+		// separately, unless the policy says otherwise
+		long importTime = (long) timeout * allowedImports;
+		try {
+			importTime = Long.parseLong(policy.getDirective(Policy.MAX_STYLESHEET_IMPORT_TIME));
+		} catch (NumberFormatException nfe) {
+		}
+
+		// the limits are for the whole scan, not for each stylesheet in it
+		long deadline = imports.getDeadline(importTime);
+		sizeLimit -= imports.getImportedSize();
+
+		StyleSheetResolver resolver = policy.getStyleSheetResolver();
+		StyleSheetFetcher fetcher = new StyleSheetFetcher(resolver, timeout);
+
+		// what a local resolver serves may be changed by the application at
+		// any time and is cheap to read again, so it is not cached
+		ImportedStyleSheetCache cache = resolver.isLocal() ? null : policy.getImportedStyleSheetCache();
+		int policyVersion = policy.getVersion();
+		String tagName = handler.getTagName();
+
+		while (!stylesheets.isEmpty()) {
+
+			// the stylesheets queued so far do not depend on each other, so
+			// those within the import limit are opened at the same time.
+			// They are still read and validated one by one in the order
+			// they were imported, and whatever they import in turn is
+			// queued behind them, just as if they had been fetched one
+			// after the other.
+			int queued = stylesheets.size();
+			URI[] round = new URI[queued];
+			boolean[] exceeded = new boolean[queued];
+			ImportedStyleSheetCache.Entry[] cached = new ImportedStyleSheetCache.Entry[queued];
+			ArrayList toFetch = new ArrayList();
+
+			for (int i = 0; i < queued; i++) {
+				// the same stylesheet is known by the same URI to the
+				// check for duplicates, the cache and the resolver
+				URI stylesheetUri = ((URI) stylesheets.removeFirst()).normalize();
+
+				// a stylesheet already imported during this scan is left
+				// out, and does not count against the limit again
+				if (!imports.add(stylesheetUri)) {
+					continue;
 				}
-			
-				GetMethod stylesheetRequest = new GetMethod(stylesheetUri
-					.toString());
-			
-				byte[] stylesheet = null;
-				try {
-				    // pull down stylesheet, observing size limit
-				    httpClient.executeMethod(stylesheetRequest);
-				    stylesheet = stylesheetRequest.getResponseBody(sizeLimit);
-				} catch (HttpContentTooLargeException hctle) {
-				    errorMessages
-					    .add(ErrorMessageUtil
-						    .getMessage(
-						    	messages,
-							    ErrorMessageUtil.ERROR_CSS_IMPORT_INPUT_SIZE,
-							    new Object[] {
-								    HTMLEntityEncoder
-									    .htmlEntityEncode(stylesheetUri
-										    .toString()),
-								    String.valueOf(policy
-									    .getMaxInputSize()) }));
-				} catch (IOException ioe) {
-				    errorMessages.add(ErrorMessageUtil
-					    .getMessage(
-					    	messages,
-						    ErrorMessageUtil.ERROR_CSS_IMPORT_FAILURE,
-						    new Object[] { HTMLEntityEncoder
-							    .htmlEntityEncode(stylesheetUri
-								    .toString()) }));
-				} finally {
-				    stylesheetRequest.releaseConnection();
+
+				round[i] = stylesheetUri;
+				exceeded[i] = imports.getImportCount() > allowedImports;
+
+				if (!exceeded[i]) {
+					if (cache != null) {
+						cached[i] = cache.get(policyVersion, tagName, stylesheetUri, messages);
+					}
+					if (cached[i] == null) {
+						toFetch.add(stylesheetUri);
+					}
+				}
+			}
+
+			StyleSheetFetcher.Result[] fetched = fetcher.fetchAll(
+					(URI[]) toFetch.toArray(new URI[toFetch.size()]));
+			int nextFetched = 0;
+
+			try {
+				for (int i = 0; i < queued; i++) {
+
+					URI stylesheetUri = round[i];
+
+					if (stylesheetUri == null) {
+						continue;
+					}
+
+					if (exceeded[i]) {
+						imports.rejected();
+						errorMessages.add(ErrorMessageUtil.getMessage(
+								messages,
+								ErrorMessageUtil.ERROR_CSS_IMPORT_EXCEEDED,
+								new Object[] {
+									HTMLEntityEncoder.htmlEntityEncode(stylesheetUri.toString()),
+									String.valueOf(allowedImports) }));
+						continue;
+					}
+
+					ImportedStyleSheetCache.Entry entry = cached[i];
+
+					if (entry != null) {
+						imports.cacheHit();
+						if (entry.isFailure()) {
+							imports.failed();
+							addImportFailure(errorMessages, stylesheetUri);
+						} else if (entry.getLength() > sizeLimit) {
+							imports.rejected();
+							addImportTooLarge(errorMessages, stylesheetUri);
+						} else {
+							sizeLimit -= entry.getLength();
+							imports.embedded(entry.getLength());
+							handler.appendCleanStylesheet(entry.getCleanCss());
+							errorMessages.addAll(entry.getErrorMessages());
+							stylesheets.addAll(entry.getImports());
+						}
+						continue;
+					}
+
+					StyleSheetFetcher.Result result = fetched[nextFetched++];
+
+					if (result.isFailed()) {
+						imports.fetched(0);
+						imports.failed();
+						addImportFailure(errorMessages, stylesheetUri);
+						if (cache != null) {
+							cache.putFailure(policyVersion, tagName, stylesheetUri, messages);
+						}
+						continue;
+					}
+
+					StyleSheetSource source = result.getSource();
+
+					if (source.getContentLength() > sizeLimit) {
+						// no need to read what says up front it is too large
+						source.close();
+						imports.fetched(0);
+						imports.rejected();
+						addImportTooLarge(errorMessages, stylesheetUri);
+						continue;
+					}
+
+					int outputStart = handler.getCleanStylesheetLength();
+					int errorsStart = errorMessages.size();
+					int importsStart = stylesheets.size();
+
+					// the stylesheet is parsed as it is read, and reading stops
+					// as soon as it goes over what is left of the size limit or
+					// the time allowed
+					BudgetedInputStream in = new BudgetedInputStream(stylesheetUri,
+							source.getInputStream(), sizeLimit, deadline);
+
+					try {
+						parser.parseStyleSheet(new InputSource(getReader(in, source.getCharset())));
+					} catch (IOException ioe) {
+						if (!in.isAborted()) {
+							throw new ScanException(ioe);
+						}
+					} catch (RuntimeException re) {
+						// Batik passes on errors reading its input as its own
+						if (!in.isAborted()) {
+							throw re;
+						}
+					} finally {
+						source.close();
+						imports.fetched(in.getCount());
+					}
+
+					if (in.isAborted()) {
+						// keep nothing of a stylesheet that was cut short
+						handler.truncateCleanStylesheet(outputStart);
+						errorMessages.subList(errorsStart, errorMessages.size()).clear();
+						stylesheets.subList(importsStart, stylesheets.size()).clear();
+
+						if (in.isTooLarge()) {
+							imports.rejected();
+							addImportTooLarge(errorMessages, stylesheetUri);
+						} else {
+							imports.failed();
+							addImportFailure(errorMessages, stylesheetUri);
+							if (in.isFailed() && cache != null) {
+								cache.putFailure(policyVersion, tagName, stylesheetUri, messages);
+							}
+						}
+						continue;
+					}
+
+					// decrease the size limit based on the stylesheet just read
+					sizeLimit -= in.getCount();
+					imports.embedded(in.getCount());
+
+					if (cache != null) {
+						cache.putStyleSheet(policyVersion, tagName, stylesheetUri, messages,
+								handler.getCleanStylesheet(outputStart),
+								errorMessages.subList(errorsStart, errorMessages.size()),
+								stylesheets.subList(importsStart, stylesheets.size()),
+								in.getCount());
+					}
 				}
-			
-				if (stylesheet != null) {
-				    // decrease the size limit based on the
-				    sizeLimit -= stylesheet.length;
-			
-				    try {
-					InputSource nextStyleSheet = new InputSource(
-						new InputStreamReader(new ByteArrayInputStream(
-							stylesheet)));
-					parser.parseStyleSheet(nextStyleSheet);
-			
-				    } catch (IOException ioe) {
-					throw new ScanException(ioe);
-				    }
-			
+			} finally {
+				// close whatever was opened but not got to
+				for (int i = nextFetched; i < fetched.length; i++) {
+					if (!fetched[i].isFailed()) {
+						fetched[i].getSource().close();
+					}
 				}
-			    }
 			}
+		}
+	}
+
+	private static Reader getReader(InputStream in, String charset) {
+
+		if (charset != null) {
+			try {
+				return new InputStreamReader(in, charset);
+			} catch (UnsupportedEncodingException uee) {
+				// read it like a stylesheet that did not say
 			}
+		}
+
+		return new InputStreamReader(in);
+	}
+
+	private void addImportFailure(ArrayList errorMessages, URI stylesheetUri) {
+		errorMessages.add(ErrorMessageUtil.getMessage(
+				messages,
+				ErrorMessageUtil.ERROR_CSS_IMPORT_FAILURE,
+				new Object[] { HTMLEntityEncoder.htmlEntityEncode(stylesheetUri.toString()) }));
+	}
+
+	private void addImportTooLarge(ArrayList errorMessages, URI stylesheetUri) {
+		errorMessages.add(ErrorMessageUtil.getMessage(
+				messages,
+				ErrorMessageUtil.ERROR_CSS_IMPORT_INPUT_SIZE,
+				new Object[] {
+					HTMLEntityEncoder.htmlEntityEncode(stylesheetUri.toString()),
+					String.valueOf(policy.getMaxInputSize()) }));
+	}
 
 }
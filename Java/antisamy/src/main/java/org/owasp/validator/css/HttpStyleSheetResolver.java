@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * Fetches stylesheets over HTTP. One pool of connections is kept per
+ * timeout and shared by every scan, instead of each scan setting up its
+ * own client.
+ * 
+ * The response body is handed to the scanner as it comes in, decoded in
+ * the charset of its <code>Content-Type</code>. A connection whose body
+ * was not read to the end is dropped rather than drained. A response with a
+ * status other than 2xx fails the import.
+ */
+public class HttpStyleSheetResolver implements StyleSheetResolver {
+
+	private static final int MAX_CONNECTIONS = 20;
+
+	private static final HttpStyleSheetResolver instance = new HttpStyleSheetResolver();
+
+	private final HashMap clients = new HashMap();
+
+	/**
+	 * @return the resolver shared by all policies using the <code>http</code>
+	 *         resolver
+	 */
+	public static HttpStyleSheetResolver getInstance() {
+		return instance;
+	}
+
+	public StyleSheetSource open(URI uri, int timeout) throws IOException {
+
+		GetMethod stylesheetRequest = new GetMethod(uri.toString());
+		boolean opened = false;
+
+		try {
+			int status = getClient(timeout).executeMethod(stylesheetRequest);
+
+			// an error page is no stylesheet, and is cached as a failure
+			if (status < 200 || status >= 300) {
+				throw new IOException("HTTP status " + status + " for " + uri);
+			}
+
+			InputStream body = stylesheetRequest.getResponseBodyAsStream();
+			if (body == null) {
+				body = new ByteArrayInputStream(new byte[0]);
+			}
+
+			StyleSheetSource source = new ResponseSource(stylesheetRequest, new ResponseBody(body),
+					getCharset(stylesheetRequest), stylesheetRequest.getResponseContentLength());
+			opened = true;
+			return source;
+
+		} finally {
+			if (!opened) {
+				stylesheetRequest.releaseConnection();
+			}
+		}
+	}
+
+	public boolean isLocal() {
+		return false;
+	}
+
+	private synchronized HttpClient getClient(int timeout) {
+
+		Integer key = new Integer(timeout);
+		HttpClient httpClient = (HttpClient) clients.get(key);
+
+		if (httpClient == null) {
+			MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+
+			// Ensure that we have appropriate timeout values so we don't
+			// get DoSed waiting for returns
+			HttpConnectionManagerParams params = connectionManager.getParams();
+			params.setConnectionTimeout(timeout);
+			params.setSoTimeout(timeout);
+			params.setMaxTotalConnections(MAX_CONNECTIONS);
+			params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS);
+
+			httpClient = new HttpClient(connectionManager);
+
+			// a scan keeps the stylesheets it has opened until it gets to
+			// them, so never wait for a free connection indefinitely
+			httpClient.getParams().setConnectionManagerTimeout(timeout);
+			clients.put(key, httpClient);
+		}
+
+		return httpClient;
+	}
+
+	private static String getCharset(GetMethod stylesheetRequest) {
+
+		Header contentType = stylesheetRequest.getResponseHeader("Content-Type");
+
+		if (contentType != null) {
+			HeaderElement[] elements = contentType.getElements();
+			if (elements.length > 0) {
+				NameValuePair charset = elements[0].getParameterByName("charset");
+				if (charset != null && charset.getValue() != null && charset.getValue().length() > 0) {
+					return charset.getValue();
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private static class ResponseSource extends StyleSheetSource {
+
+		private final GetMethod stylesheetRequest;
+		private final ResponseBody body;
+
+		ResponseSource(GetMethod stylesheetRequest, ResponseBody body, String charset, long contentLength) {
+			super(body, charset, contentLength);
+			this.stylesheetRequest = stylesheetRequest;
+			this.body = body;
+		}
+
+		public void close() {
+			if (!body.finished) {
+				// whatever is left of the body is not wanted
+				stylesheetRequest.abort();
+			}
+			stylesheetRequest.releaseConnection();
+		}
+	}
+
+	private static class ResponseBody extends FilterInputStream {
+
+		private boolean finished = false;
+
+		ResponseBody(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int c = super.read();
+			finished = (c == -1);
+			return c;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			finished = (n == -1);
+			return n;
+		}
+	}
+}
+
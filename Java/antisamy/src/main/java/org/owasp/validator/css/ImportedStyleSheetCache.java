@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * A bounded cache of imported stylesheets, in the form they were added to
+ * the importing stylesheet after validation. Entries expire after a fixed
+ * time, so a stylesheet that changes at its source is picked up again.
+ * Stylesheets that could not be fetched are remembered as well, usually for
+ * a shorter time, so an unreachable server is not asked again by every scan.
+ * 
+ * Entries are keyed on the policy version, the tag name of the importing
+ * inline style (or null for a stylesheet), the message bundle and the URI.
+ * One cache belongs to one <code>Policy</code> and is shared by all scanners
+ * using it; it is safe to use from several threads.
+ * 
+ * @see org.owasp.validator.html.Policy#getImportedStyleSheetCache()
+ */
+public class ImportedStyleSheetCache {
+
+	private final int maxSize;
+	private final long timeToLive;
+	private final long failureTimeToLive;
+	private final LinkedHashMap entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxSize
+	 *            the number of stylesheets to keep
+	 * @param timeToLive
+	 *            how long a fetched stylesheet is kept, in milliseconds; 0
+	 *            or less to not keep them at all
+	 * @param failureTimeToLive
+	 *            how long a failed fetch is remembered, in milliseconds; 0
+	 *            or less to not remember failures
+	 */
+	public ImportedStyleSheetCache(final int maxSize, long timeToLive, long failureTimeToLive) {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.failureTimeToLive = failureTimeToLive;
+		this.entries = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a stylesheet imported by an earlier scan.
+	 * 
+	 * @return The entry, or null if there is none or it has expired.
+	 */
+	public Entry get(int policyVersion, String tagName, URI uri, ResourceBundle messages) {
+
+		Key key = new Key(policyVersion, tagName, uri, messages);
+
+		synchronized (this) {
+			Entry entry = (Entry) entries.get(key);
+
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+
+			if (entry == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Remembers a stylesheet that was fetched and validated.
+	 * 
+	 * @param cleanCss
+	 *            what validating the stylesheet added to the output
+	 * @param errorMessages
+	 *            the error messages validating it produced
+	 * @param imports
+	 *            the <code>URI</code>s of the stylesheets it imports in turn
+	 * @param length
+	 *            the size of the stylesheet in bytes, which counts against
+	 *            the size limit of every scan importing it
+	 */
+	public void putStyleSheet(int policyVersion, String tagName, URI uri, ResourceBundle messages,
+			String cleanCss, List errorMessages, List imports, int length) {
+
+		if (timeToLive > 0) {
+			put(new Key(policyVersion, tagName, uri, messages), new Entry(cleanCss,
+					new ArrayList(errorMessages), new ArrayList(imports), length, timeToLive));
+		}
+	}
+
+	/**
+	 * Remembers that a stylesheet could not be fetched.
+	 */
+	public void putFailure(int policyVersion, String tagName, URI uri, ResourceBundle messages) {
+
+		if (failureTimeToLive > 0) {
+			put(new Key(policyVersion, tagName, uri, messages), new Entry(null, null, null, 0, failureTimeToLive));
+		}
+	}
+
+	private synchronized void put(Key key, Entry entry) {
+		entries.put(key, entry);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * A cached stylesheet, or a cached failure to fetch one.
+	 */
+	public static class Entry {
+
+		private final String cleanCss;
+		private final List errorMessages;
+		private final List imports;
+		private final int length;
+		private final long expires;
+
+		Entry(String cleanCss, List errorMessages, List imports, int length, long timeToLive) {
+			this.cleanCss = cleanCss;
+			this.errorMessages = errorMessages;
+			this.imports = imports;
+			this.length = length;
+			this.expires = System.currentTimeMillis() + timeToLive;
+		}
+
+		/**
+		 * @return true if this records a stylesheet that could not be fetched
+		 */
+		public boolean isFailure() {
+			return cleanCss == null;
+		}
+
+		public String getCleanCss() {
+			return cleanCss;
+		}
+
+		public List getErrorMessages() {
+			return errorMessages;
+		}
+
+		public List getImports() {
+			return imports;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	private static class Key {
+
+		private final int policyVersion;
+		private final String tagName;
+		private final URI uri;
+		private final ResourceBundle messages;
+		private final int hashCode;
+
+		Key(int policyVersion, String tagName, URI uri, ResourceBundle messages) {
+			this.policyVersion = policyVersion;
+			this.tagName = tagName;
+			this.uri = uri;
+			this.messages = messages;
+			this.hashCode = (policyVersion * 31 + (tagName == null ? 0 : tagName.hashCode())) * 31 + uri.hashCode();
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return policyVersion == other.policyVersion && messages == other.messages
+					&& (tagName == null ? other.tagName == null : tagName.equals(other.tagName))
+					&& uri.equals(other.uri);
+		}
+	}
+}
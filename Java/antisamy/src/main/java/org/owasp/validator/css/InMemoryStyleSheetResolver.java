@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.HashMap;
+
+/**
+ * Serves stylesheets the application has put in memory, keyed by their
+ * absolute URI. Stylesheets that were not put here are not found; nothing
+ * is ever fetched from the network. Being local, what is served here is
+ * not kept in the policy's <code>ImportedStyleSheetCache</code>, so a
+ * stylesheet put, removed or cleared takes effect with the next scan.
+ */
+public class InMemoryStyleSheetResolver implements StyleSheetResolver {
+
+	private final HashMap styleSheets = new HashMap();
+
+	private static final String UTF_8 = "UTF-8";
+
+	/**
+	 * @param uri
+	 *            the absolute URI the stylesheet is imported by
+	 * @param styleSheet
+	 *            the contents of the stylesheet
+	 * @param charset
+	 *            the encoding of the contents, or null for the platform's
+	 *            default
+	 */
+	public synchronized void put(String uri, byte[] styleSheet, String charset) {
+		styleSheets.put(URI.create(uri).normalize(), new Object[] { styleSheet, charset });
+	}
+
+	/**
+	 * Stores a stylesheet in the platform's default encoding.
+	 */
+	public void put(String uri, byte[] styleSheet) {
+		put(uri, styleSheet, null);
+	}
+
+	public void put(String uri, String styleSheet) {
+		try {
+			put(uri, styleSheet.getBytes(UTF_8), UTF_8);
+		} catch (UnsupportedEncodingException uee) {
+			// every platform supports UTF-8
+			throw new IllegalStateException(uee.getMessage());
+		}
+	}
+
+	public synchronized void remove(String uri) {
+		styleSheets.remove(URI.create(uri).normalize());
+	}
+
+	public synchronized void clear() {
+		styleSheets.clear();
+	}
+
+	public StyleSheetSource open(URI uri, int timeout) throws IOException {
+
+		Object[] styleSheet;
+
+		synchronized (this) {
+			styleSheet = (Object[]) styleSheets.get(uri.normalize());
+		}
+
+		if (styleSheet == null) {
+			throw new FileNotFoundException(uri.toString());
+		}
+
+		byte[] contents = (byte[]) styleSheet[0];
+
+		return new StyleSheetSource(new ByteArrayInputStream(contents), (String) styleSheet[1],
+				contents.length);
+	}
+
+	public boolean isLocal() {
+		return true;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.css;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.owasp.validator.html.CleanResults;
+
+/**
+ * A bounded, least recently used cache of sanitized inline style values.
+ * The same few <code>style</code> attributes tend to appear over and over in
+ * user content, and re-parsing them with Batik is a large part of the cost of
+ * scanning such content.
+ * 
+ * Entries are keyed on the policy version, the tag name and the raw style
+ * value (and the message bundle, since error messages are cached too), so a
+ * change to the policy never serves a stale result. One cache belongs to one
+ * <code>Policy</code> and is shared by all scanners using it; it is safe to
+ * use from several threads.
+ * 
+ * @see org.owasp.validator.html.Policy#getInlineStyleCache()
+ */
+public class InlineStyleCache {
+
+	private final int maxSize;
+	private final LinkedHashMap entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public InlineStyleCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Looks up the result of an earlier scan of the same style value.
+	 * 
+	 * @return A fresh <code>CleanResults</code> with the cached clean style
+	 *         and error messages, or null if there is none.
+	 */
+	public CleanResults get(int policyVersion, String tagName, String taintedCss, ResourceBundle messages) {
+
+		Entry entry;
+
+		synchronized (this) {
+			entry = (Entry) entries.get(new Key(policyVersion, tagName, taintedCss, messages));
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+
+		Date now = new Date();
+		return new CleanResults(now, now, entry.cleanCss, null, new ArrayList(entry.errorMessages));
+	}
+
+	public void put(int policyVersion, String tagName, String taintedCss, ResourceBundle messages, CleanResults results) {
+
+		Entry entry = new Entry(results.getCleanHTML(), new ArrayList(results.getErrorMessages()));
+
+		synchronized (this) {
+			entries.put(new Key(policyVersion, tagName, taintedCss, messages), entry);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the share of lookups that were answered from the cache, between
+	 * 0 and 1.
+	 */
+	public synchronized double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	private static class Key {
+
+		private final int policyVersion;
+		private final String tagName;
+		private final String taintedCss;
+		private final ResourceBundle messages;
+		private final int hashCode;
+
+		Key(int policyVersion, String tagName, String taintedCss, ResourceBundle messages) {
+			this.policyVersion = policyVersion;
+			this.tagName = tagName;
+			this.taintedCss = taintedCss;
+			this.messages = messages;
+			this.hashCode = (policyVersion * 31 + tagName.hashCode()) * 31 + taintedCss.hashCode();
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return policyVersion == other.policyVersion && messages == other.messages
+					&& tagName.equals(other.tagName) && taintedCss.equals(other.taintedCss);
+		}
+	}
+
+	private static class Entry {
+
+		private final String cleanCss;
+		private final ArrayList errorMessages;
+
+		Entry(String cleanCss, ArrayList errorMessages) {
+			this.cleanCss = cleanCss;
+			this.errorMessages = errorMessages;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Reads stylesheets from local copies instead of fetching them, for
+ * instance from a mirror of a CDN. Each mapping ties a URI prefix to a
+ * directory, or to a classpath location when it starts with
+ * <code>classpath:</code>; the rest of the URI is the path below it.
+ * Stylesheets whose URI matches no mapping are not found.
+ * 
+ * The mappings are given as whitespace separated
+ * <code>prefix=location</code> pairs, which is also the form of the
+ * <code>styleSheetMappings</code> directive, for example
+ * <code>http://cdn.example.com/css/=classpath:/mirror/css/</code>.
+ */
+public class MappedStyleSheetResolver implements StyleSheetResolver {
+
+	private static final String CLASSPATH = "classpath:";
+
+	private final String[] prefixes;
+	private final String[] locations;
+
+	public MappedStyleSheetResolver(String mappings) {
+
+		ArrayList prefixList = new ArrayList();
+		ArrayList locationList = new ArrayList();
+
+		StringTokenizer st = new StringTokenizer(mappings == null ? "" : mappings);
+		while (st.hasMoreTokens()) {
+			String mapping = st.nextToken();
+			int eq = mapping.indexOf('=');
+
+			if (eq <= 0 || eq == mapping.length() - 1) {
+				throw new IllegalArgumentException("Stylesheet mapping '" + mapping + "' is not of the form prefix=location");
+			}
+
+			prefixList.add(mapping.substring(0, eq));
+			locationList.add(mapping.substring(eq + 1));
+		}
+
+		prefixes = (String[]) prefixList.toArray(new String[prefixList.size()]);
+		locations = (String[]) locationList.toArray(new String[locationList.size()]);
+	}
+
+	public StyleSheetSource open(URI uri, int timeout) throws IOException {
+
+		String name = uri.normalize().toString();
+
+		for (int i = 0; i < prefixes.length; i++) {
+			if (name.startsWith(prefixes[i])) {
+				String path = name.substring(prefixes[i].length());
+				if (path.startsWith("/")) {
+					path = path.substring(1);
+				}
+
+				// never leave the mapped location
+				if (path.length() == 0 || path.indexOf("..") != -1 || path.indexOf('\\') != -1
+						|| path.indexOf(':') != -1 || path.indexOf('?') != -1 || path.indexOf('#') != -1) {
+					break;
+				}
+
+				StyleSheetSource source = open(locations[i], path);
+				if (source != null) {
+					return source;
+				}
+			}
+		}
+
+		throw new FileNotFoundException(uri.toString());
+	}
+
+	public boolean isLocal() {
+		return true;
+	}
+
+	private StyleSheetSource open(String location, String path) throws IOException {
+
+		if (location.startsWith(CLASSPATH)) {
+			String resource = location.substring(CLASSPATH.length());
+			if (!resource.endsWith("/")) {
+				resource += "/";
+			}
+			if (resource.startsWith("/")) {
+				resource = resource.substring(1);
+			}
+			InputStream in = MappedStyleSheetResolver.class.getClassLoader().getResourceAsStream(resource + path);
+			return in == null ? null : new StyleSheetSource(in, null, -1);
+		}
+
+		File file = new File(location, path);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		return new StyleSheetSource(new FileInputStream(file), null, file.length());
+	}
+
+}
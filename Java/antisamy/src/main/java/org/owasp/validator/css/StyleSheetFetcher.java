@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedList;
+
+/**
+ * Fetches imported stylesheets for <code>ExternalCssScanner</code> through
+ * the <code>StyleSheetResolver</code> of the policy.
+ * 
+ * Fetching a stylesheet opens it; its contents are read afterwards, by the
+ * scanner while it parses. Several stylesheets can be opened at once with
+ * <code>fetchAll()</code>. The number of them being opened at the same time
+ * is capped across all fetchers and all threads, so a burst of posts
+ * importing stylesheets cannot open an unbounded number of outgoing
+ * connections at once.
+ */
+public class StyleSheetFetcher {
+
+	public static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+
+	private static final Object permits = new Object();
+	private static int maxConcurrentFetches = DEFAULT_MAX_CONCURRENT_FETCHES;
+	private static int activeFetches = 0;
+
+	private static final LinkedList queue = new LinkedList();
+	private static int workers = 0;
+
+	private final StyleSheetResolver resolver;
+	private final int timeout;
+
+	/**
+	 * @param resolver
+	 *            where to get the stylesheets from
+	 * @param timeout
+	 *            the timeout for each stylesheet in milliseconds
+	 */
+	public StyleSheetFetcher(StyleSheetResolver resolver, int timeout) {
+		this.resolver = resolver;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets how many stylesheets may be opened at the same time, by all
+	 * fetchers together.
+	 */
+	public static void setMaxConcurrentFetches(int max) {
+
+		if (max < 1) {
+			throw new IllegalArgumentException("At least one fetch must be allowed, not " + max);
+		}
+
+		synchronized (permits) {
+			maxConcurrentFetches = max;
+			permits.notifyAll();
+		}
+	}
+
+	public static int getMaxConcurrentFetches() {
+		synchronized (permits) {
+			return maxConcurrentFetches;
+		}
+	}
+
+	/**
+	 * Opens one stylesheet, waiting first if the maximum number of fetches
+	 * is already running.
+	 * 
+	 * @param uri
+	 *            the absolute URI of the stylesheet
+	 * @return the outcome of the fetch, whose source the caller must close
+	 */
+	public Result fetch(URI uri) {
+
+		acquire();
+
+		try {
+			return new Result(resolver.open(uri, timeout));
+		} catch (IOException ioe) {
+			return new Result(null);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Opens several stylesheets at once. The first is opened on the calling
+	 * thread, the others on shared worker threads; this returns when all of
+	 * them are open. Stylesheets from a resolver that does not go out to the
+	 * network are all opened on the calling thread.
+	 * 
+	 * @param uris
+	 *            the absolute URIs of the stylesheets
+	 * @return the outcome of each fetch, in the order of <code>uris</code>;
+	 *         the caller must close their sources
+	 */
+	public Result[] fetchAll(URI[] uris) {
+
+		Result[] results = new Result[uris.length];
+		Fetch[] fetches = new Fetch[uris.length];
+
+		if (uris.length > 1 && !resolver.isLocal()) {
+			synchronized (queue) {
+				startWorkers();
+				for (int i = 1; i < uris.length; i++) {
+					fetches[i] = new Fetch(this, uris[i]);
+					queue.addLast(fetches[i]);
+				}
+				queue.notifyAll();
+			}
+		}
+
+		RuntimeException error = null;
+
+		if (uris.length > 0) {
+			try {
+				results[0] = fetch(uris[0]);
+			} catch (RuntimeException re) {
+				error = re;
+			}
+		}
+
+		for (int i = 1; i < uris.length; i++) {
+			if (fetches[i] != null) {
+				results[i] = fetches[i].waitFor();
+				if (error == null) {
+					error = fetches[i].error;
+				}
+			} else if (error == null) {
+				try {
+					results[i] = fetch(uris[i]);
+				} catch (RuntimeException re) {
+					error = re;
+				}
+			}
+		}
+
+		if (error != null) {
+			for (int i = 0; i < results.length; i++) {
+				if (results[i] != null && !results[i].isFailed()) {
+					results[i].getSource().close();
+				}
+			}
+			throw error;
+		}
+
+		return results;
+	}
+
+	private static void acquire() {
+
+		boolean interrupted = false;
+
+		synchronized (permits) {
+			while (activeFetches >= maxConcurrentFetches) {
+				try {
+					permits.wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			activeFetches++;
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void release() {
+		synchronized (permits) {
+			activeFetches--;
+			permits.notify();
+		}
+	}
+
+	/*
+	 * Must be called holding the queue lock.
+	 */
+	private static void startWorkers() {
+
+		int wanted = getMaxConcurrentFetches();
+
+		while (workers < wanted) {
+			Thread worker = new Thread(new Worker(), "AntiSamy stylesheet fetcher " + workers);
+			worker.setDaemon(true);
+			worker.start();
+			workers++;
+		}
+	}
+
+	/**
+	 * The outcome of fetching one stylesheet.
+	 */
+	public static class Result {
+
+		private final StyleSheetSource source;
+
+		Result(StyleSheetSource source) {
+			this.source = source;
+		}
+
+		/**
+		 * @return the opened stylesheet, or null if it could not be fetched
+		 */
+		public StyleSheetSource getSource() {
+			return source;
+		}
+
+		/**
+		 * @return true if the stylesheet could not be fetched at all
+		 */
+		public boolean isFailed() {
+			return source == null;
+		}
+	}
+
+	private static class Fetch {
+
+		private final StyleSheetFetcher fetcher;
+		private final URI uri;
+
+		private Result result = null;
+		private RuntimeException error = null;
+		private boolean done = false;
+
+		Fetch(StyleSheetFetcher fetcher, URI uri) {
+			this.fetcher = fetcher;
+			this.uri = uri;
+		}
+
+		void run() {
+
+			Result result = null;
+			RuntimeException error = null;
+
+			try {
+				result = fetcher.fetch(uri);
+
+			} catch (RuntimeException re) {
+				error = re;
+			} catch (Error e) {
+				// hand it to the waiting scan rather than losing the worker
+				error = new RuntimeException(e);
+			} finally {
+				synchronized (this) {
+
+					this.result = result;
+					this.error = error;
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized Result waitFor() {
+
+			boolean interrupted = false;
+
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			return result;
+		}
+	}
+
+	private static class Worker implements Runnable {
+
+		public void run() {
+
+			while (true) {
+				Fetch fetch;
+
+				synchronized (queue) {
+					while (queue.isEmpty()) {
+						try {
+							queue.wait();
+						} catch (InterruptedException ie) {
+							// daemon threads only go away with the VM
+						}
+					}
+					fetch = (Fetch) queue.removeFirst();
+				}
+
+				fetch.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.net.URI;
+import java.util.HashSet;
+
+/**
+ * Keeps track of the stylesheets imported during one scan of a document,
+ * across all of its <code>&lt;style&gt;</code> elements and style
+ * attributes. The <code>maxStyleSheetImports</code> limit, the size limit
+ * and the time allowed for imports apply to the scan as a whole, and a
+ * stylesheet imported more than once is only fetched and embedded the first
+ * time.
+ * 
+ * After the scan, the counts here tell what importing cost it; they are
+ * available from <code>CleanResults.getStyleSheetImports()</code>. An
+ * instance belongs to a single scan and is not safe to share between
+ * threads.
+ */
+public class StyleSheetImports {
+
+	private HashSet uris = null;
+	private long deadline = -1;
+
+	private int imports = 0;
+	private int duplicates = 0;
+	private int fetches = 0;
+	private int cacheHits = 0;
+	private int failures = 0;
+	private int rejections = 0;
+	private int bytesRead = 0;
+	private int importedSize = 0;
+
+	/**
+	 * @return the number of stylesheets imported, or refused for going over
+	 *         the import limit, not counting duplicates
+	 */
+	public int getImportCount() {
+		return imports;
+	}
+
+	/**
+	 * @return the number of imports skipped because the same stylesheet was
+	 *         already imported earlier in the scan
+	 */
+	public int getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the number of stylesheets asked of their resolver, whether or
+	 *         not they could be had
+	 */
+	public int getFetchCount() {
+		return fetches;
+	}
+
+	/**
+	 * @return the number of stylesheets taken from the policy's cache of
+	 *         imported stylesheets
+	 */
+	public int getCacheHitCount() {
+		return cacheHits;
+	}
+
+	/**
+	 * @return the number of stylesheets that could not be had, or not in the
+	 *         time allowed
+	 */
+	public int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * @return the number of stylesheets refused for going over the import
+	 *         limit or the size limit
+	 */
+	public int getRejectionCount() {
+		return rejections;
+	}
+
+	/**
+	 * @return the number of bytes read from resolvers, including those of
+	 *         stylesheets that were given up on half way
+	 */
+	public int getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the total size of the stylesheets embedded, whether read from
+	 *         their resolver or taken from the cache, in bytes; this is what
+	 *         counts against the size limit
+	 */
+	public int getImportedSize() {
+		return importedSize;
+	}
+
+	/**
+	 * Records an import of the given stylesheet.
+	 * 
+	 * @param uri
+	 *            the normalized URI of the stylesheet
+	 * @return false if it was already imported during this scan
+	 */
+	boolean add(URI uri) {
+
+		if (uris == null) {
+			uris = new HashSet();
+		}
+
+		if (!uris.add(uri)) {
+			duplicates++;
+			return false;
+		}
+
+		imports++;
+		return true;
+	}
+
+	/**
+	 * @return the time imports have to be done by, which is set the first
+	 *         time this is called during the scan
+	 */
+	long getDeadline(long importTime) {
+		if (deadline == -1) {
+			deadline = System.currentTimeMillis() + importTime;
+		}
+		return deadline;
+	}
+
+	void fetched(int length) {
+		fetches++;
+		bytesRead += length;
+	}
+
+	void cacheHit() {
+		cacheHits++;
+	}
+
+	void embedded(int length) {
+		importedSize += length;
+	}
+
+	void failed() {
+		failures++;
+	}
+
+	void rejected() {
+		rejections++;
+	}
+}
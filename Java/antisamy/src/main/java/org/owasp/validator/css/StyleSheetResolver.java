@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Supplies the contents of stylesheets imported with <code>@import</code>
+ * when <code>embedStyleSheets</code> is on. The policy picks one with the
+ * <code>styleSheetResolver</code> directive: <code>http</code> (the default)
+ * fetches them from the network, <code>mapped</code> reads them from local
+ * directories or the classpath, <code>memory</code> serves them from a map
+ * filled by the application, and anything else is taken as the name of a
+ * class implementing this interface with a public no-argument constructor.
+ * 
+ * Implementations are shared by all scans using a policy and must be safe
+ * to use from several threads.
+ * 
+ * @see org.owasp.validator.html.Policy#getStyleSheetResolver()
+ */
+public interface StyleSheetResolver {
+
+	/**
+	 * Opens a stylesheet for reading. The contents need not have arrived
+	 * yet; the scanner reads them as it parses, and stops reading once the
+	 * size limit or the time allowed for imports runs out.
+	 * 
+	 * @param uri
+	 *            the absolute URI of the stylesheet
+	 * @param timeout
+	 *            how long to wait for the stylesheet to answer, and for each
+	 *            read from it, in milliseconds
+	 * @return the opened stylesheet
+	 * @throws IOException
+	 *             if the stylesheet cannot be had
+	 */
+	public StyleSheetSource open(URI uri, int timeout) throws IOException;
+
+	/**
+	 * @return true if stylesheets are read without going out to the
+	 *         network, in which case there is nothing to gain from fetching
+	 *         several of them at once or from caching them
+	 */
+	public boolean isLocal();
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.owasp.validator.css;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An imported stylesheet opened by a <code>StyleSheetResolver</code>. The
+ * scanner reads it while parsing, so it is never held in memory as a whole,
+ * and closes it when done.
+ */
+public class StyleSheetSource {
+
+	private final InputStream in;
+	private final String charset;
+	private final long contentLength;
+
+	/**
+	 * @param in
+	 *            the contents of the stylesheet
+	 * @param charset
+	 *            the character encoding of the stylesheet, or null if it is
+	 *            not known, in which case the platform's default is used
+	 * @param contentLength
+	 *            the size of the stylesheet in bytes, or -1 if it is not
+	 *            known up front
+	 */
+	public StyleSheetSource(InputStream in, String charset, long contentLength) {
+		this.in = in;
+		this.charset = charset;
+		this.contentLength = contentLength;
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Releases whatever the stylesheet was read from. Called once, whether
+	 * or not the stylesheet was read to the end.
+	 */
+	public void close() {
+		try {
+			in.close();
+		} catch (IOException ioe) {
+			// nothing more to read from it anyway
+		}
+	}
+}
@@ -30,12 +30,21 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.List;
 
+import org.owasp.validator.html.scan.AbstractAntiSamyScanner;
 import org.owasp.validator.html.scan.AntiSamyDOMScanner;
 import org.owasp.validator.html.scan.AntiSamySAXScanner;
+import org.owasp.validator.html.scan.AsyncScanner;
+import org.owasp.validator.html.scan.BatchScanner;
 import org.owasp.validator.html.scan.Constants;
+import org.owasp.validator.html.scan.ScanSession;
+import org.xml.sax.ContentHandler;
 
 /**
  * 
@@ -58,6 +67,10 @@ public class AntiSamy {
 
 	private Policy policy = null;
 
+	private AsyncScanner asyncScanner = null;
+
+	private Boolean retainDocumentFragment = null;
+
 	public AntiSamy() {
 	}
 
@@ -104,16 +117,207 @@ public class AntiSamy {
 	 * This method wraps <code>scan()</code> using the Policy object passed in.
 	 */
 	public CleanResults scan(String taintedHTML, Policy policy) throws ScanException, PolicyException {
-		return new AntiSamyDOMScanner(policy).scan(taintedHTML, inputEncoding, outputEncoding);
+		return this.scan(taintedHTML, policy, DOM);
 	}
 
 	public CleanResults scan(String taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
+		return this.scan(taintedHTML, policy, scanType, null);
+	}
+
+	/**
+	 * Scans with the given policy and sends the clean markup to a SAX
+	 * <code>ContentHandler</code> as it is produced, instead of serializing
+	 * it, so a consumer that takes SAX input does not have to parse the
+	 * clean HTML again. A handler that is also a <code>LexicalHandler</code>
+	 * gets comments and CDATA sections as well; one that only needs a few
+	 * callbacks can extend <code>org.xml.sax.helpers.DefaultHandler</code>.
+	 * 
+	 * @param handler
+	 *            Receives the clean markup, or null to serialize it as usual.
+	 * @return The results of the scan, without clean HTML when a handler
+	 *         was given.
+	 */
+	public CleanResults scan(String taintedHTML, Policy policy, int scanType, ContentHandler handler) throws ScanException, PolicyException {
+
+		AbstractAntiSamyScanner scanner;
 
 		if (scanType == DOM) {
-			return new AntiSamyDOMScanner(policy).scan(taintedHTML, inputEncoding, outputEncoding);
+			scanner = new AntiSamyDOMScanner(policy);
 		} else {
-			return new AntiSamySAXScanner(policy).scan(taintedHTML, inputEncoding, outputEncoding);
+			scanner = new AntiSamySAXScanner(policy);
+		}
+
+		scanner.setRetainDocumentFragment(retainDocumentFragment);
+		scanner.setContentHandler(handler);
+
+		return scanner.scan(taintedHTML, inputEncoding, outputEncoding);
+	}
+
+	/**
+	 * Scans input that may be too large to hold in memory, such as a long
+	 * newsletter, with the loaded policy. See
+	 * <code>scan(Reader, Writer, Policy)</code>.
+	 */
+	public CleanResults scan(Reader taintedHTML, Writer cleanHTML) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+
+		return this.scan(taintedHTML, cleanHTML, this.policy);
+	}
+
+	/**
+	 * Scans input that may be too large to hold in memory. The input is read
+	 * and the clean HTML written as the SAX engine goes, so memory use does
+	 * not grow with the size of the document. The policy's
+	 * <code>maxStreamInputSize</code> limits the input instead of
+	 * <code>maxInputSize</code>.
+	 * 
+	 * @param taintedHTML
+	 *            Untrusted HTML which may contain malicious code.
+	 * @param cleanHTML
+	 *            Receives the clean HTML; it is flushed but not closed, and
+	 *            should be buffered.
+	 * @return The results of the scan, without clean HTML.
+	 */
+	public CleanResults scan(Reader taintedHTML, Writer cleanHTML, Policy policy) throws ScanException, PolicyException {
+
+		AntiSamySAXScanner scanner = new AntiSamySAXScanner(policy);
+
+		return scanner.scan(taintedHTML, cleanHTML, outputEncoding);
+	}
+
+	/**
+	 * Starts scanning a document that arrives in pieces, with the loaded
+	 * policy. See <code>startSession(Writer, Policy)</code>.
+	 */
+	public ScanSession startSession(Writer cleanHTML) throws PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+
+		return this.startSession(cleanHTML, this.policy);
+	}
+
+	/**
+	 * Starts scanning a document that arrives in pieces, such as the
+	 * contents of an editor sent as the user types. Each piece passed to
+	 * <code>ScanSession.feed()</code> is sanitized as it comes and its clean
+	 * HTML written out, so the document does not have to be scanned again
+	 * from the start every time it grows. The session must be ended with
+	 * <code>finish()</code> or <code>close()</code>: each session scans on a
+	 * thread of its own, which a session dropped without either keeps until
+	 * the policy's <code>sessionIdleTimeout</code> has passed.
+	 * 
+	 * @param cleanHTML
+	 *            Receives the clean HTML of the document as it is produced.
+	 */
+	public ScanSession startSession(Writer cleanHTML, Policy policy) {
+		return new ScanSession(policy, cleanHTML, outputEncoding);
+	}
+
+	/**
+	 * Scans a batch of inputs with the loaded policy. One scanner, with its
+	 * parser and serializer, is set up for the whole batch instead of once
+	 * per input, which matters when sanitizing many small fragments.
+	 * 
+	 * @param taintedHTML
+	 *            A List of Strings of untrusted HTML.
+	 * @return A <code>BatchCleanResults</code> object holding the results of
+	 *         each scan in input order, and statistics for the batch.
+	 * @throws <code>ScanException</code> When there is a problem encountered
+	 *         while scanning one of the inputs; the batch is abandoned.
+	 * @throws <code>PolicyException</code> When no policy is loaded.
+	 */
+	public BatchCleanResults scanAll(List taintedHTML) throws ScanException, PolicyException {
+		return this.scanAll(taintedHTML.iterator());
+	}
+
+	public BatchCleanResults scanAll(Iterator taintedHTML) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
 		}
+
+		return this.scanAll(taintedHTML, this.policy, SAX);
+	}
+
+	public BatchCleanResults scanAll(List taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
+		return this.scanAll(taintedHTML.iterator(), policy, scanType);
+	}
+
+	/**
+	 * Scans every String the Iterator returns, in order, using a single
+	 * scanner of the given type.
+	 */
+	public BatchCleanResults scanAll(Iterator taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
+		return this.scanAll(taintedHTML, policy, scanType, 1, null);
+	}
+
+	/**
+	 * Scans a batch spread over several threads, each with a scanner of its
+	 * own. The results are still returned in input order.
+	 * 
+	 * @param threads
+	 *            The number of threads to scan with, usually the number of
+	 *            available processors.
+	 */
+	public BatchCleanResults scanAll(List taintedHTML, Policy policy, int scanType, int threads) throws ScanException, PolicyException {
+		return this.scanAll(taintedHTML.iterator(), policy, scanType, threads, null);
+	}
+
+	/**
+	 * Scans a batch spread over several threads, handing each result to the
+	 * listener in input order as soon as it is ready. Only a bounded number
+	 * of inputs is read ahead of the listener, so the Iterator may be
+	 * unbounded.
+	 * 
+	 * @param threads
+	 *            The number of threads to scan with; 1 scans on the calling
+	 *            thread.
+	 * @param listener
+	 *            Receives the results, or null to collect them in the
+	 *            returned <code>BatchCleanResults</code>.
+	 */
+	public BatchCleanResults scanAll(Iterator taintedHTML, Policy policy, int scanType, int threads, BatchScanListener listener) throws ScanException, PolicyException {
+		BatchScanner scanner = new BatchScanner(policy, scanType, inputEncoding, outputEncoding);
+		scanner.setRetainDocumentFragment(retainDocumentFragment);
+		return scanner.scan(taintedHTML, threads, listener);
+	}
+
+	/**
+	 * Scans in the background and returns straight away, for servers whose
+	 * request threads must not block. The scan runs on a bounded pool of
+	 * worker threads (see <code>setAsyncScanner()</code>), and that includes
+	 * fetching any imported stylesheets.
+	 * 
+	 * @param callback
+	 *            Told about the outcome once the scan is done; may be null if
+	 *            the returned <code>ScanFuture</code> is used instead.
+	 * @return A <code>ScanFuture</code> that holds the results once the scan
+	 *         is done.
+	 * @throws <code>PolicyException</code> When no policy is loaded.
+	 */
+	public ScanFuture scanAsync(String taintedHTML, ScanCallback callback) throws PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+
+		return this.scanAsync(taintedHTML, this.policy, SAX, callback);
+	}
+
+	public ScanFuture scanAsync(String taintedHTML, Policy policy, int scanType, ScanCallback callback) {
+
+		AsyncScanner scanner = asyncScanner;
+
+		if (scanner == null) {
+			scanner = AsyncScanner.getDefault();
+		}
+
+		return scanner.submit(taintedHTML, policy, scanType, inputEncoding, outputEncoding, retainDocumentFragment, callback);
 	}
 
 	/**
@@ -242,4 +446,36 @@ public class AntiSamy {
 	public void setPolicy(Policy policy) {
 		this.policy = policy;
 	}
+
+	public Boolean getRetainDocumentFragment() {
+		return retainDocumentFragment;
+	}
+
+	/**
+	 * Overrides the policy's <code>retainDocumentFragment</code> directive
+	 * for scans made through this object. A <code>CleanResults</code> that
+	 * does not keep the DOM of its scan holds little more than the clean
+	 * HTML, and parses a fragment from it only if
+	 * <code>getCleanXMLDocumentFragment()</code> is called.
+	 * 
+	 * @param retainDocumentFragment
+	 *            Whether DOM scan results keep their fragment, or null to go
+	 *            by the policy.
+	 */
+	public void setRetainDocumentFragment(Boolean retainDocumentFragment) {
+		this.retainDocumentFragment = retainDocumentFragment;
+	}
+
+	public AsyncScanner getAsyncScanner() {
+		return asyncScanner;
+	}
+
+	/**
+	 * Sets the worker pool <code>scanAsync()</code> uses. By default all
+	 * AntiSamy objects share one with a worker per available processor.
+	 */
+	public void setAsyncScanner(AsyncScanner asyncScanner) {
+		this.asyncScanner = asyncScanner;
+	}
+
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * This class contains the results of a batch scan: the
+ * <code>CleanResults</code> of every input, in the order the inputs were
+ * given, and some throughput statistics for the batch as a whole.
+ * 
+ * @see AntiSamy#scanAll(java.util.List)
+ */
+
+public class BatchCleanResults {
+
+	private ArrayList results;
+	private Date startOfBatch;
+	private Date endOfBatch;
+	private int numberOfScans;
+	private int numberOfErrors;
+	private long inputLength;
+
+	public BatchCleanResults(Date startOfBatch, Date endOfBatch, ArrayList results, int numberOfScans, int numberOfErrors, long inputLength) {
+		this.startOfBatch = startOfBatch;
+		this.endOfBatch = endOfBatch;
+		this.results = results;
+		this.numberOfScans = numberOfScans;
+		this.numberOfErrors = numberOfErrors;
+		this.inputLength = inputLength;
+	}
+
+	/**
+	 * Return the results of the individual scans.
+	 * 
+	 * @return An ArrayList of <code>CleanResults</code> objects, one per
+	 *         input, in input order. The list is empty if the results were
+	 *         handed to a <code>BatchScanListener</code> instead.
+	 */
+	public ArrayList getResults() {
+		return results;
+	}
+
+	/**
+	 * Return the results of a single scan.
+	 * 
+	 * @param index
+	 *            The position of the input in the batch.
+	 */
+	public CleanResults getResults(int index) {
+		return (CleanResults) results.get(index);
+	}
+
+	/**
+	 * Return the number of inputs that were scanned.
+	 */
+	public int getNumberOfScans() {
+		return numberOfScans;
+	}
+
+	/**
+	 * Return the number of errors encountered over all the scans.
+	 */
+	public int getNumberOfErrors() {
+		return numberOfErrors;
+	}
+
+	/**
+	 * Return the total number of characters of input that were scanned.
+	 */
+	public long getInputLength() {
+		return inputLength;
+	}
+
+	public Date getStartOfBatch() {
+		return startOfBatch;
+	}
+
+	public Date getEndOfBatch() {
+		return endOfBatch;
+	}
+
+	/**
+	 * Return the time elapsed during the batch.
+	 * 
+	 * @return A double primitive indicating the amount of time elapsed between
+	 *         the beginning and end of the batch in seconds.
+	 */
+	public double getScanTime() {
+		return (endOfBatch.getTime() - startOfBatch.getTime()) / 1000D;
+	}
+
+	/**
+	 * Return the average number of inputs scanned per second, or 0 if the
+	 * batch finished too quickly to be measured.
+	 */
+	public double getScansPerSecond() {
+		double scanTime = getScanTime();
+		return scanTime > 0 ? numberOfScans / scanTime : 0;
+	}
+
+	/**
+	 * Return the average number of input characters scanned per second, or 0
+	 * if the batch finished too quickly to be measured.
+	 */
+	public double getCharactersPerSecond() {
+		double scanTime = getScanTime();
+		return scanTime > 0 ? inputLength / scanTime : 0;
+	}
+
+}
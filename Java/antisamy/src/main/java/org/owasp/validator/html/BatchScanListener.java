@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html;
+
+/**
+ * Receives the results of a batch scan one at a time, in input order, as
+ * soon as they are available. Handing results to a listener instead of
+ * collecting them lets a batch run over an unbounded <code>Iterator</code>:
+ * the scanner only reads ahead a fixed number of inputs, so a slow listener
+ * slows down the scan rather than letting results pile up in memory.
+ * 
+ * When the batch is scanned by several threads the listener is called from
+ * those threads, but never by two of them at the same time.
+ * 
+ * @see AntiSamy#scanAll(java.util.Iterator, Policy, int, int, BatchScanListener)
+ */
+
+public interface BatchScanListener {
+
+	/**
+	 * Called once for every input of the batch.
+	 * 
+	 * @param index
+	 *            The position of the input in the batch.
+	 * @param results
+	 *            The results of scanning that input.
+	 */
+	public void scanned(int index, CleanResults results);
+
+}
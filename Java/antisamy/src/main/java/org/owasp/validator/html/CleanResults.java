@@ -24,10 +24,15 @@
 
 package org.owasp.validator.html;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Date;
 
+import org.apache.xerces.dom.DocumentImpl;
+import org.cyberneko.html.parsers.DOMFragmentParser;
+import org.owasp.validator.css.StyleSheetImports;
 import org.w3c.dom.DocumentFragment;
+import org.xml.sax.InputSource;
 
 /**
  * This class contains the results of a scan.
@@ -44,10 +49,15 @@ public class CleanResults {
 
 	private ArrayList errorMessages = new ArrayList();
 	private String cleanHTML;
+	private String cleanText;
 	private Date startOfScan;
 	private Date endOfScan;
 
 	private DocumentFragment cleanXMLDocumentFragment;
+	private boolean buildDocumentFragmentOnDemand = false;
+	private boolean truncated = false;
+
+	private StyleSheetImports styleSheetImports;
 
 	/*
 	 * For extension.
@@ -76,18 +86,95 @@ public class CleanResults {
 		this.startOfScan = date;
 	}
 
-	public DocumentFragment getCleanXMLDocumentFragment() {
+	/**
+	 * Return the clean HTML as a DOM fragment. When the scan did not keep
+	 * the fragment it built (see the <code>retainDocumentFragment</code>
+	 * directive), one is parsed from the clean HTML the first time this is
+	 * called, and kept from then on.
+	 * 
+	 * @return The fragment, or null if the scan did not produce one.
+	 */
+	public synchronized DocumentFragment getCleanXMLDocumentFragment() {
+
+		if (cleanXMLDocumentFragment == null && buildDocumentFragmentOnDemand && cleanHTML != null) {
+			try {
+				DOMFragmentParser parser = new DOMFragmentParser();
+				parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+				parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
+
+				DocumentFragment fragment = new DocumentImpl().createDocumentFragment();
+				parser.parse(new InputSource(new StringReader(cleanHTML)), fragment);
+				cleanXMLDocumentFragment = fragment;
+			} catch (Exception e) {
+				// a parser that will not take the clean HTML leaves no fragment
+			}
+			buildDocumentFragmentOnDemand = false;
+		}
+
 		return cleanXMLDocumentFragment;
 	}
 
+	/**
+	 * Sets whether <code>getCleanXMLDocumentFragment()</code> parses a
+	 * fragment from the clean HTML when the scan did not hand over its own.
+	 */
+	public void setBuildDocumentFragmentOnDemand(boolean buildDocumentFragmentOnDemand) {
+		this.buildDocumentFragmentOnDemand = buildDocumentFragmentOnDemand;
+	}
+
 	public void setCleanHTML(String cleanHTML) {
 		this.cleanHTML = cleanHTML;
 	}
 
+	/**
+	 * Return whether the clean HTML was cut short because it reached the
+	 * policy's <code>maxOutputSize</code>. Elements open at that point are
+	 * still closed, and the rest of the input was not scanned.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
+	/**
+	 * Return the text of the clean HTML, with entities decoded, style
+	 * sheets left out and a line break for every block element, when the
+	 * policy's <code>extractText</code> directive is on.
+	 * 
+	 * @return The text, or null if it was not asked for.
+	 */
+	public String getCleanText() {
+		return cleanText;
+	}
+
+	public void setCleanText(String cleanText) {
+		this.cleanText = cleanText;
+	}
+
+	/**
+	 * Return what the scan imported with <code>@import</code> when
+	 * <code>embedStyleSheets</code> is on.
+	 * 
+	 * @return The stylesheet imports of the scan, or null if the results do
+	 *         not come from scanning a document.
+	 */
+	public StyleSheetImports getStyleSheetImports() {
+		return styleSheetImports;
+	}
+
+	public void setStyleSheetImports(StyleSheetImports styleSheetImports) {
+		this.styleSheetImports = styleSheetImports;
+	}
+
 	/**
 	 * Return the filtered HTML as a String.
 	 * 
-	 * @return A String object which contains the serialized, safe HTML.
+	 * @return A String object which contains the serialized, safe HTML, or
+	 *         null if the scan sent its output to a
+	 *         <code>ContentHandler</code> instead.
 	 */
 	public String getCleanHTML() {
 		return cleanHTML;
@@ -33,6 +33,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -40,6 +42,13 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.owasp.validator.css.CssSelectorRules;
+import org.owasp.validator.css.HttpStyleSheetResolver;
+import org.owasp.validator.css.ImportedStyleSheetCache;
+import org.owasp.validator.css.InMemoryStyleSheetResolver;
+import org.owasp.validator.css.MappedStyleSheetResolver;
+import org.owasp.validator.css.StyleSheetResolver;
+import org.owasp.validator.css.InlineStyleCache;
 import org.owasp.validator.html.model.AntiSamyPattern;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Property;
@@ -71,11 +80,19 @@ public class Policy {
 	private static final String DEFAULT_ONINVALID = "removeAttribute";
 
 	public static final int DEFAULT_MAX_INPUT_SIZE = 100000;
+	public static final int DEFAULT_MAX_STREAM_INPUT_SIZE = 64 * 1024 * 1024;
 	public static final int DEFAULT_MAX_STYLESHEET_IMPORTS = 1;
+	public static final int DEFAULT_INLINE_STYLE_CACHE_SIZE = 1000;
+	public static final int DEFAULT_STYLESHEET_CACHE_SIZE = 100;
+	public static final long DEFAULT_STYLESHEET_CACHE_TTL = 5 * 60 * 1000;
+	public static final long DEFAULT_STYLESHEET_FAILURE_CACHE_TTL = 30 * 1000;
+	public static final long DEFAULT_SESSION_IDLE_TIMEOUT = 5 * 60 * 1000;
 
 	public static final String OMIT_XML_DECLARATION = "omitXmlDeclaration";
 	public static final String OMIT_DOCTYPE_DECLARATION = "omitDoctypeDeclaration";
 	public static final String MAX_INPUT_SIZE = "maxInputSize";
+	public static final String MAX_OUTPUT_SIZE = "maxOutputSize";
+	public static final String MAX_STREAM_INPUT_SIZE = "maxStreamInputSize";
 	public static final String USE_XHTML = "useXHTML";
 	public static final String FORMAT_OUTPUT = "formatOutput";
 	public static final String EMBED_STYLESHEETS = "embedStyleSheets";
@@ -86,6 +103,17 @@ public class Policy {
 	public static final String PRESERVE_COMMENTS = "preserveComments";
 	public static final String ENTITY_ENCODE_INTL_CHARS = "entityEncodeIntlChars";
 	public static final String ENCODE_TAGS = "onUnknownTag";
+	public static final String PLAIN_TEXT_FAST_PATH = "plainTextFastPath";
+	public static final String INLINE_STYLE_CACHE_SIZE = "inlineStyleCacheSize";
+	public static final String INLINE_STYLE_FAST_PATH = "inlineStyleFastPath";
+	public static final String STYLESHEET_CACHE_TTL = "styleSheetCacheTTL";
+	public static final String STYLESHEET_FAILURE_CACHE_TTL = "styleSheetFailureCacheTTL";
+	public static final String STYLESHEET_RESOLVER = "styleSheetResolver";
+	public static final String STYLESHEET_MAPPINGS = "styleSheetMappings";
+	public static final String MAX_STYLESHEET_IMPORT_TIME = "maxStyleSheetImportTime";
+	public static final String RETAIN_DOCUMENT_FRAGMENT = "retainDocumentFragment";
+	public static final String EXTRACT_TEXT = "extractText";
+	public static final String SESSION_IDLE_TIMEOUT = "sessionIdleTimeout";
 	
 	public static final String ACTION_VALIDATE	= "validate";
 	public static final String ACTION_FILTER	= "filter";
@@ -106,6 +134,18 @@ public class Policy {
     private ArrayList allowedEmptyTags;
     private ArrayList requiresClosingTags;
 
+    /** Lower-cased copy of <code>allowedEmptyTags</code> for constant time lookups */
+    private Set allowedEmptyTagSet = new HashSet();
+
+	/** Bumped whenever the policy is changed through its own setters, so cached results from before the change are not used */
+	private volatile int version = 0;
+
+	/** Created when the policy is loaded and again when its size is changed, so scans can read it without locking */
+	private volatile InlineStyleCache inlineStyleCache = null;
+	private CssSelectorRules cssSelectorRules = null;
+	private ImportedStyleSheetCache importedStyleSheetCache = null;
+	private StyleSheetResolver styleSheetResolver = null;
+
 	/** The path to the base policy file, used to resolve relative paths when reading included files */
 	private static URL baseUrl					= null;
 
@@ -114,7 +154,8 @@ public class Policy {
 	}
 
 	/**
-	 * Retrieves a Tag from the Policy.
+	 * Retrieves a Tag from the Policy. Changing the Tag returned does not
+	 * change the policy's version; see <code>getVersion()</code>.
 	 * @param tagName The name of the Tag to look up.
 	 * @return The Tag associated with the name specified, or null if none is found.
 	 */
@@ -125,7 +166,22 @@ public class Policy {
 	}
 
 	/**
-	 * Retrieves a CSS Property from the Policy.
+	 * Retrieves a Tag from the Policy without folding the case of the name.
+	 * The scanners lower-case each element name once and use this method so
+	 * the name is not folded again on every lookup.
+	 * @param lowercaseTagName The lower-cased name of the Tag to look up.
+	 * @return The Tag associated with the name specified, or null if none is found.
+	 */
+	public Tag getTagByLowercaseName(String lowercaseTagName) {
+
+		return (Tag) tagRules.get(lowercaseTagName);
+
+	}
+
+	/**
+	 * Retrieves a CSS Property from the Policy. Changing the Property
+	 * returned does not change the policy's version; see
+	 * <code>getVersion()</code>.
 	 * @param propertyName The name of the CSS Property to look up.
 	 * @return The CSS Property associated with the name specified, or null if none is found.
 	 */
@@ -258,6 +314,10 @@ public class Policy {
 			 */
 			parsePolicy(topLevelElement);
 
+			resolveCSSRules();
+
+			inlineStyleCache = newInlineStyleCache();
+			styleSheetResolver = newStyleSheetResolver();
 
 		} catch (SAXException e) {
 			throw new PolicyException(e);
@@ -299,6 +359,11 @@ public class Policy {
 			 */
 			parsePolicy(topLevelElement);
 
+			resolveCSSRules();
+
+			inlineStyleCache = newInlineStyleCache();
+			styleSheetResolver = newStyleSheetResolver();
+
 		} catch (SAXException e) {
 			throw new PolicyException(e);
 		} catch (ParserConfigurationException e) {
@@ -353,6 +418,11 @@ public class Policy {
 
         this.allowedEmptyTags = parseAllowedEmptyTags(allowedEmptyTagsListNode);
 
+        this.allowedEmptyTagSet = new HashSet();
+        for (int i = 0; i < allowedEmptyTags.size(); i++) {
+            allowedEmptyTagSet.add(((String) allowedEmptyTags.get(i)).toLowerCase());
+        }
+
         /**
          * Next, we read in those tags that must have a closing tag.
          */
@@ -958,6 +1028,73 @@ public class Policy {
 		}
 	}
 
+	/**
+	 * Link every CSS property to the properties named in its <shorthand-list>
+	 * and flatten its allowed values. This runs once all policy files are
+	 * parsed, so a shorthand may refer to a property defined later or in an
+	 * included policy. References to undefined properties are ignored.
+	 * @throws PolicyException If the shorthand references form a cycle.
+	 */
+	private void resolveCSSRules() throws PolicyException {
+
+		Iterator properties = cssRules.values().iterator();
+
+		while (properties.hasNext()) {
+			Property property = (Property) properties.next();
+			List refs = property.getShorthandRefs();
+			List shorthands = new ArrayList();
+
+			for (int i = 0; i < refs.size(); i++) {
+				Property shorthand = getPropertyByName((String) refs.get(i));
+				if (shorthand != null) {
+					shorthands.add(shorthand);
+				}
+			}
+
+			property.setShorthands((Property[]) shorthands.toArray(new Property[shorthands.size()]));
+		}
+
+		HashSet checked = new HashSet();
+		properties = cssRules.values().iterator();
+
+		while (properties.hasNext()) {
+			checkShorthandCycles((Property) properties.next(), new ArrayList(), checked);
+		}
+
+		properties = cssRules.values().iterator();
+
+		while (properties.hasNext()) {
+			((Property) properties.next()).compileAllowedValues();
+		}
+	}
+
+	private void checkShorthandCycles(Property property, List path, HashSet checked) throws PolicyException {
+
+		if (path.contains(property)) {
+			StringBuffer cycle = new StringBuffer();
+			for (int i = path.indexOf(property); i < path.size(); i++) {
+				cycle.append(((Property) path.get(i)).getName()).append(" -> ");
+			}
+			cycle.append(property.getName());
+
+			throw new PolicyException("CSS property '"+property.getName()+"' refers to itself through its shorthands: "+cycle);
+		}
+
+		if (checked.contains(property)) {
+			return;
+		}
+
+		path.add(property);
+
+		Property[] shorthands = property.getShorthands();
+		for (int i = 0; i < shorthands.length; i++) {
+			checkShorthandCycles(shorthands[i], path, checked);
+		}
+
+		path.remove(path.size() - 1);
+		checked.add(property);
+	}
+
 
 
 	/**
@@ -985,6 +1122,18 @@ public class Policy {
 
 	}
 
+	/**
+	 * Same as <code>getGlobalAttributeByName()</code>, but for callers that
+	 * have already lower-cased the attribute name.
+	 * @param lowercaseName The lower-cased name of the global-attribute we want to look up.
+	 * @return An Attribute associated with the global-attribute lookup name specified.
+	 */
+	public Attribute getGlobalAttributeByLowercaseName(String lowercaseName) {
+
+		return (Attribute) globalAttributes.get(lowercaseName);
+
+	}
+
 	/**
 	 * A simple method for returning on of the <common-attribute> entries by
 	 * name.
@@ -1005,6 +1154,16 @@ public class Policy {
         return (String[]) allowedEmptyTags.toArray(new String[allowedEmptyTags.size()]);
     }
 
+    /**
+     * Checks whether a tag is allowed to be empty without doing a linear
+     * search through <code>getAllowedEmptyTags()</code>.
+     * @param lowercaseTagName The lower-cased name of the tag.
+     * @return true if the tag is in the list of allowed empty tags.
+     */
+    public boolean isAllowedEmptyTag(String lowercaseTagName) {
+        return allowedEmptyTagSet.contains(lowercaseTagName);
+    }
+
     /**
      * Return all the tags that are required to be closed with an end tag, even if they have no child content.
      * @return A String array of all the tags that are required to be closed with an end tag, even if they have no child content.
@@ -1036,6 +1195,174 @@ public class Policy {
 	 */
 	public void setDirective(String name, String value) {
 		directives.put(name, value);
+		version++;
+
+		if (INLINE_STYLE_CACHE_SIZE.equals(name)) {
+			inlineStyleCache = newInlineStyleCache();
+		}
+
+		if (STYLESHEET_CACHE_TTL.equals(name) || STYLESHEET_FAILURE_CACHE_TTL.equals(name)) {
+			synchronized (this) {
+				importedStyleSheetCache = null;
+			}
+		}
+
+		if (STYLESHEET_RESOLVER.equals(name) || STYLESHEET_MAPPINGS.equals(name)) {
+			synchronized (this) {
+				styleSheetResolver = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns a number that changes every time the policy is changed through
+	 * <code>setDirective()</code>, <code>addTagRule()</code> or
+	 * <code>setStyleSheetResolver()</code>. Changes made directly to a Tag,
+	 * Attribute or Property taken from the policy do not change it, so
+	 * scanners and caches that were set up before such a change keep using
+	 * the old rules; put a changed Tag back with <code>addTagRule()</code>.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the cache of sanitized inline style values shared by all scans
+	 * using this policy. Its size is taken from the
+	 * <code>inlineStyleCacheSize</code> directive, or
+	 * <code>DEFAULT_INLINE_STYLE_CACHE_SIZE</code> if that is not set.
+	 * @return The cache, or null if the directive is 0 or less.
+	 */
+	public InlineStyleCache getInlineStyleCache() {
+		return inlineStyleCache;
+	}
+
+	private InlineStyleCache newInlineStyleCache() {
+
+		int size = DEFAULT_INLINE_STYLE_CACHE_SIZE;
+
+		try {
+			size = Integer.parseInt(getDirective(INLINE_STYLE_CACHE_SIZE));
+		} catch (NumberFormatException nfe) {}
+
+		if (size <= 0) {
+			return null;
+		}
+
+		return new InlineStyleCache(size);
+	}
+
+	/**
+	 * Returns where stylesheets imported with <code>@import</code> are read
+	 * from, as chosen by the <code>styleSheetResolver</code> directive:
+	 * <code>http</code> (the default), <code>mapped</code> (using the
+	 * mappings in the <code>styleSheetMappings</code> directive),
+	 * <code>memory</code>, or the name of a class implementing
+	 * <code>StyleSheetResolver</code>.
+	 * @return The resolver shared by all scans using this policy.
+	 * @throws IllegalStateException If the directive names no usable resolver.
+	 */
+	public synchronized StyleSheetResolver getStyleSheetResolver() {
+
+		if (styleSheetResolver == null) {
+			try {
+				styleSheetResolver = newStyleSheetResolver();
+			} catch (PolicyException pe) {
+				throw new IllegalStateException(pe.getMessage());
+			}
+		}
+
+		return styleSheetResolver;
+	}
+
+	/**
+	 * Use the given resolver for imported stylesheets instead of the one
+	 * chosen by the <code>styleSheetResolver</code> directive, until that
+	 * directive is set again.
+	 * @param resolver The resolver to use.
+	 */
+	public void setStyleSheetResolver(StyleSheetResolver resolver) {
+
+		synchronized (this) {
+			styleSheetResolver = resolver;
+		}
+
+		version++;
+	}
+
+	private StyleSheetResolver newStyleSheetResolver() throws PolicyException {
+
+		String name = getDirective(STYLESHEET_RESOLVER);
+
+		if (name == null || "http".equals(name)) {
+			return HttpStyleSheetResolver.getInstance();
+		}
+
+		if ("memory".equals(name)) {
+			return new InMemoryStyleSheetResolver();
+		}
+
+		try {
+			if ("mapped".equals(name)) {
+				return new MappedStyleSheetResolver(getDirective(STYLESHEET_MAPPINGS));
+			}
+
+			return (StyleSheetResolver) Class.forName(name).newInstance();
+
+		} catch (IllegalArgumentException e) {
+			throw new PolicyException(e.getMessage());
+		} catch (ClassCastException e) {
+			throw new PolicyException("Stylesheet resolver '"+name+"' does not implement StyleSheetResolver");
+		} catch (Exception e) {
+			throw new PolicyException("Stylesheet resolver '"+name+"' could not be created: "+e);
+		}
+	}
+
+	/**
+	 * Returns the cache of imported stylesheets shared by all scans using
+	 * this policy. Fetched stylesheets are kept for the number of
+	 * milliseconds in the <code>styleSheetCacheTTL</code> directive, and
+	 * failed fetches for the number in <code>styleSheetFailureCacheTTL</code>;
+	 * the defaults are <code>DEFAULT_STYLESHEET_CACHE_TTL</code> and
+	 * <code>DEFAULT_STYLESHEET_FAILURE_CACHE_TTL</code>.
+	 * @return The cache, or null if both directives are 0 or less.
+	 */
+	public synchronized ImportedStyleSheetCache getImportedStyleSheetCache() {
+
+		if (importedStyleSheetCache == null) {
+			long timeToLive = DEFAULT_STYLESHEET_CACHE_TTL;
+			long failureTimeToLive = DEFAULT_STYLESHEET_FAILURE_CACHE_TTL;
+
+			try {
+				timeToLive = Long.parseLong(getDirective(STYLESHEET_CACHE_TTL));
+			} catch (NumberFormatException nfe) {}
+
+			try {
+				failureTimeToLive = Long.parseLong(getDirective(STYLESHEET_FAILURE_CACHE_TTL));
+			} catch (NumberFormatException nfe) {}
+
+			if (timeToLive <= 0 && failureTimeToLive <= 0) {
+				return null;
+			}
+
+			importedStyleSheetCache = new ImportedStyleSheetCache(DEFAULT_STYLESHEET_CACHE_SIZE, timeToLive, failureTimeToLive);
+		}
+
+		return importedStyleSheetCache;
+	}
+
+	/**
+	 * Returns the CSS selector patterns of this policy and the memo of
+	 * selectors already validated against them, shared by all scans using
+	 * this policy.
+	 */
+	public synchronized CssSelectorRules getCssSelectorRules() {
+
+		if (cssSelectorRules == null) {
+			cssSelectorRules = new CssSelectorRules(this);
+		}
+
+		return cssSelectorRules;
 	}
 
 	/**
@@ -1053,6 +1380,60 @@ public class Policy {
 		return maxInputSize;
 	}
 
+	/**
+	 * Returns the maximum input size, in characters, of a streamed scan (see
+	 * <code>AntiSamy.scan(Reader, Writer, Policy)</code>). Streamed input is
+	 * never held in memory as a whole, so this is checked instead of
+	 * <code>maxInputSize</code>. If this value is not specified by the policy,
+	 * the <code>DEFAULT_MAX_STREAM_INPUT_SIZE</code> is used; a value that is
+	 * not positive means no limit.
+	 * @return the maximum streamed input size, or 0 for no limit.
+	 */
+	public int getMaxStreamInputSize() {
+		int maxStreamInputSize = Policy.DEFAULT_MAX_STREAM_INPUT_SIZE;
+
+		try {
+			maxStreamInputSize = Integer.parseInt(getDirective(MAX_STREAM_INPUT_SIZE));
+		} catch (NumberFormatException nfe) {}
+
+		return maxStreamInputSize > 0 ? maxStreamInputSize : 0;
+	}
+
+	/**
+	 * Returns how long, in milliseconds, a scan session (see
+	 * <code>AntiSamy.startSession()</code>) may go without input before it
+	 * is closed and its thread let go. If this value is not specified by the
+	 * policy, the <code>DEFAULT_SESSION_IDLE_TIMEOUT</code> is used; a value
+	 * that is not positive means sessions never time out.
+	 * @return the idle timeout, or 0 for none.
+	 */
+	public long getSessionIdleTimeout() {
+		long sessionIdleTimeout = Policy.DEFAULT_SESSION_IDLE_TIMEOUT;
+
+		try {
+			sessionIdleTimeout = Long.parseLong(getDirective(SESSION_IDLE_TIMEOUT));
+		} catch (NumberFormatException nfe) {}
+
+		return sessionIdleTimeout > 0 ? sessionIdleTimeout : 0;
+	}
+
+	/**
+	 * Returns the maximum output size, in characters of clean HTML. Once
+	 * a scan has written that much, it stops and closes the elements still
+	 * open. If this value is not specified by the policy, or is not
+	 * positive, the output is not limited.
+	 * @return the maximum output size, or 0 for no limit.
+	 */
+	public int getMaxOutputSize() {
+		int maxOutputSize = 0;
+
+		try {
+			maxOutputSize = Integer.parseInt(getDirective(MAX_OUTPUT_SIZE));
+		} catch (NumberFormatException nfe) {}
+
+		return maxOutputSize > 0 ? maxOutputSize : 0;
+	}
+
 	/**
 	 * Set the base directory to use to resolve relative file paths when including other policy files.
 	 *
@@ -1110,6 +1491,7 @@ public class Policy {
 
 	public void addTagRule(Tag tag) {
 		this.tagRules.put(tag.getName().toLowerCase(), tag);
+		version++;
 	}
 
 	/**
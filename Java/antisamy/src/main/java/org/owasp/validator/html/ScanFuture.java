@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html;
+
+/**
+ * The pending result of an asynchronous scan. The outcome can be collected
+ * with <code>get()</code>, or handed to a <code>ScanCallback</code> once it
+ * is known.
+ * 
+ * @see AntiSamy#scanAsync(String, Policy, int, ScanCallback)
+ */
+public class ScanFuture {
+
+	private final ScanCallback callback;
+
+	private boolean done = false;
+	private CleanResults results;
+	private ScanException exception;
+
+	/**
+	 * Futures are created, and settled, by the scanner that runs the scan.
+	 */
+	protected ScanFuture(ScanCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Return true if the scan has finished, successfully or not.
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Wait for the scan to finish and return its results. This blocks, so it
+	 * should not be called from threads that must not wait, such as an event
+	 * loop; use a <code>ScanCallback</code> there instead.
+	 * 
+	 * @throws ScanException
+	 *             The exception the scan failed with.
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted.
+	 */
+	public synchronized CleanResults get() throws ScanException, InterruptedException {
+		while (!done) {
+			wait();
+		}
+		if (exception != null) {
+			throw exception;
+		}
+		return results;
+	}
+
+	/**
+	 * Like <code>get()</code>, but gives up after the given time.
+	 * 
+	 * @return The results, or null if the scan is still running.
+	 */
+	public synchronized CleanResults get(long timeoutMillis) throws ScanException, InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (!done && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		if (!done) {
+			return null;
+		}
+		return get();
+	}
+
+	/**
+	 * Settles the future with the results of the scan and tells the
+	 * callback. Only the first outcome counts.
+	 */
+	protected void complete(CleanResults results) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.results = results;
+			this.done = true;
+			notifyAll();
+		}
+		if (callback != null) {
+			callback.completed(results);
+		}
+	}
+
+	/**
+	 * Settles the future with the exception the scan failed with and tells
+	 * the callback. Only the first outcome counts.
+	 */
+	protected void fail(ScanException exception) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.exception = exception;
+			this.done = true;
+			notifyAll();
+		}
+		if (callback != null) {
+			callback.failed(exception);
+		}
+	}
+
+}
@@ -29,6 +29,8 @@
 package org.owasp.validator.html.model;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -52,6 +54,10 @@ public class Property {
 
 	private List shorthandRefs = new ArrayList();
 
+	private Property[] shorthands = new Property[0];
+
+	private volatile AllowedValues flattened = null;
+
 	public Property(String name) {
 		this.name = name;
 	}
@@ -62,6 +68,7 @@ public class Property {
 	 */
 	public void addAllowedValue(String safeValue) {
 		this.allowedValues.add(safeValue);
+		this.flattened = null;
 	}
 	
 	/**
@@ -70,6 +77,7 @@ public class Property {
 	 */
 	public void addAllowedRegExp(Pattern safeRegExpValue) {
 		this.allowedRegExp.add(safeRegExpValue);
+		this.flattened = null;
 	}
 	
 	/**
@@ -95,6 +103,7 @@ public class Property {
 	 */
 	public void setAllowedRegExp(List allowedRegExp) {
 		this.allowedRegExp = allowedRegExp;
+		this.flattened = null;
 	}
 
 	/**
@@ -110,6 +119,7 @@ public class Property {
 	 */
 	public void setAllowedValues(List allowedValues) {
 		this.allowedValues = allowedValues;
+		this.flattened = null;
 	}
 
 	/**
@@ -126,6 +136,167 @@ public class Property {
 	public void setShorthandRefs(List shorthandRefs) {
 		this.shorthandRefs = shorthandRefs;
 	}
+
+	/**
+	 * @return The properties the shorthand references were resolved to when
+	 *         the policy was loaded.
+	 */
+	public Property[] getShorthands() {
+		return shorthands;
+	}
+
+	/**
+	 * Link this property to the properties named by its shorthand references.
+	 * This is done by the <code>Policy</code> once all properties are known,
+	 * after it has made sure the references contain no cycle.
+	 * @param shorthands The referenced properties, in declaration order.
+	 */
+	public void setShorthands(Property[] shorthands) {
+		this.shorthands = shorthands;
+		this.flattened = null;
+	}
+
+	/**
+	 * Flatten the literals and regular expressions of this property and of
+	 * every property reachable through its shorthands into one set of
+	 * literals and one list of regular expressions. The policy does this for
+	 * every property once it is loaded; changing a property afterwards
+	 * flattens it again on next use, but changes made to a referenced
+	 * property are not seen by the properties referring to it.
+	 */
+	public void compileAllowedValues() {
+		this.flattened = new AllowedValues(this);
+	}
+
+	/**
+	 * Check a value against the flattened literals and regular expressions
+	 * of this property.
+	 * @param value The value to check, already in lower case. This may be a
+	 *        buffer the value was formatted into; no String is made of it.
+	 * @return true if the value is allowed.
+	 */
+	public boolean isAllowedValue(CharSequence value) {
+
+		AllowedValues allowed = flattened;
+
+		if (allowed == null) {
+			allowed = new AllowedValues(this);
+			flattened = allowed;
+		}
+
+		return allowed.matches(value);
+	}
+
+	private static class AllowedValues {
+
+		private final HashSet literals = new HashSet();
+		private final Pattern[] patterns;
+
+		/*
+		 * The literals in an open addressing table indexed by their
+		 * String.hashCode(), so a CharSequence can be looked up without
+		 * turning it into a String first.
+		 */
+		private final String[] literalTable;
+
+		AllowedValues(Property property) {
+			List regexps = new ArrayList();
+			collect(property, regexps, new HashSet());
+			patterns = (Pattern[]) regexps.toArray(new Pattern[regexps.size()]);
+
+			int size = literals.isEmpty() ? 0 : 2;
+			while (size > 0 && size < literals.size() * 2) {
+				size <<= 1;
+			}
+
+			literalTable = new String[size];
+			Iterator it = literals.iterator();
+			while (it.hasNext()) {
+				String literal = (String) it.next();
+				int i = literal.hashCode() & (size - 1);
+				while (literalTable[i] != null) {
+					i = (i + 1) & (size - 1);
+				}
+				literalTable[i] = literal;
+			}
+		}
+
+		private void collect(Property property, List regexps, HashSet visited) {
+
+			if (!visited.add(property)) {
+				return;
+			}
+
+			for (int i = 0; i < property.allowedValues.size(); i++) {
+				Object literal = property.allowedValues.get(i);
+				if (literal != null) {
+					literals.add(literal);
+				}
+			}
+
+			for (int i = 0; i < property.allowedRegExp.size(); i++) {
+				Object pattern = property.allowedRegExp.get(i);
+				if (pattern != null && !regexps.contains(pattern)) {
+					regexps.add(pattern);
+				}
+			}
+
+			for (int i = 0; i < property.shorthands.length; i++) {
+				collect(property.shorthands[i], regexps, visited);
+			}
+		}
+
+		boolean matches(CharSequence value) {
+
+			if (isLiteral(value)) {
+				return true;
+			}
+
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].matcher(value).matches()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private boolean isLiteral(CharSequence value) {
+
+			if (literalTable.length == 0) {
+				return false;
+			}
+
+			int length = value.length();
+			int hash = 0;
+			if (value instanceof String) {
+				hash = value.hashCode();
+			} else {
+				for (int i = 0; i < length; i++) {
+					hash = 31 * hash + value.charAt(i);
+				}
+			}
+
+			int mask = literalTable.length - 1;
+			for (int i = hash & mask; literalTable[i] != null; i = (i + 1) & mask) {
+				String literal = literalTable[i];
+				if (literal.length() == length && equals(literal, value)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private static boolean equals(String literal, CharSequence value) {
+			for (int i = 0; i < literal.length(); i++) {
+				if (literal.charAt(i) != value.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
 	
 	/**
 	 * 
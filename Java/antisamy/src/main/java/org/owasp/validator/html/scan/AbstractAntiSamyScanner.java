@@ -24,21 +24,21 @@
 
 package org.owasp.validator.html.scan;
 
-import java.io.StringWriter;
+import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 
-import org.apache.xml.serialize.HTMLSerializer;
-import org.apache.xml.serialize.OutputFormat;
-import org.apache.xml.serialize.XHTMLSerializer;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
 import org.owasp.validator.html.ScanException;
 import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 public abstract class AbstractAntiSamyScanner {
 
@@ -51,6 +51,16 @@ public abstract class AbstractAntiSamyScanner {
 	protected boolean isNofollowAnchors = false;
 	protected boolean isValidateParamAsEmbed = false;
 
+	private HTMLWriter writer = null;
+	private String writerEncoding = null;
+	private int writerPolicyVersion = -1;
+
+	private Boolean retainDocumentFragment = null;
+
+	private TextExtractor textExtractor = null;
+
+	private ContentHandler contentHandler = null;
+
 	public abstract CleanResults scan(String html, String inputEncoding, String outputEncoding) throws ScanException;
 
 	public abstract CleanResults getResults();
@@ -78,48 +88,207 @@ public abstract class AbstractAntiSamyScanner {
 	}
 	
 	
-	protected OutputFormat getOutputFormat(String encoding) {
-		
-		 boolean formatOutput = "true".equals(policy.getDirective(Policy.FORMAT_OUTPUT));
-         boolean preserveSpace = "true".equals(policy.getDirective(Policy.PRESERVE_SPACE));
-         
-		OutputFormat format = new OutputFormat();
-        format.setEncoding(encoding);
-        format.setOmitXMLDeclaration("true".equals(policy.getDirective(Policy.OMIT_XML_DECLARATION)));
-        format.setOmitDocumentType("true".equals(policy.getDirective(Policy.OMIT_DOCTYPE_DECLARATION)));
-        format.setPreserveEmptyAttributes(true);
-        format.setPreserveSpace(preserveSpace);
-        
-        if (formatOutput) {
-            format.setLineWidth(80);
-            format.setIndenting(true);
-            format.setIndent(2);
-        }
-        
-        return format;
+	/**
+	 * Returns a writer for the clean output, pointed at the given Writer. A
+	 * scanner that is used for several scans in a row (see
+	 * <code>AntiSamy.scanAll()</code>) keeps its writer as long as the output
+	 * encoding and the policy stay the same.
+	 */
+	protected HTMLWriter getHTMLWriter(Writer w, String encoding) throws IOException {
+
+		if (writer == null || !encoding.equals(writerEncoding) || policy.getVersion() != writerPolicyVersion) {
+			writer = new HTMLWriter(policy, encoding);
+			writerEncoding = encoding;
+			writerPolicyVersion = policy.getVersion();
+		}
+
+		writer.setOutput(w);
+
+		return writer;
 	}
-	
-	protected HTMLSerializer getHTMLSerializer(Writer w, OutputFormat format) {
-		boolean useXhtml = "true".equals(policy.getDirective(Policy.USE_XHTML));
-       	
-        if(useXhtml) {
-        	return new ASXHTMLSerializer(w, format, policy);
-        }
-        
-        return new ASHTMLSerializer(w, format, policy);
+
+	/**
+	 * Returns an empty text extractor if the policy's
+	 * <code>extractText</code> directive asks for the text of the clean
+	 * markup, null otherwise.
+	 */
+	protected TextExtractor getTextExtractor() {
+
+		if (!"true".equals(policy.getDirective(Policy.EXTRACT_TEXT))) {
+			return null;
+		}
+
+		if (textExtractor == null) {
+			textExtractor = new TextExtractor();
+		}
+
+		textExtractor.reset();
+
+		return textExtractor;
+	}
+
+	/**
+	 * Sends the clean markup of the following scans to the given handler as
+	 * SAX events instead of writing it out, for callers that would otherwise
+	 * parse the clean HTML again. The handler also gets comments and CDATA
+	 * sections if it is a <code>LexicalHandler</code>. The results of such
+	 * scans have no clean HTML, and <code>maxOutputSize</code> does not apply
+	 * to them.
+	 * 
+	 * @param contentHandler
+	 *            The handler, or null to write the clean HTML as usual.
+	 */
+	public void setContentHandler(ContentHandler contentHandler) {
+		this.contentHandler = contentHandler;
+	}
+
+	protected ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	/**
+	 * Hands input the plain text fast path took to the content handler, as
+	 * the single text node the full scan would have produced.
+	 */
+	protected void sendPlainText(String html) throws SAXException {
+		char[] text = html.replaceAll("\r\n?", "\n").toCharArray();
+		contentHandler.startDocument();
+		if (text.length > 0) {
+			contentHandler.characters(text, 0, text.length);
+		}
+		contentHandler.endDocument();
+	}
+
+	/**
+	 * Overrides the policy's <code>retainDocumentFragment</code> directive
+	 * for the scans done with this scanner.
+	 * 
+	 * @param retainDocumentFragment
+	 *            Whether results hold on to the DOM built during the scan, or
+	 *            null to go by the policy.
+	 */
+	public void setRetainDocumentFragment(Boolean retainDocumentFragment) {
+		this.retainDocumentFragment = retainDocumentFragment;
+	}
+
+	/**
+	 * Tells whether the <code>CleanResults</code> of a scan keep the DOM the
+	 * scan built. They do unless the scanner or the policy says otherwise.
+	 */
+	protected boolean isRetainDocumentFragment() {
+		if (retainDocumentFragment != null) {
+			return retainDocumentFragment.booleanValue();
+		}
+		return !"false".equals(policy.getDirective(Policy.RETAIN_DOCUMENT_FRAGMENT));
+	}
+
+	/**
+	 * Clears the state left behind by a previous scan so the same scanner
+	 * can be used again. The error list is replaced rather than cleared
+	 * because the previous <code>CleanResults</code> still holds it.
+	 */
+	protected void reset() {
+		errorMessages = new ArrayList();
 	}
 
-	protected String trim(String original, String cleaned) {
-        if (cleaned.endsWith("\n")) {
-            if (!original.endsWith("\n")) {
-                if (cleaned.endsWith("\r\n")) {
-                	cleaned = cleaned.substring(0, cleaned.length() - 2);
-                } else if (cleaned.endsWith("\n")) {
-                	cleaned = cleaned.substring(0, cleaned.length() - 1);
-                }
-            }
-        }
-        
-        return cleaned;
+	/**
+	 * Produces the clean output for input that contains no markup at all
+	 * without running it through NekoHTML and the serializer. The same
+	 * escaping the serializers apply to text nodes is done here directly.
+	 * 
+	 * Only input whose serialized form is fully predictable is handled: no
+	 * '&lt;' or '&amp;', no characters that the DOM and SAX engines treat
+	 * differently (control characters, lone surrogates, U+FFFE/U+FFFF), no
+	 * supplementary characters unless the caller says it keeps them, UTF-8
+	 * output, and, when output is formatted, text short enough that the
+	 * serializer will not wrap it and without trailing whitespace for it to
+	 * trim, nor longer than <code>maxOutputSize</code>. Everything else
+	 * returns null and takes the full path.
+	 * 
+	 * @param html The raw input.
+	 * @param outputEncoding The encoding the output should be in.
+	 * @param keepSupplementary Whether the full path is known to keep a valid
+	 *            surrogate pair as-is.
+	 * @return The clean HTML, or null if the input has to be fully scanned.
+	 */
+	protected String cleanPlainText(String html, String outputEncoding, boolean keepSupplementary) {
+
+		if ("false".equals(policy.getDirective(Policy.PLAIN_TEXT_FAST_PATH))
+				|| !Constants.DEFAULT_ENCODING_ALGORITHM.equalsIgnoreCase(outputEncoding)) {
+			return null;
+		}
+
+		boolean formatOutput = "true".equals(policy.getDirective(Policy.FORMAT_OUTPUT));
+		boolean preserveSpace = "true".equals(policy.getDirective(Policy.PRESERVE_SPACE));
+		boolean encodeAllPossibleEntities = "true".equals(policy.getDirective(Policy.ENTITY_ENCODE_INTL_CHARS));
+
+		int length = html.length();
+		StringBuffer clean = new StringBuffer(length + 16);
+
+		for (int i = 0; i < length; i++) {
+			char ch = html.charAt(i);
+
+			if (ch == '<' || ch == '&') {
+				return null;
+			}
+
+			if (ch == '\t' || ch == '\n' || ch == '\r') {
+				if (preserveSpace) {
+					return null;
+				}
+				// NekoHTML normalizes CRLF to a single LF
+				if (ch != '\r' || i + 1 == length || html.charAt(i + 1) != '\n') {
+					clean.append(' ');
+				}
+				continue;
+			}
+
+			if (ch < ' ' || ch == '\uFFFE' || ch == '\uFFFF') {
+				return null;
+			}
+
+			if (ch >= '\uD800' && ch <= '\uDBFF') {
+				if (!keepSupplementary || i + 1 == length || html.charAt(i + 1) < '\uDC00' || html.charAt(i + 1) > '\uDFFF') {
+					return null;
+				}
+				clean.append(ch).append(html.charAt(++i));
+				continue;
+			}
+
+			if (ch >= '\uDC00' && ch <= '\uDFFF') {
+				return null;
+			}
+
+			// of the ASCII characters only the markup characters have entities
+			String entityRef = null;
+			if (ch < 128 || encodeAllPossibleEntities) {
+				entityRef = HTMLEntityEncoder.getEntityName(ch);
+			}
+
+			if (entityRef != null) {
+				clean.append('&').append(entityRef).append(';');
+			} else if (ch == '\u00F7') {
+				// mirrors HTMLWriter.needsEscaping(), which always escapes the division sign
+				clean.append("&#xf7;");
+			} else {
+				clean.append(ch);
+			}
+		}
+
+		int maxOutputSize = policy.getMaxOutputSize();
+		if (maxOutputSize > 0 && clean.length() > maxOutputSize) {
+			return null;
+		}
+
+		if (formatOutput) {
+			if (length > 0 && Character.isWhitespace(html.charAt(length - 1))) {
+				return null;
+			}
+			if (clean.length() > HTMLWriter.LINE_WIDTH) {
+				return null;
+			}
+		}
+
+		return clean.toString();
 	}
 }
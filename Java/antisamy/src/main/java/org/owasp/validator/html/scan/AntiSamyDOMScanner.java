@@ -26,30 +26,19 @@ package org.owasp.validator.html.scan;
 import java.io.IOException;
 
 import java.io.StringReader;
-import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.regex.Pattern;
 
-import org.apache.batik.css.parser.ParseException;
 import org.apache.xerces.dom.DocumentImpl;
-import org.apache.xml.serialize.HTMLSerializer;
-import org.apache.xml.serialize.OutputFormat;
-import org.apache.xml.serialize.XHTMLSerializer;
 import org.cyberneko.html.parsers.DOMFragmentParser;
-import org.owasp.validator.css.CssScanner;
-import org.owasp.validator.css.ExternalCssScanner;
+import org.owasp.validator.css.StyleSheetImports;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
 import org.owasp.validator.html.ScanException;
-import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
 import org.w3c.dom.Comment;
-import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
@@ -58,6 +47,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.ProcessingInstruction;
 import org.w3c.dom.Text;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
@@ -67,6 +57,10 @@ import org.xml.sax.SAXNotRecognizedException;
  * here, but it should not be called directly. All scanning should be done
  * through a <code>AntiSamy.scan()</code> method.
  * 
+ * A scanner instance may be used for any number of consecutive scans; the
+ * NekoHTML parser and the serializer are kept between
+ * them. It is not safe to use one instance from several threads at once.
+ * 
  * @author Arshan Dabirsiaghi
  * 
  */
@@ -75,6 +69,9 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
     private Document document = new DocumentImpl();
     private DocumentFragment dom = document.createDocumentFragment();
     private CleanResults results = null;
+    private StyleSheetImports styleSheetImports = new StyleSheetImports();
+    private TagValidator validator = new TagValidator(policy, messages);
+    private DOMFragmentParser parser = null;
     private static int maxDepth = 250;
     private int currentStackDepth;
 
@@ -94,6 +91,8 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
             throw new ScanException(new NullPointerException("Null input"));
         }
 
+        reset();
+
         int maxInputSize = policy.getMaxInputSize();
 
         if (maxInputSize < html.length()) {
@@ -106,6 +105,34 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
         Date start = new Date();
 
+        /*
+         * Whether stripNonValidXMLCharacters() removes the halves of a valid
+         * surrogate pair depends on the regex engine of the JRE, so input
+         * with supplementary characters always takes the full path here.
+         */
+        String plainText = cleanPlainText(html, outputEncoding, false);
+
+        if (plainText != null) {
+            if (isRetainDocumentFragment()) {
+                dom.appendChild(document.createTextNode(html.replaceAll("\r\n?", "\n")));
+            }
+            if (getContentHandler() != null) {
+                try {
+                    sendPlainText(html);
+                } catch (SAXException e) {
+                    throw new ScanException(e);
+                }
+                plainText = null;
+            }
+            results = getResults(start, plainText);
+            TextExtractor extractor = getTextExtractor();
+            if (extractor != null) {
+                extractor.extract(html);
+                results.setCleanText(extractor.getText());
+            }
+            return results;
+        }
+
         try {
 
             /*
@@ -122,20 +149,9 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
              * W3C.
              */
 
-            DOMFragmentParser parser = new DOMFragmentParser();
-            parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+            DOMFragmentParser parser = getParser();
             parser.setProperty("http://cyberneko.org/html/properties/default-encoding", inputEncoding);
 
-            parser.setFeature("http://cyberneko.org/html/features/scanner/style/strip-cdata-delims", false);
-            parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
-
-            try {
-                parser.setFeature("http://cyberneko.org/html/features/enforce-strict-attribute-names", true);
-            } catch (SAXNotRecognizedException se) {
-                // this indicates that the patched nekohtml is not on the
-                // classpath
-            }
-
             try {
                 parser.parse(new InputSource(new StringReader(html)), dom);
             } catch (Exception e) {
@@ -144,6 +160,34 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
             currentStackDepth = 0;
 
+            /*
+             * A content handler given by the caller takes the place of the
+             * writer.
+             */
+            ContentHandler handler = getContentHandler();
+            OutputBuffer out = null;
+            HTMLWriter writer = null;
+            TextExtractor extractor = getTextExtractor();
+
+            if (handler == null) {
+                out = OutputBuffer.forInput(html);
+                writer = getHTMLWriter(out, outputEncoding);
+                writer.setTrailingLineBreak(html.endsWith("\n"));
+                // the text is collected from what is written
+                writer.setTextExtractor(extractor);
+            }
+
+            /*
+             * With an output limit, each top level node is written as soon as
+             * it has been validated, so that once the limit is reached the
+             * rest of the input need not be validated at all.
+             */
+            boolean limited = writer != null && policy.getMaxOutputSize() > 0;
+
+            if (limited) {
+                writer.startFragment();
+            }
+
             /*
              * Call the work horse.
              */
@@ -160,6 +204,14 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                  */
                 if (tmp.getParentNode() == null) {
                     i--;
+                } else if (limited) {
+                    writer.serializeNode(tmp);
+                    if (writer.isTruncated()) {
+                        while (tmp.getNextSibling() != null) {
+                            dom.removeChild(tmp.getNextSibling());
+                        }
+                        break;
+                    }
                 }
 
             }
@@ -169,24 +221,35 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
              * its string representation.
              */
 
-            StringWriter out = new StringWriter();
+            String cleanHtml = null;
 
-            OutputFormat format = getOutputFormat(outputEncoding);
+            if (handler != null) {
+                DOMWalker.walk(dom, handler);
+            } else {
+                if (limited) {
+                    writer.endFragment();
+                } else {
+                    writer.serialize(dom);
+                }
+                cleanHtml = out.toString();
+            }
 
-            HTMLSerializer serializer = getHTMLSerializer(out, format);
-            serializer.serialize(dom);
-            
             /*
-             * Get the String out of the StringWriter and rip out the XML
-             * declaration if the Policy says we should.
+             * Without a writer, the text is taken from the same fragment,
+             * before it is let go of.
              */
-            String cleanHtml = trim(html, out.getBuffer().toString());
+            if (extractor != null && writer == null) {
+                extractor.extract(dom);
+            }
 
             /**
              * Return the DOM object as well as string HTML.
              */
-            results = new CleanResults(start, new Date(), cleanHtml, dom, errorMessages);
-
+            results = getResults(start, cleanHtml);
+            results.setTruncated(writer != null && writer.isTruncated());
+            if (extractor != null) {
+                results.setCleanText(extractor.getText());
+            }
             return results;
 
         } catch (SAXException e) {
@@ -197,10 +260,60 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
     }
 
+    /**
+     * Wraps up a scan. Unless the results are to keep the DOM, the fragment
+     * is let go of here, and the results build a new one from the clean HTML
+     * if anybody asks for it.
+     */
+    private CleanResults getResults(Date start, String cleanHtml) {
+
+        if (isRetainDocumentFragment()) {
+            results = new CleanResults(start, new Date(), cleanHtml, dom, errorMessages);
+        } else {
+            results = new CleanResults(start, new Date(), cleanHtml, null, errorMessages);
+            results.setBuildDocumentFragmentOnDemand(true);
+            dom = document.createDocumentFragment();
+        }
+
+        results.setStyleSheetImports(styleSheetImports);
+
+        return results;
+    }
+
+    protected void reset() {
+        super.reset();
+        dom = document.createDocumentFragment();
+        results = null;
+        styleSheetImports = new StyleSheetImports();
+        validator.reset(errorMessages, styleSheetImports);
+    }
+
+    private DOMFragmentParser getParser() throws SAXException {
+
+        if (parser == null) {
+            parser = new DOMFragmentParser();
+            parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+
+            parser.setFeature("http://cyberneko.org/html/features/scanner/style/strip-cdata-delims", false);
+            parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
+
+            try {
+                parser.setFeature("http://cyberneko.org/html/features/enforce-strict-attribute-names", true);
+            } catch (SAXNotRecognizedException se) {
+                // this indicates that the patched nekohtml is not on the
+                // classpath
+            }
+        }
+
+        return parser;
+    }
+
     /**
      * The workhorse of the scanner. Recursively scans document elements
      * according to the policy. This should be called implicitly through the
-     * AntiSamy.scan() method.
+     * AntiSamy.scan() method. What to do with each element and attribute is
+     * decided by the <code>TagValidator</code> shared with the SAX scanner;
+     * this method carries the decisions out on the DOM.
      *
      * @param node
      *            The node to validate.
@@ -215,28 +328,28 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
         if (node instanceof Comment) {
 
-            String preserveComments = policy.getDirective(Policy.PRESERVE_COMMENTS);
+            String value = validator.cleanComment(((Comment) node).getData());
 
-            if (preserveComments == null || !"true".equals(preserveComments)) {
+            if (value == null) {
                 node.getParentNode().removeChild(node);
             } else {
-                String value = ((Comment) node).getData();
-                // Strip conditional directives regardless of the
-                // PRESERVE_COMMENTS setting.
-                if (value != null) {
-                    ((Comment) node).setData(value.replaceAll("<?!?\\[\\s*(?:end)?if[^]]*\\]>?", ""));
-                }
+                ((Comment) node).setData(value);
             }
 
             currentStackDepth--;
             return;
         }
 
-        if (node instanceof Element && node.getChildNodes().getLength() == 0) {
+        /*
+         * The element's name is folded to lower case here, once, and handed
+         * down from here on.
+         */
+        String tagName = node.getNodeName();
+        String tagNameLowerCase = node instanceof Element ? tagName.toLowerCase() : null;
 
-        	String tagName = node.getNodeName();
+        if (node instanceof Element && node.getChildNodes().getLength() == 0) {
 
-            if (!isAllowedEmptyTag(tagName)) {
+            if (!policy.isAllowedEmptyTag(tagNameLowerCase)) {
                 /*
                  * Wasn't in the list of allowed elements, so we'll nuke it.
                  */
@@ -251,8 +364,6 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
             addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getTextContent())});
 
-            //String encoded = HTMLEntityEncoder.htmlEntityEncode(node.getTextContent());
-
             Node text = document.createTextNode(node.getTextContent());
             node.getParentNode().insertBefore(text, node);
             node.getParentNode().removeChild(node);
@@ -273,17 +384,13 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         }
 
         Element ele = (Element) node;
-        Node parentNode = ele.getParentNode();
-        Node tmp = null;
 
         /*
          * See if we have a policy for this tag. If we do, getTagByName() will
          * retrieve its object representation.
          */
 
-        String tagName = ele.getNodeName();
-
-        Tag tag = policy.getTagByName(tagName.toLowerCase());
+        Tag tag = policy.getTagByLowercaseName(tagNameLowerCase);
 
         /*
          * If <param> and no policy and isValidateParamAsEmbed and policy in
@@ -291,484 +398,220 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
          * policy to get the tag through to the validator.
          */
         boolean masqueradingParam = false;
-        if (tag == null && isValidateParamAsEmbed && "param".equals(tagName.toLowerCase())) {
-            Tag embedPolicy = policy.getTagByName("embed");
+        if (tag == null && isValidateParamAsEmbed && "param".equals(tagNameLowerCase)) {
+            Tag embedPolicy = policy.getTagByLowercaseName("embed");
             if (embedPolicy != null && Policy.ACTION_VALIDATE.equals(embedPolicy.getAction())) {
                 tag = Constants.BASIC_PARAM_TAG_RULE;
                 masqueradingParam = true;
             }
         }
 
-        if ((tag == null && "encode".equals(policy.getDirective("onUnknownTag"))) || (tag != null && "encode".equals(tag.getAction()))) {
-
-            addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-
-            /*
-             * We have to filter out the tags only. This means the content
-             * should remain. First step is to validate before promoting its
-             * children.
-             */
-
-            for (int i = 0; i < node.getChildNodes().getLength(); i++) {
-
-                tmp = node.getChildNodes().item(i);
+        switch (validator.getTagAction(tag, tagName)) {
 
-                recursiveValidateTag(tmp);
-
-                /*
-                 * This indicates the node was removed/failed validation.
-                 */
-                if (tmp.getParentNode() == null) {
-                    i--;
-                }
-            }
+        case TagValidator.ENCODE:
 
             /*
-             * Transform the tag to text, HTML-encode it and promote the
-             * children. The tag will be kept in the fragment as one or two text
-             * Nodes located before and after the children; representing how the
-             * tag used to wrap them.
+             * The tag is encoded and its children promoted, after they have
+             * been validated themselves.
              */
-
+            validateChildren(ele);
             encodeAndPromoteChildren(ele);
-            currentStackDepth--;
-            return;
+            break;
 
-        } else if (tag == null || Policy.ACTION_FILTER.equals(tag.getAction())) {
-
-            if (tag == null) {
-                addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-            } else {
-                addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-            }
+        case TagValidator.FILTER:
 
             /*
              * We have to filter out the tags only. This means the content
              * should remain. First step is to validate before promoting its
              * children.
              */
+            validateChildren(ele);
+            promoteChildren(ele);
+            break;
 
-            for (int i = 0; i < node.getChildNodes().getLength(); i++) {
-
-                tmp = node.getChildNodes().item(i);
+        case TagValidator.VALIDATE:
+            validateElement(ele, tagName, tagNameLowerCase, tag, masqueradingParam);
+            break;
 
-                recursiveValidateTag(tmp);
-
-                /*
-                 * This indicates the node was removed/failed validation.
-                 */
-                if (tmp.getParentNode() == null) {
-                    i--;
-                }
-            }
+        case TagValidator.TRUNCATE: {
 
             /*
-             * Loop through and add the children node to the parent before
-             * removing the current node from the parent.
-             *
-             * We must get a fresh copy of the children nodes because validating
-             * the children may have resulted in us getting less or more
+             * Remove all attributes. This is for tags like i, b, u, etc. Purely
+             * formatting without any need for attributes. It also removes any
              * children.
              */
 
-            promoteChildren(ele);
-            currentStackDepth--;
-            return;
-
-        } else if (Policy.ACTION_VALIDATE.equals(tag.getAction())) {
+            NamedNodeMap nnmap = ele.getAttributes();
 
-            /*
-             * If doing <param> as <embed>, now is the time to convert it.
-             */
-            String nameValue = null;
-            if (masqueradingParam) {
-                nameValue = ele.getAttribute("name");
-                if (nameValue != null && !"".equals(nameValue)) {
-                    String valueValue = ele.getAttribute("value");
-                    ele.setAttribute(nameValue, valueValue);
-                    ele.removeAttribute("name");
-                    ele.removeAttribute("value");
-                    tag = policy.getTagByName("embed");
-                }
+            while (nnmap.getLength() > 0) {
+                validator.attributeTruncated(tagName, nnmap.item(0).getNodeName(), nnmap.item(0).getNodeValue());
+                ele.removeAttribute(nnmap.item(0).getNodeName());
             }
 
-            /*
-             * Check to see if it's a <style> tag. We have to special case this
-             * tag so we can hand it off to the custom style sheet validating
-             * parser.
-             */
-
-            if ("style".equals(tagName.toLowerCase()) && policy.getTagByName("style") != null) {
-
-                /*
-                 * Invoke the css parser on this element.
-                 */
-            	CssScanner styleScanner = null;
-            	
-            	if("true".equals(policy.getDirective(Policy.EMBED_STYLESHEETS))) {
-            		styleScanner = new ExternalCssScanner(policy, messages);
-            	}else{
-            		styleScanner = new CssScanner(policy, messages);
-            	}
-
-                try {
-
-                    if (node.getFirstChild() != null) {
-
-                        String toScan = node.getFirstChild().getNodeValue();
-
-                        CleanResults cr = styleScanner.scanStyleSheet(toScan, policy.getMaxInputSize());
-
-                        errorMessages.addAll(cr.getErrorMessages());
-
-                        /*
-                         * If IE gets an empty style tag, i.e. <style/> it will
-                         * break all CSS on the page. I wish I was kidding. So,
-                         * if after validation no CSS properties are left, we
-                         * would normally be left with an empty style tag and
-                         * break all CSS. To prevent that, we have this check.
-                         */
-
-                        final String cleanHTML = cr.getCleanHTML();
-
-                        if (cleanHTML == null || cleanHTML.equals("")) {
-
-                            node.getFirstChild().setNodeValue("/* */");
-
-                        } else {
-
-                            node.getFirstChild().setNodeValue(cleanHTML);
-
-                        }
-
-                    }
-
-                } catch (DOMException e) {
-
-                    addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getFirstChild().getNodeValue())});
-                    parentNode.removeChild(node);
-                    currentStackDepth--;
-                    return;
-
-                } catch (ScanException e) {
-
-                    addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getFirstChild().getNodeValue())});
-                    parentNode.removeChild(node);
-                    currentStackDepth--;
-                    return;
+            NodeList cList = ele.getChildNodes();
 
-                    /*
-                     * This shouldn't be reachable anymore, but we'll leave it
-                     * here because I'm hilariously dumb sometimes.
-                     */
-                } catch (ParseException e) {
+            int i = 0;
+            int j = 0;
+            int length = cList.getLength();
 
-                    addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getFirstChild().getNodeValue())});
-                    parentNode.removeChild(node);
-                    currentStackDepth--;
-                    return;
+            while (i < length) {
 
-                    /*
-                     * Batik can throw NumberFormatExceptions (see bug #48).
-                     */
-                } catch (NumberFormatException e) {
+                Node nodeToRemove = cList.item(j);
 
-                    addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getFirstChild().getNodeValue())});
-                    parentNode.removeChild(node);
-                    currentStackDepth--;
-                    return;
+                if (nodeToRemove.getNodeType() != Node.TEXT_NODE) {
+                    ele.removeChild(nodeToRemove);
+                } else {
+                    j++;
                 }
+
+                i++;
             }
+            break;
+        }
+
+        default:
 
             /*
-             * Go through the attributes in the tainted tag and validate them
-             * against the values we have for them.
-             *
-             * If we don't have a rule for the attribute we remove the
-             * attribute.
+             * The tag's action is "remove", which means to remove the tag
+             * (including its contents).
              */
+            removeNode(ele);
+            break;
+        }
 
-            Node attribute = null;
-
-            for (int currentAttributeIndex = 0; currentAttributeIndex < ele.getAttributes().getLength(); currentAttributeIndex++) {
-
-                attribute = ele.getAttributes().item(currentAttributeIndex);
-
-                String name = attribute.getNodeName();
-                String value = attribute.getNodeValue();
-
-                Attribute attr = tag.getAttributeByName(name.toLowerCase());
-
-                /**
-                 * If we there isn't an attribute by that name in our policy
-                 * check to see if it's a globally defined attribute. Validate
-                 * against that if so.
-                 */
-                if (attr == null) {
-                    attr = policy.getGlobalAttributeByName(name);
-                }
-
-                boolean isAttributeValid = false;
-
-                /*
-                 * We have to special case the "style" attribute since it's
-                 * validated quite differently.
-                 */
-                if ("style".equals(name.toLowerCase()) && attr != null) {
-
-                    /*
-                     * Invoke the CSS parser on this element.
-                     */
-                    CssScanner styleScanner = new CssScanner(policy, messages);
-
-                    try {
-
-                        CleanResults cr = styleScanner.scanInlineStyle(value, tagName, policy.getMaxInputSize());
-
-                        attribute.setNodeValue(cr.getCleanHTML());
-
-                        ArrayList cssScanErrorMessages = cr.getErrorMessages();
-
-                        errorMessages.addAll(cssScanErrorMessages);
-
-                    } catch (DOMException e) {
-
-                        addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(node.getNodeValue())});
-
-                        ele.removeAttribute(attribute.getNodeName());
-                        currentAttributeIndex--;
-
-                    } catch (ScanException e) {
-
-                        addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(node.getNodeValue())});
-
-                        ele.removeAttribute(attribute.getNodeName());
-                        currentAttributeIndex--;
-                    }
-
-                } else {
-
-                    if (attr != null) {
-
-                        Iterator allowedValues = attr.getAllowedValues().iterator();
-
-                        while (allowedValues.hasNext() && !isAttributeValid) {
-
-                            String allowedValue = (String) allowedValues.next();
-
-                            if (allowedValue != null && allowedValue.toLowerCase().equals(value.toLowerCase())) {
-                                isAttributeValid = true;
-                            }
-                        }
-
-                        Iterator allowedRegexps = attr.getAllowedRegExp().iterator();
-
-                        while (allowedRegexps.hasNext() && !isAttributeValid) {
-
-                            Pattern pattern = (Pattern) allowedRegexps.next();
-
-                            if (pattern != null && pattern.matcher(value.toLowerCase()).matches()) {
-                                isAttributeValid = true;
-                            }
-                        }
-
-                        if (!isAttributeValid) {
-
-                            /*
-                             * Document transgression and perform the
-                             * "onInvalid" action. The default action is to
-                             * strip the attribute and leave the rest intact.
-                             */
-
-                            String onInvalidAction = attr.getOnInvalid();
-
-                            if ("removeTag".equals(onInvalidAction)) {
-
-                                /*
-                                 * Remove the tag and its contents.
-                                 */
-
-                                removeNode(ele);
-                            	
-                                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
-                                        new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-                                currentStackDepth--;
-                                return;
-
-                            } else if ("filterTag".equals(onInvalidAction)) {
-
-                                /*
-                                 * Remove the attribute and keep the rest of the
-                                 * tag.
-                                 */
-
-                                for (int i = 0; i < node.getChildNodes().getLength(); i++) {
-
-                                    tmp = node.getChildNodes().item(i);
-
-                                    recursiveValidateTag(tmp);
-
-                                    /*
-                                     * This indicates the node was
-                                     * removed/failed validation.
-                                     */
-                                    if (tmp.getParentNode() == null) {
-                                        i--;
-                                    }
-                                }
-
-                                promoteChildren(ele);
-
-                                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-
-                            } else if ("encodeTag".equals(onInvalidAction)) {
-
-                                /*
-                                 * Remove the attribute and keep the rest of the
-                                 * tag.
-                                 */
-
-                                for (int i = 0; i < node.getChildNodes().getLength(); i++) {
-
-                                    tmp = node.getChildNodes().item(i);
-
-                                    recursiveValidateTag(tmp);
-
-                                    /*
-                                     * This indicates the node was
-                                     * removed/failed validation.
-                                     */
-                                    if (tmp.getParentNode() == null) {
-                                        i--;
-                                    }
-                                }
-
-                                encodeAndPromoteChildren(ele);
-
-                                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-
-                            } else {
-
-                                /*
-                                 * onInvalidAction = "removeAttribute"
-                                 */
-
-                                ele.removeAttribute(attribute.getNodeName());
-
-                                currentAttributeIndex--;
-
-                                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-
-                                if ("removeTag".equals(onInvalidAction) || "filterTag".equals(onInvalidAction)) {
-                                    return; // can't process any more if we
-                                    // remove/filter the tag
-                                }
-
-                            }
-
-                        }
-
-                    } else { /*
-                         * the attribute they specified isn't in our policy
-                         * - remove it (whitelisting!)
-                         */
-
-                        addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-
-                        ele.removeAttribute(attribute.getNodeName());
-
-                        currentAttributeIndex--;
-
-                    } // end if attribute is or is not found in policy file
-
-                } // end while loop through attributes
+        currentStackDepth--;
+    }
 
-            } // loop through each attribute
+    /**
+     * Validates an element whose tag's action is "validate": the style sheet
+     * of a <code>style</code> element, the attributes, and then the
+     * children.
+     */
+    private void validateElement(Element ele, String tagName, String tagNameLowerCase, Tag tag, boolean masqueradingParam) throws ScanException {
 
-            if (isNofollowAnchors && "a".equals(tagName.toLowerCase())) {
-                ele.setAttribute("rel", "nofollow");
+        /*
+         * If doing <param> as <embed>, now is the time to convert it.
+         */
+        String nameValue = null;
+        if (masqueradingParam) {
+            nameValue = ele.getAttribute("name");
+            if (nameValue != null && !"".equals(nameValue)) {
+                String valueValue = ele.getAttribute("value");
+                ele.setAttribute(nameValue, valueValue);
+                ele.removeAttribute("name");
+                ele.removeAttribute("value");
+                tag = policy.getTagByLowercaseName("embed");
             }
+        }
 
-            for (int i = 0; i < node.getChildNodes().getLength(); i++) {
+        /*
+         * Check to see if it's a <style> tag. We have to special case this
+         * tag so we can hand it off to the custom style sheet validating
+         * parser.
+         */
 
-                tmp = node.getChildNodes().item(i);
+        if ("style".equals(tagNameLowerCase) && ele.getFirstChild() != null) {
 
-                recursiveValidateTag(tmp);
+            String cleanCss = validator.scanStyleSheet(ele.getFirstChild().getNodeValue());
 
-                /*
-                 * This indicates the node was removed/failed validation.
-                 */
-                if (tmp.getParentNode() == null) {
-                    i--;
-                }
+            if (cleanCss == null) {
+                ele.getParentNode().removeChild(ele);
+                return;
             }
 
             /*
-             * If we have been dealing with a <param> that has been converted to
-             * an <embed>, convert it back
+             * If IE gets an empty style tag, i.e. <style/> it will break all
+             * CSS on the page. I wish I was kidding. So, if after validation
+             * no CSS properties are left, we would normally be left with an
+             * empty style tag and break all CSS. To prevent that, we have
+             * this check.
              */
-            if (masqueradingParam && nameValue != null && !"".equals(nameValue)) {
-                String valueValue = ele.getAttribute(nameValue);
-                ele.setAttribute("name", nameValue);
-                ele.setAttribute("value", valueValue);
-                ele.removeAttribute(nameValue);
-            }
+            ele.getFirstChild().setNodeValue(cleanCss.length() == 0 ? "/* */" : cleanCss);
+        }
 
-            currentStackDepth--;
-            return;
+        /*
+         * Go through the attributes in the tainted tag and validate them
+         * against the values we have for them. If one of them is invalid
+         * and its onInvalid action takes the whole element with it, the
+         * strongest such action is carried out once they have all been seen.
+         */
 
-        } else if (Policy.ACTION_TRUNCATE.equals(tag.getAction())) {
+        int elementOutcome = TagValidator.KEEP_ATTRIBUTE;
 
-            /*
-             * Remove all attributes. This is for tags like i, b, u, etc. Purely
-             * formatting without any need for attributes. It also removes any
-             * children.
-             */
+        for (int currentAttributeIndex = 0; currentAttributeIndex < ele.getAttributes().getLength(); currentAttributeIndex++) {
 
-            NamedNodeMap nnmap = ele.getAttributes();
+            Node attribute = ele.getAttributes().item(currentAttributeIndex);
+            String value = attribute.getNodeValue();
 
-            while (nnmap.getLength() > 0) {
+            int outcome = validator.validateAttribute(tag, tagName, attribute.getNodeName(), value);
 
-                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(nnmap.item(0).getNodeName())});
+            if (outcome == TagValidator.KEEP_ATTRIBUTE) {
+                String cleanValue = validator.getAttributeValue();
+                if (cleanValue != value) {
+                    attribute.setNodeValue(cleanValue);
+                }
+            } else if (outcome == TagValidator.REMOVE_ATTRIBUTE) {
+                ele.removeAttribute(attribute.getNodeName());
+                currentAttributeIndex--;
+            } else {
+                elementOutcome = Math.max(elementOutcome, outcome);
+            }
+        }
 
-                ele.removeAttribute(nnmap.item(0).getNodeName());
+        if (elementOutcome == TagValidator.REMOVE_TAG) {
+            // remove the tag and its contents
+            removeNode(ele);
+            return;
+        }
 
+        if (elementOutcome == TagValidator.FILTER_TAG || elementOutcome == TagValidator.ENCODE_TAG) {
+            // keep the contents, validated, without the tag
+            validateChildren(ele);
+            if (elementOutcome == TagValidator.FILTER_TAG) {
+                promoteChildren(ele);
+            } else {
+                encodeAndPromoteChildren(ele);
             }
+            return;
+        }
 
-            NodeList cList = ele.getChildNodes();
+        if (isNofollowAnchors && "a".equals(tagNameLowerCase)) {
+            ele.setAttribute("rel", "nofollow");
+        }
 
-            int i = 0;
-            int j = 0;
-            int length = cList.getLength();
+        validateChildren(ele);
 
-            while (i < length) {
+        /*
+         * If we have been dealing with a <param> that has been converted to
+         * an <embed>, convert it back
+         */
+        if (masqueradingParam && nameValue != null && !"".equals(nameValue)) {
+            String valueValue = ele.getAttribute(nameValue);
+            ele.setAttribute("name", nameValue);
+            ele.setAttribute("value", valueValue);
+            ele.removeAttribute(nameValue);
+        }
+    }
 
-                Node nodeToRemove = cList.item(j);
+    /**
+     * Validates the children of a node, which may remove them or replace them
+     * with their own children.
+     */
+    private void validateChildren(Node node) throws ScanException {
 
-                if (nodeToRemove.getNodeType() != Node.TEXT_NODE) {
-                    ele.removeChild(nodeToRemove);
-                } else {
-                    j++;
-                }
+        for (int i = 0; i < node.getChildNodes().getLength(); i++) {
 
-                i++;
-            }
+            Node tmp = node.getChildNodes().item(i);
 
-        } else {
+            recursiveValidateTag(tmp);
 
             /*
-             * If we reached this that means that the tag's action is "remove",
-             * which means to remove the tag (including its contents).
+             * This indicates the node was removed/failed validation.
              */
-
-            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-            removeNode(ele);
-
+            if (tmp.getParentNode() == null) {
+                i--;
+            }
         }
-
-        currentStackDepth--;
-
-        return;
     }
 
     private void removeNode(Node node) {
@@ -783,15 +626,7 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 	}
 
 	private boolean isAllowedEmptyTag(String tagName) {
-    	boolean allowed = false;
-        String[] allowedEmptyTags = policy.getAllowedEmptyTags();
-        for (int i = 0; i < allowedEmptyTags.length; i++) {
-            if (allowedEmptyTags[i].equalsIgnoreCase(tagName)) {
-                allowed = true;
-                i = allowedEmptyTags.length;
-            }
-        }
-        return allowed;
+		return policy.isAllowedEmptyTag(tagName.toLowerCase());
 	}
 
 	/**
@@ -24,37 +24,46 @@
 
 package org.owasp.validator.html.scan;
 
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Date;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.stream.StreamResult;
-
 import org.apache.xerces.xni.parser.XMLDocumentFilter;
-import org.apache.xml.serialize.HTMLSerializer;
-import org.apache.xml.serialize.OutputFormat;
-import org.apache.xml.serialize.XHTMLSerializer;
 import org.cyberneko.html.parsers.SAXParser;
+import org.owasp.validator.css.StyleSheetImports;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.xml.sax.AttributeList;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.DocumentHandler;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
 
+/**
+ * Streaming scanner built on the NekoHTML SAX parser and
+ * <code>MagicSAXFilter</code>. A scanner instance may be used for any number
+ * of consecutive scans; the parser, filter and writer are
+ * kept between them. It is not safe to use one instance from several threads
+ * at once.
+ */
 public class AntiSamySAXScanner extends AbstractAntiSamyScanner {
 
+	/*
+	 * The most error messages a streamed scan keeps.
+	 */
+	private static final int MAX_STREAM_ERROR_MESSAGES = 1000;
+
+	private SAXParser parser = null;
+	private MagicSAXFilter sanitizingFilter = null;
+
 	public AntiSamySAXScanner(Policy policy) {
 		super(policy);
 	}
@@ -69,62 +78,379 @@ public class AntiSamySAXScanner extends AbstractAntiSamyScanner {
 			throw new ScanException(new NullPointerException("Null input"));
 		}
 
+		reset();
+
 		int maxInputSize = policy.getMaxInputSize();
 
 		if (html.length() > maxInputSize) {
 			addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] { new Integer(html.length()), new Integer(maxInputSize) });
 			throw new ScanException(errorMessages.get(0).toString());
 		}
+
+		Date fastPathStart = new Date();
+		String plainText = cleanPlainText(html, outputEncoding, true);
+
+		if (plainText != null) {
+			if (getContentHandler() != null) {
+				try {
+					sendPlainText(html);
+				} catch (SAXException e) {
+					throw new ScanException(e);
+				}
+				plainText = null;
+			}
+			CleanResults results = new CleanResults(fastPathStart, new Date(), plainText, null, errorMessages);
+			results.setStyleSheetImports(new StyleSheetImports());
+			TextExtractor extractor = getTextExtractor();
+			if (extractor != null) {
+				extractor.extract(html);
+				results.setCleanText(extractor.getText());
+			}
+			return results;
+		}
 		
 		try {
-			
-			boolean formatOutput = "true".equals(policy.getDirective(Policy.FORMAT_OUTPUT));
-            boolean useXhtml = "true".equals(policy.getDirective(Policy.USE_XHTML));
-            boolean omitXml = "true".equals(policy.getDirective(Policy.OMIT_XML_DECLARATION));
-           
-			SAXParser parser = new SAXParser();
+
+			getParser();
+			sanitizingFilter.reset();
+
+			Date start = new Date();
+
+			/*
+			 * A content handler given by the caller takes the place of the
+			 * writer.
+			 */
+			OutputBuffer out = null;
+			HTMLWriter writer = null;
+
+			if (getContentHandler() == null) {
+				out = OutputBuffer.forInput(html);
+				writer = getHTMLWriter(out, outputEncoding);
+				writer.setTrailingLineBreak(html.endsWith("\n"));
+			}
+
+			CleanResults results = parse(new StringReader(html), writer, start);
+			if (out != null) {
+				results.setCleanHTML(out.toString());
+			}
+			return results;
+
+		} catch (Exception e) {
+			throw new ScanException(e);
+		}
+
+	}
+
+	/**
+	 * Scans input of any size, reading it from <code>html</code> and writing
+	 * the clean HTML to <code>out</code> as it goes. Neither the input nor the
+	 * output is held in memory as a whole: besides the parser's buffers, only
+	 * the open elements, the style sheet being collected and the first
+	 * thousand error messages are kept. <code>maxStreamInputSize</code> limits the input
+	 * instead of <code>maxInputSize</code>; past it, the scan stops with a
+	 * <code>ScanException</code> and what was written so far is incomplete.
+	 * The clean HTML is written a character at a time, so <code>out</code>
+	 * should be buffered. It is flushed, not closed.
+	 * 
+	 * @return The results of the scan, without clean HTML.
+	 */
+	public CleanResults scan(Reader html, Writer out, String outputEncoding) throws ScanException {
+
+		if (html == null || out == null) {
+			throw new ScanException(new NullPointerException("Null input"));
+		}
+
+		reset();
+
+		try {
+
+			getParser();
+			sanitizingFilter.reset();
+			sanitizingFilter.limitErrorMessages(MAX_STREAM_ERROR_MESSAGES);
+
+			Date start = new Date();
+
+			HTMLWriter writer = null;
+
+			if (getContentHandler() == null) {
+				writer = getHTMLWriter(out, outputEncoding);
+			}
+
+			int maxInputSize = policy.getMaxStreamInputSize();
+			StreamInput input = new StreamInput(html, maxInputSize, writer);
+
+			CleanResults results = null;
+			try {
+				results = parse(input, writer, start);
+			} catch (Exception e) {
+				if (!input.isOverLimit()) {
+					throw e;
+				}
+			}
+
+			if (input.isOverLimit()) {
+				addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] { new Integer(input.getLength()), new Integer(maxInputSize) });
+				throw new ScanException(errorMessages.get(0).toString());
+			}
+
+			out.flush();
+			return results;
+
+		} catch (ScanException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ScanException(e);
+		}
+
+	}
+
+	/*
+	 * Runs the input through the parser and the sanitizing filter into the
+	 * writer, or into the caller's content handler if the writer is null.
+	 */
+	private CleanResults parse(Reader in, HTMLWriter writer, Date start) throws Exception {
+
+		ContentHandler handler = writer != null ? writer : getContentHandler();
+
+		TextExtractor extractor = getTextExtractor();
+		if (writer != null) {
+			// the text is collected from what is written
+			writer.setTextExtractor(extractor);
+		} else if (extractor != null) {
+			// the text is collected from the same events
+			handler = new TeeHandler(handler, extractor);
+		}
+
+		parser.setContentHandler(handler);
+		parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler instanceof LexicalHandler ? handler : null);
+		try {
+			parser.parse(new InputSource(in));
+		} catch (SAXException e) {
+			/*
+			 * The writer stops the parse once the output limit is
+			 * reached; what was written so far is the result.
+			 */
+			if (writer == null || !writer.isTruncated()) {
+				throw e;
+			}
+			writer.endFragment();
+		}
+
+		Date end = new Date();
+
+		errorMessages = sanitizingFilter.getErrorMessages();
+		CleanResults results = new CleanResults(start, end, null, null, errorMessages);
+		results.setStyleSheetImports(sanitizingFilter.getStyleSheetImports());
+		results.setTruncated(writer != null && writer.isTruncated());
+		if (extractor != null) {
+			results.setCleanText(extractor.getText());
+		}
+		return results;
+	}
+
+	private SAXParser getParser() throws SAXException {
+
+		if (parser == null) {
+			parser = new SAXParser();
 			parser.setFeature("http://xml.org/sax/features/namespaces", false);
 			parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment", true);
 			parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
 			parser.setFeature("http://apache.org/xml/features/scanner/notify-char-refs", true);
 			parser.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs", true);
-			
-			StringWriter out = new StringWriter();
-			
-			MagicSAXFilter sanitizingFilter = new MagicSAXFilter(policy, messages);
+
+			sanitizingFilter = new MagicSAXFilter(policy, messages);
 			XMLDocumentFilter[] filters = { sanitizingFilter };
 
 			parser.setProperty("http://cyberneko.org/html/properties/filters", filters);
 			parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
-			
-			Date start = new Date();
+		}
 
-			SAXSource source = new SAXSource(parser, new InputSource(new StringReader(html)));
-			
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
+		return parser;
+	}
 
-			Transformer transformer = transformerFactory.newTransformer();
-			transformer.setParameter("encoding", outputEncoding);
-			transformer.setOutputProperty(OutputKeys.INDENT, formatOutput ? "yes" : "no");
-			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXml ? "yes" : "no");
-			transformer.setOutputProperty(OutputKeys.ENCODING, outputEncoding);
-			transformer.setOutputProperty(OutputKeys.METHOD, useXhtml ? "xml" : "html");
-			
-			OutputFormat format = getOutputFormat(outputEncoding);
-			HTMLSerializer serializer = getHTMLSerializer(out, format);
-			transformer.transform(source, new SAXResult(serializer));			
-			Date end = new Date();
+	/*
+	 * The input of a streamed scan. It counts the characters read, stops the
+	 * parse once there are more than the limit, and tells the writer whether
+	 * to keep a line break at the end once it knows the last character.
+	 * 
+	 * NekoHTML loses the end of a script when a read ends inside its end
+	 * tag, and only treats the content of a title as text if its end tag
+	 * was read along with it; a reader, though, may return any number of
+	 * characters. A read that ends in what may be the start of an end tag,
+	 * or in a title that is still open, is therefore cut short and the rest
+	 * handed over with the next one, as far as the parser's buffer allows.
+	 */
+	private static class StreamInput extends FilterReader {
 
-			String cleanHtml = trim(html, out.getBuffer().toString());
+		private static final int MAX_NAME_LENGTH = 10;
 
-			errorMessages = sanitizingFilter.getErrorMessages();
-			return new CleanResults(start, end, cleanHtml, null, errorMessages);
+		private final int limit;
+		private final HTMLWriter writer;
+		private int length = 0;
+		private boolean overLimit = false;
+		private boolean eof = false;
+		private char last = 0;
+		private final char[] single = new char[1];
+		private char[] held = new char[MAX_NAME_LENGTH + 2];
+		private int heldLength = 0;
 
-		} catch (Exception e) {
-			throw new ScanException(e);
+		StreamInput(Reader in, int limit, HTMLWriter writer) {
+			super(in);
+			this.limit = limit;
+			this.writer = writer;
+		}
+
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0];
+		}
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n = 0;
+
+			if (heldLength > 0) {
+				n = Math.min(heldLength, len);
+				System.arraycopy(held, 0, cbuf, off, n);
+				heldLength -= n;
+				System.arraycopy(held, n, held, 0, heldLength);
+				if (heldLength > 0) {
+					return n;
+				}
+			}
+
+			while (n < len) {
+				int read = readAhead(cbuf, off + n, len - n);
+				if (read == -1) {
+					break;
+				}
+				n += read;
+
+				int tail = Math.max(endTagStart(cbuf, off, n), openTitle(cbuf, off, n));
+				if (tail < n) {
+					if (held.length < tail) {
+						held = new char[tail];
+					}
+					System.arraycopy(cbuf, off + n - tail, held, 0, tail);
+					heldLength = tail;
+					return n - tail;
+				}
+				// nothing but the start of a tag so far, read on
+			}
+
+			return n > 0 ? n : -1;
+		}
+
+		/*
+		 * Returns how many characters at the end of the given ones may be
+		 * the start of an end tag: '<', "</" or "</" followed by letters and
+		 * digits.
+		 */
+		private static int endTagStart(char[] cbuf, int off, int n) {
+			int i = off + n;
+			int nameLength = 0;
+			while (i > off && isNameChar(cbuf[i - 1])) {
+				if (++nameLength > MAX_NAME_LENGTH) {
+					return 0;
+				}
+				i--;
+			}
+			if (i > off && cbuf[i - 1] == '/') {
+				i--;
+			} else if (nameLength > 0) {
+				return 0;
+			}
+			if (i > off && cbuf[i - 1] == '<') {
+				return off + n - (i - 1);
+			}
+			return 0;
+		}
+
+		/*
+		 * Returns how many characters at the end of the given ones belong to
+		 * a title whose "&lt;/title&gt;" has not been read yet, counting from
+		 * its start tag, which may itself be incomplete.
+		 */
+		private static int openTitle(char[] cbuf, int off, int n) {
+			int end = off + n;
+			int open = 0;
+			int partial = 0;
+			for (int i = end - 1; i >= off; i--) {
+				if (cbuf[i] == '<') {
+					if (startsWith(cbuf, i + 1, end, "/title>")) {
+						break;
+					}
+					int available = end - i - 1;
+					if (available < 5) {
+						// the characters read may end in the first part of one
+						if (partial == 0 && startsWith(cbuf, i + 1, end, "title".substring(0, available))) {
+							partial = end - i;
+						}
+					} else if (startsWith(cbuf, i + 1, end, "title") && (available == 5 || !isNameChar(cbuf[i + 6]))) {
+						// the first start tag since the last end tag counts
+						open = end - i;
+					}
+				}
+			}
+			return open > 0 ? open : partial;
+		}
+
+		private static boolean startsWith(char[] cbuf, int start, int end, String prefix) {
+			if (end - start < prefix.length()) {
+				return false;
+			}
+			for (int i = 0; i < prefix.length(); i++) {
+				if (Character.toLowerCase(cbuf[start + i]) != prefix.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean isNameChar(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
 		}
 
+		private int readAhead(char[] cbuf, int off, int len) throws IOException {
+			if (eof) {
+				return -1;
+			}
+			int read = in.read(cbuf, off, len);
+			if (read == -1) {
+				eof = true;
+				if (writer != null) {
+					writer.setTrailingLineBreak(last == '\n');
+				}
+				return -1;
+			}
+			if (read > 0) {
+				length += read;
+				last = cbuf[off + read - 1];
+			}
+			if (limit > 0 && length > limit) {
+				overLimit = true;
+				throw new IOException("Input is longer than " + limit + " characters");
+			}
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			throw new IOException("skip() not supported");
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public void mark(int readAheadLimit) throws IOException {
+			throw new IOException("mark() not supported");
+		}
+
+		int getLength() {
+			return length;
+		}
+
+		boolean isOverLimit() {
+			return overLimit;
+		}
 	}
-	
 
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.util.LinkedList;
+
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanCallback;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanFuture;
+
+/**
+ * Runs scans on a fixed set of worker threads so the submitting thread never
+ * waits, not even for stylesheets fetched when <code>embedStyleSheets</code>
+ * is on; those imports tie up a worker, never the caller. Each worker keeps
+ * its own scanners between scans.
+ * 
+ * The number of scans waiting for a worker is bounded. A scan submitted
+ * while the queue is full fails straight away instead of blocking the
+ * caller, so an overloaded server can shed load.
+ * 
+ * A worker that is interrupted, or dies with an <code>Error</code>, is
+ * replaced, so queued scans are never left without a thread to run them.
+ * 
+ * This should be called implicitly through the
+ * <code>AntiSamy.scanAsync()</code> methods.
+ */
+public class AsyncScanner {
+
+	public static final int DEFAULT_MAX_PENDING_SCANS = 1024;
+
+	private static AsyncScanner defaultScanner = null;
+
+	private final LinkedList queue = new LinkedList();
+	private final int maxPendingScans;
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a scanner with its own daemon worker threads.
+	 * 
+	 * @param threads
+	 *            The number of scans that may run at the same time.
+	 * @param maxPendingScans
+	 *            The number of scans that may wait for a free worker.
+	 */
+	public AsyncScanner(int threads, int maxPendingScans) {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed, not " + threads);
+		}
+
+		this.maxPendingScans = maxPendingScans;
+
+		for (int i = 0; i < threads; i++) {
+			startWorker(i);
+		}
+	}
+
+	private void startWorker(int number) {
+		Thread worker = new Thread(new Worker(number), "AntiSamy async worker " + number);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Return the scanner shared by all <code>AntiSamy</code> objects that
+	 * were not given one of their own: one worker per available processor.
+	 * It cannot be shut down.
+	 */
+	public static synchronized AsyncScanner getDefault() {
+		if (defaultScanner == null) {
+			defaultScanner = new AsyncScanner(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING_SCANS);
+		}
+		return defaultScanner;
+	}
+
+	/**
+	 * Queues a scan and returns without waiting for it.
+	 * 
+	 * @param callback
+	 *            Told about the outcome on the worker thread that ran the
+	 *            scan, or on the calling thread if the scan was rejected.
+	 *            May be null.
+	 */
+	public ScanFuture submit(String html, Policy policy, int scanType, String inputEncoding, String outputEncoding, ScanCallback callback) {
+		return submit(html, policy, scanType, inputEncoding, outputEncoding, null, callback);
+	}
+
+	/**
+	 * Queues a scan and returns without waiting for it.
+	 * 
+	 * @param retainDocumentFragment
+	 *            Whether the results keep the DOM of a DOM scan, or null to
+	 *            go by the policy's <code>retainDocumentFragment</code>
+	 *            directive.
+	 */
+	public ScanFuture submit(String html, Policy policy, int scanType, String inputEncoding, String outputEncoding, Boolean retainDocumentFragment, ScanCallback callback) {
+
+		PendingFuture future = new PendingFuture(callback);
+		String rejection = null;
+
+		synchronized (queue) {
+			if (shutdown) {
+				rejection = "Scanner has been shut down";
+			} else if (queue.size() >= maxPendingScans) {
+				rejection = "Too many scans pending (" + maxPendingScans + ")";
+			} else {
+				queue.addLast(new PendingScan(html, policy, scanType, inputEncoding, outputEncoding, retainDocumentFragment, future));
+				queue.notify();
+			}
+		}
+
+		if (rejection != null) {
+			future.reject(new ScanException(rejection));
+		}
+
+		return future;
+	}
+
+	/**
+	 * Stops the workers once the scans already queued are done. Scans
+	 * submitted afterwards fail.
+	 * 
+	 * @throws IllegalStateException
+	 *             If this is the shared scanner returned by
+	 *             <code>getDefault()</code>.
+	 */
+	public void shutdown() {
+		synchronized (AsyncScanner.class) {
+			if (this == defaultScanner) {
+				throw new IllegalStateException("The default scanner is shared and cannot be shut down");
+			}
+		}
+		synchronized (queue) {
+			shutdown = true;
+			queue.notifyAll();
+		}
+	}
+
+	private static class PendingScan {
+
+		final String html;
+		final Policy policy;
+		final int scanType;
+		final String inputEncoding;
+		final String outputEncoding;
+		final Boolean retainDocumentFragment;
+		final PendingFuture future;
+
+		PendingScan(String html, Policy policy, int scanType, String inputEncoding, String outputEncoding, Boolean retainDocumentFragment, PendingFuture future) {
+			this.html = html;
+			this.policy = policy;
+			this.scanType = scanType;
+			this.inputEncoding = inputEncoding;
+			this.outputEncoding = outputEncoding;
+			this.retainDocumentFragment = retainDocumentFragment;
+			this.future = future;
+		}
+	}
+
+	/*
+	 * The only way to settle a ScanFuture, so that no one but the worker
+	 * running the scan can.
+	 */
+	private static class PendingFuture extends ScanFuture {
+
+		PendingFuture(ScanCallback callback) {
+			super(callback);
+		}
+
+		void succeed(CleanResults results) {
+			complete(results);
+		}
+
+		void reject(ScanException exception) {
+			fail(exception);
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final int number;
+
+		/*
+		 * Scanners are bound to a policy, and read some of its directives
+		 * when they are created, so they are only kept for as long as
+		 * consecutive scans use the same one, unchanged.
+		 */
+		private Policy policy = null;
+		private int policyVersion;
+		private AbstractAntiSamyScanner domScanner = null;
+		private AbstractAntiSamyScanner saxScanner = null;
+
+		Worker(int number) {
+			this.number = number;
+		}
+
+		public void run() {
+			try {
+				work();
+			} finally {
+				// only shutdown() ends a worker; any other way, another takes its place
+				synchronized (queue) {
+					if (!shutdown) {
+						startWorker(number);
+					}
+				}
+			}
+		}
+
+		private void work() {
+
+			while (true) {
+
+				PendingScan scan;
+
+				synchronized (queue) {
+					while (queue.isEmpty() && !shutdown) {
+						try {
+							queue.wait();
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+					if (queue.isEmpty()) {
+						return;
+					}
+					scan = (PendingScan) queue.removeFirst();
+				}
+
+				CleanResults results = null;
+				ScanException failure = null;
+
+				try {
+					AbstractAntiSamyScanner scanner = getScanner(scan.policy, scan.scanType);
+					scanner.setRetainDocumentFragment(scan.retainDocumentFragment);
+					results = scanner.scan(scan.html, scan.inputEncoding, scan.outputEncoding);
+				} catch (ScanException se) {
+					failure = se;
+				} catch (RuntimeException re) {
+					failure = new ScanException(re);
+				} catch (Error e) {
+					// don't leave the caller waiting on this scan forever
+					try {
+						scan.future.reject(new ScanException(e.toString()));
+					} catch (RuntimeException re) {
+						// the Error is what matters
+					}
+					throw e;
+				}
+
+				try {
+					if (failure != null) {
+						scan.future.reject(failure);
+					} else {
+						scan.future.succeed(results);
+					}
+				} catch (RuntimeException re) {
+					// a failing callback must not take the worker down
+				}
+			}
+		}
+
+		private AbstractAntiSamyScanner getScanner(Policy scanPolicy, int scanType) {
+
+			if (scanPolicy != policy || scanPolicy.getVersion() != policyVersion) {
+				policy = scanPolicy;
+				policyVersion = scanPolicy.getVersion();
+				domScanner = null;
+				saxScanner = null;
+			}
+
+			if (scanType == AntiSamy.DOM) {
+				if (domScanner == null) {
+					domScanner = new AntiSamyDOMScanner(policy);
+				}
+				return domScanner;
+			}
+
+			if (saxScanner == null) {
+				saxScanner = new AntiSamySAXScanner(policy);
+			}
+			return saxScanner;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.BatchCleanResults;
+import org.owasp.validator.html.BatchScanListener;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+/**
+ * Scans a batch of inputs with one or more worker threads. Every worker has
+ * its own scanner, so no parser, filter or serializer state is ever shared;
+ * only the (read-only) Policy is. Results are delivered in input order no
+ * matter which worker finishes first.
+ * 
+ * Workers never read more than <code>SCANS_AHEAD_PER_THREAD</code> inputs per
+ * thread past the oldest result that has not been delivered yet. This keeps
+ * memory bounded when the input is an unbounded <code>Iterator</code> and the
+ * results go to a <code>BatchScanListener</code>.
+ * 
+ * This should be called implicitly through the
+ * <code>AntiSamy.scanAll()</code> methods. An instance scans one batch at a
+ * time.
+ */
+public class BatchScanner {
+
+	private static final int SCANS_AHEAD_PER_THREAD = 16;
+
+	private final Policy policy;
+	private final int scanType;
+	private final String inputEncoding;
+	private final String outputEncoding;
+	private Boolean retainDocumentFragment = null;
+
+	/*
+	 * Batch state, guarded by this.
+	 */
+	private Iterator taintedHTML;
+	private BatchScanListener listener;
+	private int scansAhead;
+	private boolean inputExhausted;
+	private int nextIndex;
+	private int nextToDeliver;
+	private HashMap pending;
+	private ArrayList results;
+	private int numberOfErrors;
+	private long inputLength;
+	private ScanException failure;
+
+	/*
+	 * Held while results are handed to the listener, so it is called in
+	 * order and never concurrently without holding up the workers.
+	 */
+	private final Object deliveryLock = new Object();
+
+	public BatchScanner(Policy policy, int scanType, String inputEncoding, String outputEncoding) {
+		this.policy = policy;
+		this.scanType = scanType;
+		this.inputEncoding = inputEncoding;
+		this.outputEncoding = outputEncoding;
+	}
+
+	/**
+	 * Overrides the policy's <code>retainDocumentFragment</code> directive
+	 * for the scans of this batch.
+	 */
+	public void setRetainDocumentFragment(Boolean retainDocumentFragment) {
+		this.retainDocumentFragment = retainDocumentFragment;
+	}
+
+	/**
+	 * Scans every String the Iterator returns.
+	 * 
+	 * @param taintedHTML
+	 *            The inputs. The Iterator is only ever used by one thread at
+	 *            a time.
+	 * @param threads
+	 *            The number of worker threads; 1 scans on the calling thread.
+	 * @param listener
+	 *            Receives each result in input order, or null to collect the
+	 *            results in the returned <code>BatchCleanResults</code>.
+	 * @throws ScanException
+	 *             The first exception any of the workers ran into; the rest
+	 *             of the batch is abandoned.
+	 */
+	public BatchCleanResults scan(Iterator taintedHTML, int threads, BatchScanListener listener) throws ScanException {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed, not " + threads);
+		}
+
+		synchronized (this) {
+			this.taintedHTML = taintedHTML;
+			this.listener = listener;
+			this.scansAhead = threads * SCANS_AHEAD_PER_THREAD;
+			this.inputExhausted = false;
+			this.nextIndex = 0;
+			this.nextToDeliver = 0;
+			this.pending = new HashMap();
+			this.results = new ArrayList();
+			this.numberOfErrors = 0;
+			this.inputLength = 0;
+			this.failure = null;
+		}
+
+		Date start = new Date();
+
+		if (threads == 1) {
+			new Worker().run();
+		} else {
+			Thread[] workers = new Thread[threads];
+
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new Thread(new Worker(), "AntiSamy batch worker " + i);
+				workers[i].start();
+			}
+
+			boolean interrupted = false;
+
+			for (int i = 0; i < threads; i++) {
+				try {
+					workers[i].join();
+				} catch (InterruptedException ie) {
+					// stop the workers, but still wait for them to finish
+					fail(new ScanException(ie));
+					interrupted = true;
+					i--;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+
+			return new BatchCleanResults(start, new Date(), results, nextToDeliver, numberOfErrors, inputLength);
+		}
+	}
+
+	private synchronized void fail(ScanException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Hands on every result that is next in line. The results are taken off
+	 * under the lock, but the listener is called outside of it, so a slow
+	 * listener does not keep the other workers from taking inputs. Must not
+	 * be called while holding the lock.
+	 */
+	private void deliver() {
+
+		synchronized (deliveryLock) {
+
+			ArrayList ready = new ArrayList();
+			int first;
+
+			synchronized (this) {
+
+				first = nextToDeliver;
+				CleanResults cr;
+
+				while ((cr = (CleanResults) pending.remove(new Integer(nextToDeliver))) != null) {
+
+					numberOfErrors += cr.getNumberOfErrors();
+
+					if (listener != null) {
+						ready.add(cr);
+					} else {
+						results.add(cr);
+					}
+
+					nextToDeliver++;
+				}
+
+				notifyAll();
+			}
+
+			for (int i = 0; i < ready.size(); i++) {
+				listener.scanned(first + i, (CleanResults) ready.get(i));
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final AbstractAntiSamyScanner scanner;
+
+		Worker() {
+			if (scanType == AntiSamy.DOM) {
+				scanner = new AntiSamyDOMScanner(policy);
+			} else {
+				scanner = new AntiSamySAXScanner(policy);
+			}
+			scanner.setRetainDocumentFragment(retainDocumentFragment);
+		}
+
+		public void run() {
+
+			try {
+
+				while (true) {
+
+					String html;
+					int index;
+
+					synchronized (BatchScanner.this) {
+
+						while (failure == null && !inputExhausted && nextIndex - nextToDeliver >= scansAhead) {
+							BatchScanner.this.wait();
+						}
+
+						if (failure != null || inputExhausted) {
+							return;
+						}
+
+						if (!taintedHTML.hasNext()) {
+							inputExhausted = true;
+							BatchScanner.this.notifyAll();
+							return;
+						}
+
+						html = (String) taintedHTML.next();
+						index = nextIndex++;
+					}
+
+					CleanResults cr = scanner.scan(html, inputEncoding, outputEncoding);
+
+					synchronized (BatchScanner.this) {
+
+						if (failure != null) {
+							return;
+						}
+
+						pending.put(new Integer(index), cr);
+						inputLength += html.length();
+					}
+
+					deliver();
+				}
+
+			} catch (ScanException se) {
+				fail(se);
+			} catch (InterruptedException ie) {
+				fail(new ScanException(ie));
+			} catch (RuntimeException re) {
+				fail(new ScanException(re));
+			} catch (Error e) {
+				// don't leave the other workers waiting for this one
+				fail(new ScanException(e.toString()));
+				throw e;
+			}
+
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Replays the cleaned <code>DocumentFragment</code> of the DOM scanner as
+ * the SAX events the SAX scanner would send for the same markup, for a
+ * content handler given by the caller.
+ */
+final class DOMWalker {
+
+	private DOMWalker() {
+	}
+
+	/**
+	 * Sends the children of the node to the handler as one document.
+	 */
+	static void walk(Node node, ContentHandler handler) throws SAXException {
+		LexicalHandler lexicalHandler = handler instanceof LexicalHandler ? (LexicalHandler) handler : null;
+
+		handler.startDocument();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			walk(child, handler, lexicalHandler);
+		}
+		handler.endDocument();
+	}
+
+	private static void walk(Node node, ContentHandler handler, LexicalHandler lexicalHandler) throws SAXException {
+
+		switch (node.getNodeType()) {
+
+		case Node.ELEMENT_NODE: {
+			String name = ((Element) node).getTagName();
+			AttributesImpl attributes = new AttributesImpl();
+
+			NamedNodeMap map = node.getAttributes();
+			if (map != null) {
+				for (int i = 0; i < map.getLength(); i++) {
+					Attr attribute = (Attr) map.item(i);
+					if (attribute.getSpecified()) {
+						attributes.addAttribute("", attribute.getName(), attribute.getName(), "CDATA", attribute.getValue());
+					}
+				}
+			}
+
+			handler.startElement("", name, name, attributes);
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				walk(child, handler, lexicalHandler);
+			}
+			handler.endElement("", name, name);
+			break;
+		}
+
+		case Node.TEXT_NODE:
+			characters(node.getNodeValue(), handler);
+			break;
+
+		case Node.CDATA_SECTION_NODE:
+			if (lexicalHandler != null) {
+				lexicalHandler.startCDATA();
+			}
+			characters(node.getNodeValue(), handler);
+			if (lexicalHandler != null) {
+				lexicalHandler.endCDATA();
+			}
+			break;
+
+		case Node.COMMENT_NODE:
+			if (lexicalHandler != null && node.getNodeValue() != null) {
+				char[] ch = node.getNodeValue().toCharArray();
+				lexicalHandler.comment(ch, 0, ch.length);
+			}
+			break;
+
+		case Node.ENTITY_REFERENCE_NODE:
+			if (lexicalHandler != null) {
+				lexicalHandler.startEntity(node.getNodeName());
+			}
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				walk(child, handler, lexicalHandler);
+			}
+			if (lexicalHandler != null) {
+				lexicalHandler.endEntity(node.getNodeName());
+			}
+			break;
+
+		default:
+			// processing instructions and the like are never part of clean output
+			break;
+		}
+	}
+
+	private static void characters(String value, ContentHandler handler) throws SAXException {
+		if (value != null && value.length() > 0) {
+			char[] ch = value.toCharArray();
+			handler.characters(ch, 0, ch.length);
+		}
+	}
+}
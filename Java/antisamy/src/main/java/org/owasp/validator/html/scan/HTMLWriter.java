@@ -0,0 +1,1370 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.xerces.util.EncodingMap;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Writes sanitized markup to a <code>Writer</code> as HTML or XHTML,
+ * depending on the policy's <code>useXHTML</code> directive. The DOM scanner
+ * hands it the cleaned <code>DocumentFragment</code> through
+ * <code>serialize()</code>; the SAX scanner registers it as the content and
+ * lexical handler of the NekoHTML parser so the events coming out of
+ * <code>MagicSAXFilter</code> are written as they arrive.
+ * 
+ * The output is the same as that of the Xerces <code>HTMLSerializer</code>
+ * and <code>XHTMLSerializer</code> subclasses this class replaces, including
+ * line wrapping and indentation when <code>formatOutput</code> is on, the
+ * <code>allowedEmptyTags</code> and <code>requireClosingTags</code> handling
+ * of empty elements, and the escaping rules. ASCII characters are escaped
+ * from a precomputed table, and the named entities used when
+ * <code>entityEncodeIntlChars</code> is on come from the bitset in
+ * <code>HTMLEntityEncoder</code>, instead of a lookup per character.
+ * 
+ * A writer may be used for any number of documents in a row, but not by
+ * several threads at once.
+ */
+public class HTMLWriter implements ContentHandler, LexicalHandler {
+
+	/**
+	 * The width formatted output is wrapped at.
+	 */
+	static final int LINE_WIDTH = 72;
+
+	private static final int INDENT = 2;
+
+	private static final String SYSTEM_ID_INDENT = "                      ";
+
+	/**
+	 * The Java names of the encodings every character can be written in
+	 * as-is.
+	 */
+	private static final String[] UNICODE_ENCODINGS = { "Unicode", "UnicodeBig", "UnicodeLittle", "GB2312", "UTF8", "UTF-16" };
+
+	/**
+	 * What to write instead of each ASCII character in text and attribute
+	 * values, or null if the character is written as-is.
+	 */
+	private static final String[] ASCII_ESCAPES = new String[128];
+
+	private static final Set EMPTY_TAGS = new HashSet();
+	private static final Set ONLY_OPENING_TAGS = new HashSet();
+	private static final Set PRESERVE_SPACE_TAGS = new HashSet();
+	private static final Map BOOLEAN_ATTRIBUTES = new HashMap();
+
+	static {
+		for (int i = 0; i < ' '; i++) {
+			if (i != '\t' && i != '\n' && i != '\r') {
+				ASCII_ESCAPES[i] = "&#x" + Integer.toHexString(i) + ";";
+			}
+		}
+		ASCII_ESCAPES['"'] = "&quot;";
+		ASCII_ESCAPES['&'] = "&amp;";
+		ASCII_ESCAPES['<'] = "&lt;";
+		ASCII_ESCAPES['>'] = "&gt;";
+
+		String[] empty = { "area", "base", "basefont", "br", "col", "frame", "hr", "img", "input", "isindex", "link", "meta", "param" };
+		for (int i = 0; i < empty.length; i++) {
+			EMPTY_TAGS.add(empty[i]);
+			ONLY_OPENING_TAGS.add(empty[i]);
+		}
+		ONLY_OPENING_TAGS.add("dd");
+		ONLY_OPENING_TAGS.add("dt");
+		ONLY_OPENING_TAGS.add("li");
+		ONLY_OPENING_TAGS.add("option");
+
+		PRESERVE_SPACE_TAGS.add("noscript");
+		PRESERVE_SPACE_TAGS.add("pre");
+		PRESERVE_SPACE_TAGS.add("script");
+		PRESERVE_SPACE_TAGS.add("style");
+		PRESERVE_SPACE_TAGS.add("textarea");
+
+		defineBoolean("area", new String[] { "href" });
+		defineBoolean("button", new String[] { "disabled" });
+		defineBoolean("dir", new String[] { "compact" });
+		defineBoolean("dl", new String[] { "compact" });
+		defineBoolean("frame", new String[] { "noresize" });
+		defineBoolean("hr", new String[] { "noshade" });
+		defineBoolean("image", new String[] { "ismap" });
+		defineBoolean("input", new String[] { "defaultchecked", "checked", "readonly", "disabled" });
+		defineBoolean("link", new String[] { "link" });
+		defineBoolean("menu", new String[] { "compact" });
+		defineBoolean("object", new String[] { "declare" });
+		defineBoolean("ol", new String[] { "compact" });
+		defineBoolean("optgroup", new String[] { "disabled" });
+		defineBoolean("option", new String[] { "default-selected", "selected", "disabled" });
+		defineBoolean("script", new String[] { "defer" });
+		defineBoolean("select", new String[] { "multiple", "disabled" });
+		defineBoolean("style", new String[] { "disabled" });
+		defineBoolean("td", new String[] { "nowrap" });
+		defineBoolean("th", new String[] { "nowrap" });
+		defineBoolean("textarea", new String[] { "disabled", "readonly" });
+		defineBoolean("ul", new String[] { "compact" });
+	}
+
+	private static void defineBoolean(String tagName, String[] attributeNames) {
+		Set names = new HashSet();
+		for (int i = 0; i < attributeNames.length; i++) {
+			names.add(attributeNames[i]);
+		}
+		BOOLEAN_ATTRIBUTES.put(tagName, names);
+	}
+
+	private final boolean useXhtml;
+	private final boolean indenting;
+	private final boolean preserveSpace;
+	private final boolean omitDoctype;
+	private final boolean encodeAllPossibleEntities;
+	private final Set allowedEmptyTags = new HashSet();
+	private final Set requireClosingTags = new HashSet();
+
+	/*
+	 * Null if the output encoding can represent every character.
+	 */
+	private final CharsetEncoder encoder;
+
+	private Writer out;
+	private boolean trailingLineBreak = true;
+
+	/*
+	 * The line break, or carriage return, the output currently ends with.
+	 * It is held back until more output follows so that it can be left off
+	 * at the end of the document.
+	 */
+	private boolean heldCR = false;
+	private boolean heldLF = false;
+
+	/*
+	 * Element state, index 0 being the document itself.
+	 */
+	private ElementState[] states = new ElementState[16];
+	private int depth = 0;
+
+	private boolean started = false;
+	private ArrayList preRoot = null;
+
+	/*
+	 * Line buffering for formatted output: the text of the current line that
+	 * has been placed already, the word being collected, the number of spaces
+	 * to put in front of that word, and the indentation of this line and the
+	 * next.
+	 */
+	private char[] line = new char[128];
+	private int lineLength = 0;
+	private char[] text = new char[64];
+	private int textLength = 0;
+	private int spaces = 0;
+	private int thisIndent = 0;
+	private int nextIndent = 0;
+
+	private char[] scratch = new char[64];
+
+	/*
+	 * The most characters the document may take, 0 for no limit, the
+	 * characters written so far and whether the limit cut the document
+	 * short. The closing tags put after the cut, and the line breaks and
+	 * indentation of formatted output, are not counted.
+	 */
+	private final int maxOutputSize;
+	private int written = 0;
+	private boolean truncated = false;
+
+	/*
+	 * Collects the text of what is written, so that it ends where the
+	 * output does.
+	 */
+	private TextExtractor extractor = null;
+
+	/**
+	 * Creates a writer for the given policy's output directives.
+	 * 
+	 * @param policy The policy whose <code>useXHTML</code>,
+	 *        <code>formatOutput</code>, <code>preserveSpace</code>,
+	 *        <code>omitDoctypeDeclaration</code>,
+	 *        <code>entityEncodeIntlChars</code>, allowed empty tags and
+	 *        required closing tags are applied.
+	 * @param encoding The encoding the output will be stored in. Characters
+	 *        it cannot represent are written as character references.
+	 * @throws UnsupportedEncodingException If the encoding is not known.
+	 */
+	public HTMLWriter(Policy policy, String encoding) throws UnsupportedEncodingException {
+		this.useXhtml = "true".equals(policy.getDirective(Policy.USE_XHTML));
+		this.indenting = "true".equals(policy.getDirective(Policy.FORMAT_OUTPUT));
+		this.preserveSpace = "true".equals(policy.getDirective(Policy.PRESERVE_SPACE));
+		this.omitDoctype = "true".equals(policy.getDirective(Policy.OMIT_DOCTYPE_DECLARATION));
+		this.encodeAllPossibleEntities = "true".equals(policy.getDirective(Policy.ENTITY_ENCODE_INTL_CHARS));
+
+		String[] tags = policy.getAllowedEmptyTags();
+		for (int i = 0; i < tags.length; i++) {
+			allowedEmptyTags.add(tags[i].toLowerCase(Locale.ENGLISH));
+		}
+		tags = policy.getRequiresClosingTags();
+		for (int i = 0; i < tags.length; i++) {
+			requireClosingTags.add(tags[i].toLowerCase(Locale.ENGLISH));
+		}
+
+		this.encoder = getEncoder(encoding);
+		this.maxOutputSize = policy.getMaxOutputSize();
+
+		for (int i = 0; i < states.length; i++) {
+			states[i] = new ElementState();
+		}
+	}
+
+	private static CharsetEncoder getEncoder(String encoding) throws UnsupportedEncodingException {
+		if (encoding == null) {
+			return null;
+		}
+
+		encoding = encoding.toUpperCase(Locale.ENGLISH);
+		String javaName = EncodingMap.getIANA2JavaMapping(encoding);
+
+		if (javaName == null) {
+			throw new UnsupportedEncodingException(encoding);
+		}
+
+		for (int i = 0; i < UNICODE_ENCODINGS.length; i++) {
+			if (UNICODE_ENCODINGS[i].equalsIgnoreCase(javaName)) {
+				return null;
+			}
+		}
+
+		try {
+			return Charset.forName(javaName).newEncoder();
+		} catch (IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(encoding);
+		}
+	}
+
+	/**
+	 * Sets the <code>Writer</code> the next document is written to.
+	 */
+	public void setOutput(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Sets whether a line break at the very end of the next document is
+	 * written. The scanners keep it only if the input ended with one, so
+	 * the line break the writer puts after the last element does not have
+	 * to be cut off the output afterwards.
+	 */
+	public void setTrailingLineBreak(boolean trailingLineBreak) {
+		this.trailingLineBreak = trailingLineBreak;
+	}
+
+	/**
+	 * Returns whether the policy's <code>maxOutputSize</code> was reached
+	 * and the rest of the last document left out.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Sets the extractor that is given the text of the next document as it
+	 * is written, or null for none. Text cut off by the output limit does
+	 * not reach it.
+	 */
+	public void setTextExtractor(TextExtractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Writes the children of the given node, typically the
+	 * <code>DocumentFragment</code> built by the DOM scanner, as one
+	 * document.
+	 */
+	public void serialize(Node node) throws IOException {
+		startFragment();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			serializeNode(child);
+		}
+		endFragment();
+	}
+
+	/**
+	 * Starts a document that is then written one node at a time with
+	 * {@link #serializeNode(Node)}, and finished with
+	 * {@link #endFragment()}.
+	 */
+	public void startFragment() {
+		begin();
+	}
+
+	/**
+	 * Finishes the document, closing any elements left open when the output
+	 * limit was reached.
+	 */
+	public void endFragment() throws IOException {
+		end();
+	}
+
+	/**
+	 * Writes a node and its descendants. Once the output limit has been
+	 * reached nothing more is written.
+	 */
+	public void serializeNode(Node node) throws IOException {
+
+		if (truncated) {
+			return;
+		}
+
+		switch (node.getNodeType()) {
+
+		case Node.ELEMENT_NODE:
+			if (isFull()) {
+				truncated = true;
+				return;
+			}
+			serializeElement((Element) node);
+			break;
+
+		case Node.TEXT_NODE: {
+			String value = node.getNodeValue();
+			/*
+			 * Whitespace between elements is replaced by the indentation
+			 * when output is formatted.
+			 */
+			if (value != null && !(indenting && !states[depth].preserveSpace && isBlank(value))) {
+				characters(value);
+			} else if (value != null && extractor != null) {
+				extractor.extract(value);
+			}
+			break;
+		}
+
+		case Node.CDATA_SECTION_NODE: {
+			String value = node.getNodeValue();
+			if (value != null) {
+				states[depth].doCData = true;
+				characters(value);
+				states[depth].doCData = false;
+			}
+			break;
+		}
+
+		case Node.COMMENT_NODE: {
+			String value = node.getNodeValue();
+			if (value != null) {
+				comment(value);
+			}
+			break;
+		}
+
+		case Node.ENTITY_REFERENCE_NODE:
+			if (isFull()) {
+				truncated = true;
+				return;
+			}
+			states[depth].doCData = false;
+			content();
+			print('&');
+			print(node.getNodeName());
+			print(';');
+			if (extractor != null) {
+				extractor.extract(node);
+			}
+			break;
+
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				serializeNode(child);
+			}
+			break;
+
+		default:
+			// processing instructions and the like are never part of clean output
+			break;
+		}
+	}
+
+	private void serializeElement(Element element) throws IOException {
+		String tagName = element.getTagName();
+		ElementState parent = states[depth];
+		boolean preserveSpace = openTag(tagName);
+
+		NamedNodeMap attributes = element.getAttributes();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attribute = (Attr) attributes.item(i);
+				if (attribute.getSpecified()) {
+					attribute(tagName, attribute.getName(), attribute.getValue());
+				}
+			}
+		}
+
+		if (!element.hasChildNodes() && EMPTY_TAGS.contains(lower(tagName))) {
+			unindent();
+			print(useXhtml ? " />" : ">");
+			if (extractor != null) {
+				extractor.open(lower(tagName));
+				extractor.close(lower(tagName));
+			}
+			parent.afterElement = true;
+			parent.empty = false;
+			if (depth == 0) {
+				flush();
+			}
+			return;
+		}
+
+		enterElement(tagName, preserveSpace);
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			serializeNode(child);
+		}
+
+		endElement(tagName);
+	}
+
+	/*
+	 * ContentHandler and LexicalHandler, for the SAX scanner.
+	 */
+
+	public void startDocument() throws SAXException {
+		begin();
+	}
+
+	public void endDocument() throws SAXException {
+		try {
+			end();
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+		if (truncated || isFull()) {
+			throw outputLimitReached();
+		}
+		try {
+			String tagName = qName == null || qName.length() == 0 ? localName : qName;
+			boolean preserveSpace = openTag(tagName);
+
+			if (attributes != null) {
+				int length = attributes.getLength();
+				for (int i = 0; i < length; i++) {
+					String name = attributes.getQName(i);
+					if (indexOf(attributes, name, 0, i) == -1) {
+						/*
+						 * An attribute given more than once is written once,
+						 * in its first position, with its last value.
+						 */
+						int last = i;
+						for (int j = indexOf(attributes, name, i + 1, length); j != -1; j = indexOf(attributes, name, j + 1, length)) {
+							last = j;
+						}
+						attribute(tagName, name, attributes.getValue(last));
+					}
+				}
+			}
+
+			enterElement(tagName, preserveSpace);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	/**
+	 * The exception that stops the parser, and with it validation of the
+	 * rest of the input, once the output limit is reached.
+	 */
+	private SAXException outputLimitReached() {
+		truncated = true;
+		return new SAXException("Output limit of " + maxOutputSize + " characters reached");
+	}
+
+	private static int indexOf(Attributes attributes, String name, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (name.equals(attributes.getQName(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+
+		try {
+			endElement(qName == null || qName.length() == 0 ? localName : qName);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		if (truncated) {
+			throw outputLimitReached();
+		}
+		try {
+			ElementState state = content();
+			// CDATA sections in the input are written as ordinary text
+			boolean whole = state.unescaped || state.doCData;
+			state.doCData = false;
+			if (whole ? fits(length) : !isFull()) {
+				int printed = printText(ch, start, length, state.preserveSpace, state.unescaped);
+				if (extractor != null) {
+					extractor.characters(ch, start, printed);
+				}
+			} else {
+				truncated = true;
+			}
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+		if (truncated) {
+			throw outputLimitReached();
+		}
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		if (truncated) {
+			throw outputLimitReached();
+		}
+		try {
+			content();
+			if (indenting) {
+				thisIndent = 0;
+				printRaw(ch, start, length);
+			}
+			if (extractor != null) {
+				extractor.ignorableWhitespace(ch, start, length);
+			}
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	public void comment(char[] ch, int start, int length) throws SAXException {
+		if (truncated) {
+			throw outputLimitReached();
+		}
+		try {
+			comment(new String(ch, start, length));
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+		if (truncated) {
+			throw outputLimitReached();
+		}
+	}
+
+	public void startCDATA() {
+		states[depth].doCData = true;
+	}
+
+	public void endCDATA() {
+		states[depth].doCData = false;
+	}
+
+	public void processingInstruction(String target, String data) {
+		// processing instructions are never part of clean output
+	}
+
+	public void setDocumentLocator(Locator locator) {
+	}
+
+	public void startPrefixMapping(String prefix, String uri) {
+	}
+
+	public void endPrefixMapping(String prefix) {
+	}
+
+	public void skippedEntity(String name) {
+	}
+
+	public void startDTD(String name, String publicId, String systemId) {
+	}
+
+	public void endDTD() {
+	}
+
+	public void startEntity(String name) {
+	}
+
+	public void endEntity(String name) {
+	}
+
+	/*
+	 * Markup.
+	 */
+
+	private void begin() {
+		depth = 0;
+		ElementState document = states[0];
+		document.rawName = null;
+		document.preserveSpace = preserveSpace;
+		document.empty = true;
+		document.afterElement = false;
+		document.afterComment = false;
+		document.inCData = false;
+		document.doCData = false;
+		document.unescaped = false;
+
+		started = false;
+		heldCR = false;
+		heldLF = false;
+		if (preRoot != null) {
+			preRoot.clear();
+		}
+
+		lineLength = 0;
+		textLength = 0;
+		spaces = 0;
+		thisIndent = 0;
+		nextIndent = 0;
+
+		written = 0;
+		truncated = false;
+	}
+
+	private void end() throws IOException {
+		while (depth > 0) {
+			endElement(states[depth].rawName);
+		}
+		printPreRoot();
+		flush();
+		if (trailingLineBreak || !heldLF) {
+			releaseLineBreak();
+		}
+		heldCR = false;
+		heldLF = false;
+	}
+
+	/**
+	 * Writes the doctype before the first element, unless the policy omits
+	 * it, followed by any comments that came before the first element.
+	 */
+	private void printDoctype() throws IOException {
+		if (!omitDoctype) {
+			if (useXhtml) {
+				print("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\"");
+			} else {
+				print("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\"");
+			}
+			if (indenting) {
+				breakLine();
+				print(SYSTEM_ID_INDENT);
+			} else {
+				print(' ');
+			}
+			if (useXhtml) {
+				print("\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
+			} else {
+				print("\"http://www.w3.org/TR/html4/strict.dtd\">");
+			}
+			breakLine();
+		}
+		started = true;
+		printPreRoot();
+	}
+
+	private void printPreRoot() throws IOException {
+		if (preRoot != null) {
+			for (int i = 0; i < preRoot.size(); i++) {
+				print((String) preRoot.get(i));
+				if (indenting) {
+					breakLine();
+				}
+			}
+			preRoot.clear();
+		}
+	}
+
+	/**
+	 * Closes the start tag of the parent if need be and writes the name of
+	 * the new element. Returns whether the parent preserves whitespace.
+	 */
+	private boolean openTag(String tagName) throws IOException {
+		ElementState parent = states[depth];
+
+		if (depth == 0) {
+			if (!started) {
+				printDoctype();
+			}
+		} else {
+			if (parent.empty) {
+				print('>');
+			}
+			if (indenting && !parent.preserveSpace && (parent.empty || parent.afterElement)) {
+				breakLine();
+			}
+		}
+
+		print('<');
+		print(useXhtml ? lower(tagName) : tagName);
+		indent();
+
+		return parent.preserveSpace;
+	}
+
+	private void attribute(String tagName, String name, String value) throws IOException {
+		printSpace();
+		name = lower(name);
+
+		if (useXhtml) {
+			print(name);
+			print("=\"");
+			if (value != null) {
+				printEscaped(value);
+			}
+			print('"');
+			return;
+		}
+
+		if (value == null) {
+			value = "";
+		}
+
+		if ("href".equals(name) || "src".equals(name)) {
+			// URIs are written as they are, cut off at the first quote
+			int quote = value.indexOf('"');
+			print(name);
+			print("=\"");
+			print(quote >= 0 ? value.substring(0, quote) : value);
+			print('"');
+		} else if (isBoolean(tagName, name)) {
+			print(name);
+		} else {
+			print(name);
+			print("=\"");
+			printEscaped(value);
+			print('"');
+		}
+	}
+
+	private void enterElement(String tagName, boolean preserveSpace) throws IOException {
+		String lowerName = lower(tagName);
+
+		if (PRESERVE_SPACE_TAGS.contains(lowerName)) {
+			preserveSpace = true;
+		}
+
+		if (++depth == states.length) {
+			ElementState[] grown = new ElementState[states.length * 2];
+			System.arraycopy(states, 0, grown, 0, states.length);
+			for (int i = states.length; i < grown.length; i++) {
+				grown[i] = new ElementState();
+			}
+			states = grown;
+		}
+
+		ElementState state = states[depth];
+		state.rawName = tagName;
+		state.preserveSpace = preserveSpace;
+		state.empty = true;
+		state.afterElement = false;
+		state.afterComment = false;
+		state.inCData = false;
+		state.doCData = false;
+		state.unescaped = false;
+
+		if (extractor != null) {
+			extractor.open(lowerName);
+		}
+
+		if ("a".equals(lowerName) || "td".equals(lowerName)) {
+			/*
+			 * The start tag of an anchor or table cell is closed right away
+			 * so no line break is put inside either.
+			 */
+			state.empty = false;
+			print('>');
+		}
+
+		if ("script".equals(lowerName) || "style".equals(lowerName)) {
+			if (useXhtml) {
+				state.doCData = true;
+			} else {
+				state.unescaped = true;
+			}
+		}
+	}
+
+	private void endElement(String tagName) throws IOException {
+		if (depth == 0) {
+			throw new IllegalStateException("No element to end");
+		}
+
+		unindent();
+		ElementState state = states[depth];
+		String lowerName = lower(tagName);
+
+		if (useXhtml) {
+			if (state.empty && allowedEmptyTags.contains(lowerName) && !requireClosingTags.contains(lowerName)) {
+				print(" />");
+			} else {
+				if (state.empty) {
+					print('>');
+				}
+				if (state.inCData) {
+					print("]]>");
+				}
+				print("</");
+				print(lower(state.rawName));
+				print('>');
+			}
+		} else {
+			if (state.empty) {
+				print('>');
+			}
+			if (!ONLY_OPENING_TAGS.contains(lowerName)) {
+				if (indenting && !state.preserveSpace && state.afterElement) {
+					breakLine();
+				}
+				if (state.inCData) {
+					print("]]>");
+				}
+				print("</");
+				print(state.rawName);
+				print('>');
+			}
+		}
+
+		if (extractor != null) {
+			extractor.close(lowerName);
+		}
+
+		ElementState parent = states[--depth];
+		if (!"a".equals(lowerName) && !"td".equals(lowerName)) {
+			parent.afterElement = true;
+		}
+		parent.empty = false;
+
+		if (depth == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Gets the current element ready for content: closes its start tag and,
+	 * when CDATA output was switched off, the open CDATA section.
+	 */
+	private ElementState content() throws IOException {
+		ElementState state = states[depth];
+
+		if (depth > 0) {
+			if (state.inCData && !state.doCData) {
+				print("]]>");
+				state.inCData = false;
+			}
+			if (state.empty) {
+				print('>');
+				state.empty = false;
+			}
+			state.afterElement = false;
+			state.afterComment = false;
+		}
+
+		return state;
+	}
+
+	private void characters(String value) throws IOException {
+		ElementState state = states[depth];
+
+		int length = value.length();
+		if (state.inCData || state.doCData || state.unescaped ? !fits(length) : isFull()) {
+			// script and style content is written whole or not at all
+			truncated = true;
+			return;
+		}
+
+		content();
+		if (scratch.length < length) {
+			scratch = new char[Math.max(length, scratch.length * 2)];
+		}
+		value.getChars(0, length, scratch, 0);
+
+		if (state.inCData || state.doCData) {
+			if (!state.inCData) {
+				print("<![CDATA[");
+				state.inCData = true;
+			}
+			printCDATAText(scratch, length);
+			if (extractor != null) {
+				extractor.characters(scratch, 0, length);
+			}
+		} else {
+			int printed = printText(scratch, 0, length, state.preserveSpace, state.unescaped);
+			if (extractor != null) {
+				extractor.characters(scratch, 0, printed);
+			}
+		}
+	}
+
+	private void comment(String value) throws IOException {
+		ElementState state = content();
+
+		int end = value.indexOf("-->");
+		String comment = "<!--" + (end >= 0 ? value.substring(0, end) : value) + "-->";
+
+		if (!fits(comment.length())) {
+			truncated = true;
+			return;
+		}
+
+		if (depth == 0) {
+			// held back until the doctype has been written
+			if (preRoot == null) {
+				preRoot = new ArrayList();
+			}
+			preRoot.add(comment);
+		} else {
+			if (indenting && !state.preserveSpace) {
+				breakLine();
+			}
+			indent();
+			print(comment);
+			unindent();
+		}
+
+		state.afterComment = true;
+		state.afterElement = false;
+	}
+
+	/*
+	 * Escaping.
+	 */
+
+	/**
+	 * Writes text, escaped as need be, up to the output limit. Returns how
+	 * many of the characters were written.
+	 */
+	private int printText(char[] ch, int start, int length, boolean preserveSpace, boolean unescaped) throws IOException {
+		int end = start + length;
+		int run = start;
+
+		for (int i = start; i < end; i++) {
+			char c = ch[i];
+
+			if (maxOutputSize > 0 && written + i - run >= maxOutputSize) {
+				// the text is cut here, though not between a surrogate pair
+				int cut = i;
+				if (cut > run && ch[cut - 1] >= '\uD800' && ch[cut - 1] <= '\uDBFF') {
+					cut--;
+				}
+				printRaw(ch, run, cut - run);
+				truncated = true;
+				return cut - start;
+			}
+
+			if (!preserveSpace && (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f')) {
+				printRaw(ch, run, i - run);
+				printSpace();
+				run = i + 1;
+			} else if (!unescaped && !(preserveSpace && (c == '\n' || c == '\r')) && needsEscaping(c)) {
+				printRaw(ch, run, i - run);
+				printEscaped(c);
+				run = i + 1;
+			}
+		}
+
+		printRaw(ch, run, end - run);
+		return length;
+	}
+
+	private void printEscaped(String value) throws IOException {
+		int length = value.length();
+		if (scratch.length < length) {
+			scratch = new char[Math.max(length, scratch.length * 2)];
+		}
+		char[] ch = scratch;
+		value.getChars(0, length, ch, 0);
+
+		int run = 0;
+		for (int i = 0; i < length; i++) {
+			char c = ch[i];
+
+			if (c >= '\uD800' && c <= '\uDBFF' && i + 1 < length && ch[i + 1] >= '\uDC00' && ch[i + 1] <= '\uDFFF') {
+				printRaw(ch, run, i - run);
+				printEscaped(0x10000 + ((c - 0xD800) << 10) + ch[i + 1] - 0xDC00);
+				run = ++i + 1;
+			} else if (needsEscaping(c)) {
+				printRaw(ch, run, i - run);
+				printEscaped(c);
+				run = i + 1;
+			}
+		}
+
+		printRaw(ch, run, length - run);
+	}
+
+	private boolean needsEscaping(char c) {
+		if (c < 128) {
+			return ASCII_ESCAPES[c] != null;
+		}
+		return c == '\u00F7' || !isPrintable(c) || (encodeAllPossibleEntities && HTMLEntityEncoder.hasEntityName(c));
+	}
+
+	private void printEscaped(int c) throws IOException {
+		if (c < 128) {
+			String escaped = ASCII_ESCAPES[c];
+			if (escaped != null) {
+				print(escaped);
+			} else {
+				print((char) c);
+			}
+			return;
+		}
+
+		String entity = encodeAllPossibleEntities ? HTMLEntityEncoder.getEntityName(c) : null;
+
+		if (entity != null) {
+			print('&');
+			print(entity);
+			print(';');
+		} else if (c != 0xF7 && isPrintable((char) c)) {
+			if (c < 0x10000) {
+				print((char) c);
+			} else {
+				print((char) (((c - 0x10000) >> 10) + 0xD800));
+				print((char) (((c - 0x10000) & 0x3FF) + 0xDC00));
+			}
+		} else {
+			printHex(c);
+		}
+	}
+
+	private void printHex(int c) throws IOException {
+		print("&#x");
+		print(Integer.toHexString(c));
+		print(';');
+	}
+
+	private void printCDATAText(char[] ch, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			char c = ch[i];
+
+			if (c == ']' && i + 2 < length && ch[i + 1] == ']' && ch[i + 2] == '>') {
+				print("]]]]><![CDATA[>");
+				i += 2;
+			} else if (!isValidXMLChar(c)) {
+				if (++i < length) {
+					printSurrogates(c, ch[i]);
+				} else {
+					throw invalidCharacter(c);
+				}
+			} else if ((c >= ' ' && isPrintable(c) && c != '\u00F7') || c == '\n' || c == '\r' || c == '\t') {
+				print(c);
+			} else {
+				print("]]>&#x");
+				print(Integer.toHexString(c));
+				print(";<![CDATA[");
+			}
+		}
+	}
+
+	private void printSurrogates(char high, char low) throws IOException {
+		if (high < '\uD800' || high > '\uDBFF') {
+			throw invalidCharacter(high);
+		}
+		if (low < '\uDC00' || low > '\uDFFF') {
+			throw invalidCharacter(low);
+		}
+		print("]]>&#x");
+		print(Integer.toHexString(0x10000 + ((high - 0xD800) << 10) + low - 0xDC00));
+		print(";<![CDATA[");
+	}
+
+	private static boolean isValidXMLChar(char c) {
+		return (c >= ' ' && c <= '\uD7FF') || (c >= '\uE000' && c <= '\uFFFD') || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static IOException invalidCharacter(char c) {
+		return new IOException("The character '" + c + "' is an invalid XML character");
+	}
+
+	private boolean isPrintable(char c) {
+		return encoder == null || c < 128 || encoder.canEncode(c);
+	}
+
+	private static boolean isBlank(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isBoolean(String tagName, String attributeName) {
+		Set names = (Set) BOOLEAN_ATTRIBUTES.get(lower(tagName));
+		return names != null && names.contains(attributeName);
+	}
+
+	private static String lower(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	/*
+	 * Output. Unformatted output goes straight to the Writer. Formatted
+	 * output is collected a word at a time so lines can be wrapped at
+	 * LINE_WIDTH and indented.
+	 */
+
+	private boolean isFull() {
+		return maxOutputSize > 0 && written >= maxOutputSize;
+	}
+
+	private boolean fits(int length) {
+		return maxOutputSize <= 0 || written + length <= maxOutputSize;
+	}
+
+	private void print(char c) throws IOException {
+		written++;
+		if (indenting) {
+			text(c);
+		} else {
+			write(c);
+		}
+	}
+
+	private void print(String s) throws IOException {
+		written += s.length();
+		if (indenting) {
+			int length = s.length();
+			ensureText(length);
+			s.getChars(0, length, text, textLength);
+			textLength += length;
+		} else {
+			write(s);
+		}
+	}
+
+	private void printRaw(char[] ch, int start, int length) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		written += length;
+		if (indenting) {
+			ensureText(length);
+			System.arraycopy(ch, start, text, textLength, length);
+			textLength += length;
+		} else {
+			write(ch, start, length);
+		}
+	}
+
+	private void text(char c) {
+		ensureText(1);
+		text[textLength++] = c;
+	}
+
+	private void ensureText(int length) {
+		if (textLength + length > text.length) {
+			char[] grown = new char[Math.max(textLength + length, text.length * 2)];
+			System.arraycopy(text, 0, grown, 0, textLength);
+			text = grown;
+		}
+	}
+
+	/**
+	 * Moves the collected word, preceded by the pending spaces, onto the
+	 * current line.
+	 */
+	private void placeText() {
+		if (lineLength + spaces + textLength > line.length) {
+			char[] grown = new char[Math.max(lineLength + spaces + textLength, line.length * 2)];
+			System.arraycopy(line, 0, grown, 0, lineLength);
+			line = grown;
+		}
+		while (spaces > 0) {
+			line[lineLength++] = ' ';
+			spaces--;
+		}
+		System.arraycopy(text, 0, line, lineLength, textLength);
+		lineLength += textLength;
+		textLength = 0;
+	}
+
+	private void printSpace() throws IOException {
+		written++;
+		if (!indenting) {
+			write(' ');
+			return;
+		}
+		if (textLength > 0) {
+			if (thisIndent + lineLength + spaces + textLength > LINE_WIDTH) {
+				flushLine();
+				write('\n');
+			}
+			placeText();
+		}
+		spaces++;
+	}
+
+	private void breakLine() throws IOException {
+		if (indenting) {
+			if (textLength > 0) {
+				placeText();
+			}
+			flushLine();
+		}
+		write('\n');
+	}
+
+	private void flushLine() throws IOException {
+		if (lineLength > 0) {
+			int indent = thisIndent;
+			if (2 * indent > LINE_WIDTH) {
+				indent = LINE_WIDTH / 2;
+			}
+			while (indent-- > 0) {
+				write(' ');
+			}
+			thisIndent = nextIndent;
+			spaces = 0;
+			write(line, 0, lineLength);
+			lineLength = 0;
+		}
+	}
+
+	private void flush() throws IOException {
+		if (indenting && (lineLength > 0 || textLength > 0)) {
+			breakLine();
+		}
+	}
+
+	private void write(char c) throws IOException {
+		if (c == '\n' && heldCR && !heldLF) {
+			heldLF = true;
+			return;
+		}
+		releaseLineBreak();
+		if (c == '\n') {
+			heldLF = true;
+		} else if (c == '\r') {
+			heldCR = true;
+		} else {
+			out.write(c);
+		}
+	}
+
+	private void write(String s) throws IOException {
+		int length = s.length();
+		if (length == 1) {
+			write(s.charAt(0));
+		} else if (length > 0) {
+			releaseLineBreak();
+			int held = heldLength(s.charAt(length - 1), s.charAt(length - 2));
+			out.write(s, 0, length - held);
+			holdLineBreak(s.charAt(length - 1), held);
+		}
+	}
+
+	private void write(char[] ch, int start, int length) throws IOException {
+		if (length == 1) {
+			write(ch[start]);
+		} else if (length > 0) {
+			releaseLineBreak();
+			int end = start + length;
+			int held = heldLength(ch[end - 1], ch[end - 2]);
+			out.write(ch, start, length - held);
+			holdLineBreak(ch[end - 1], held);
+		}
+	}
+
+	/**
+	 * Returns how many of the last two characters written are held back:
+	 * a trailing "\r\n", "\n" or "\r".
+	 */
+	private static int heldLength(char last, char beforeLast) {
+		if (last == '\n') {
+			return beforeLast == '\r' ? 2 : 1;
+		}
+		return last == '\r' ? 1 : 0;
+	}
+
+	private void holdLineBreak(char last, int held) {
+		heldLF = held > 0 && last == '\n';
+		heldCR = held == 2 || last == '\r';
+	}
+
+	private void releaseLineBreak() throws IOException {
+		if (heldCR) {
+			out.write('\r');
+			heldCR = false;
+		}
+		if (heldLF) {
+			out.write('\n');
+			heldLF = false;
+		}
+	}
+
+	private void indent() {
+		if (indenting) {
+			nextIndent += INDENT;
+		}
+	}
+
+	private void unindent() {
+		if (indenting) {
+			nextIndent -= INDENT;
+			if (nextIndent < 0) {
+				nextIndent = 0;
+			}
+			// with nothing on the current line yet, it takes the new indentation
+			if (lineLength + spaces + textLength == 0) {
+				thisIndent = nextIndent;
+			}
+		}
+	}
+
+	private static final class ElementState {
+		String rawName;
+		boolean preserveSpace;
+		boolean empty;
+		boolean afterElement;
+		boolean afterComment;
+		boolean inCData;
+		boolean doCData;
+		boolean unescaped;
+	}
+}
@@ -25,10 +25,10 @@
 package org.owasp.validator.html.scan;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.ResourceBundle;
 import java.util.Stack;
-import java.util.regex.Pattern;
 
 import org.apache.xerces.util.AugmentationsImpl;
 import org.apache.xerces.util.XMLAttributesImpl;
@@ -41,12 +41,8 @@ import org.apache.xerces.xni.XMLString;
 import org.apache.xerces.xni.XNIException;
 import org.apache.xerces.xni.parser.XMLDocumentFilter;
 import org.cyberneko.html.filters.DefaultFilter;
-import org.owasp.validator.css.CssScanner;
-import org.owasp.validator.css.ExternalCssScanner;
-import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.css.StyleSheetImports;
 import org.owasp.validator.html.Policy;
-import org.owasp.validator.html.ScanException;
-import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
@@ -54,7 +50,9 @@ import org.owasp.validator.html.util.HTMLEntityEncoder;
 /**
  * Implementation of an HTML-filter that adheres to an AntiSamy policy. This
  * filter is SAX-based which means it is much more memory-efficient and also a
- * bit faster than the DOM-based implementation.
+ * bit faster than the DOM-based implementation. What to do with each element
+ * and attribute is decided by the <code>TagValidator</code> shared with the
+ * DOM scanner; this filter carries the decisions out on the event stream.
  */
 public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 
@@ -62,9 +60,10 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 	private ArrayList errorMessages = new ArrayList();
 	private StringBuffer cssContent = null;
 	private XMLAttributes cssAttributes = null;
-	private CssScanner cssScanner = null;
+	private StyleSheetImports styleSheetImports = new StyleSheetImports();
 	private Policy policy;
 	private ResourceBundle messages;
+	private TagValidator validator;
 
 	private boolean isNofollowAnchors;
 	private boolean isValidateParamAsEmbed;
@@ -73,11 +72,51 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 	public MagicSAXFilter(Policy instance, ResourceBundle messages) {
 		this.policy = instance;
 		this.messages = messages;
+		this.validator = new TagValidator(policy, messages);
+		validator.reset(errorMessages, styleSheetImports);
 		
 		isNofollowAnchors = "true".equals(policy.getDirective(Policy.ANCHORS_NOFOLLOW));
 		isValidateParamAsEmbed = "true".equals(policy.getDirective(Policy.VALIDATE_PARAM_AS_EMBED));
 	}
 
+	/**
+	 * Clears the state left behind by a previous document so the filter can
+	 * be used again. The error list is replaced rather than cleared because
+	 * the previous <code>CleanResults</code> still holds it.
+	 */
+	public void reset() {
+		operations.clear();
+		errorMessages = new ArrayList();
+		cssContent = null;
+		cssAttributes = null;
+		inCdata = false;
+		styleSheetImports = new StyleSheetImports();
+		validator.reset(errorMessages, styleSheetImports);
+	}
+
+	/**
+	 * Keeps no more than the given number of error messages for the current
+	 * document and drops the rest, so that the memory a streamed scan uses
+	 * does not grow with the input.
+	 */
+	void limitErrorMessages(int max) {
+		errorMessages = new LimitedList(max);
+		validator.reset(errorMessages, styleSheetImports);
+	}
+
+	/**
+	 * Tells whether the content of the current element is dropped: inside a
+	 * removed element, a style sheet, or the child elements and comments of
+	 * a truncated element.
+	 */
+	private boolean isDroppingContent() {
+		if (operations.empty()) {
+			return false;
+		}
+		Object operation = operations.peek();
+		return "remove".equals(operation) || "css".equals(operation) || "truncate".equals(operation);
+	}
+
 	public void characters(XMLString text, Augmentations augs) throws XNIException {
 		if (!operations.empty() && "remove".equals(operations.peek())) {
 			// content is removed altogether
@@ -96,16 +135,10 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 	}
 
 	public void comment(XMLString text, Augmentations augs) throws XNIException {
-		String preserveComments = policy.getDirective(Policy.PRESERVE_COMMENTS);
-
-		if ("true".equals(preserveComments)) {
-			String value = text.toString();
-			// Strip conditional directives regardless of the
-			// PRESERVE_COMMENTS setting.
-			if (value != null) {
-				value = value.replaceAll("<?!?\\[\\s*(?:end)?if[^]]*\\]>?", "");
-				super.comment(new XMLString(value.toCharArray(), 0, value.length()), augs);
-			}
+		String value = validator.cleanComment(text.toString());
+
+		if (value != null && !isDroppingContent()) {
+			super.comment(new XMLString(value.toCharArray(), 0, value.length()), augs);
 		}
 	}
 
@@ -125,47 +158,34 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 		} else if (!operations.empty() && "filter".equals(operations.peek())) {
 			// content is removed, but child nodes not
 			operations.pop();
+		} else if (!operations.empty() && "encode".equals(operations.peek())) {
+			// the end tag is written out as text, like the start tag
+			operations.pop();
+			characters("</" + element.localpart + ">", augs);
 		} else if (!operations.empty() && "css".equals(operations.peek())) {
 			operations.pop();
 			// now scan the CSS.
-			CssScanner cssScanner = makeCssScanner();
-			try {
-				CleanResults results = cssScanner.scanStyleSheet(cssContent.toString(), policy.getMaxInputSize());
-				// report all errors found
-				errorMessages.addAll(results.getErrorMessages());
-				/*
-				 * If IE gets an empty style tag, i.e. <style/> it will break
-				 * all CSS on the page. I wish I was kidding. So, if after
-				 * validation no CSS properties are left, we would normally be
-				 * left with an empty style tag and break all CSS. To prevent
-				 * that, we have this check.
-				 */
-				if (results.getCleanHTML() == null || results.getCleanHTML().equals("")) {
-					// we do not generate empty style elements
-				} else {
-					// XMLAttributes attributes = new XMLAttributesImpl();
-					// attributes.addAttribute(makeSimpleQname("type"), "CDATA",
-					// "text/css");
-					// start the CSS element
-
-					super.startElement(element, cssAttributes, new AugmentationsImpl());
-					// send the cleaned content
-					super.characters(new XMLStringBuffer(results.getCleanHTML()), new AugmentationsImpl());
-					// end the CSS element
-					super.endElement(element, augs);
-				}
-			} catch (ScanException e) {
-				// if the CSS is unscannable, we report the error, but skip the
-				// style element
-				addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[] {
-					HTMLEntityEncoder.htmlEntityEncode(cssContent.toString())
-				});
-			} finally {
-				// reset the string buffer to allow fresh recording of next
-				// style tag
-				cssContent = null;
-				cssAttributes = null;
+			String cleanCss = validator.scanStyleSheet(cssContent.toString());
+			/*
+			 * If IE gets an empty style tag, i.e. <style/> it will break all
+			 * CSS on the page. I wish I was kidding. So, if after validation
+			 * no CSS properties are left, we would normally be left with an
+			 * empty style tag and break all CSS. To prevent that, we have this
+			 * check. If the CSS is unscannable, the error has been reported
+			 * and the style element is skipped as well.
+			 */
+			if (cleanCss != null && cleanCss.length() > 0) {
+				// start the CSS element
+				super.startElement(element, cssAttributes, new AugmentationsImpl());
+				// send the cleaned content
+				super.characters(new XMLStringBuffer(cleanCss), new AugmentationsImpl());
+				// end the CSS element
+				super.endElement(element, augs);
 			}
+			// reset the string buffer to allow fresh recording of next
+			// style tag
+			cssContent = null;
+			cssAttributes = null;
 		} else {
 			// keep or truncate means the end-tag stays intact
 			operations.pop();
@@ -173,17 +193,6 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 		}
 	}
 
-	private CssScanner makeCssScanner() {
-		if (cssScanner == null) {
-        	if("true".equals(policy.getDirective(Policy.EMBED_STYLESHEETS))) {
-        		cssScanner = new ExternalCssScanner(policy, messages);
-        	}else{
-        		cssScanner = new CssScanner(policy, messages);
-        	}
-		}
-		return cssScanner;
-	}
-
 	public void processingInstruction(String target, XMLString data, Augmentations augs) throws XNIException {
 		// processing instructions are being removed
 	}
@@ -200,7 +209,8 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 
 	public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
 		// see if we have a policy for this tag.
-		Tag tag = policy.getTagByName(element.localpart);
+		String tagNameLowerCase = element.localpart.toLowerCase();
+		Tag tag = policy.getTagByLowercaseName(tagNameLowerCase);
 
 		/*
 		 * Handle the automatic translation of <param> to nested <embed> for IE.
@@ -209,8 +219,8 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 		boolean masqueradingParam = false;
 		String embedName = null;
 		String embedValue = null;
-		if (tag == null && isValidateParamAsEmbed && "param".equals(element.localpart.toLowerCase())) {
-			Tag embedPolicy = policy.getTagByName("embed");
+		if (tag == null && isValidateParamAsEmbed && "param".equals(tagNameLowerCase)) {
+			Tag embedPolicy = policy.getTagByLowercaseName("embed");
 			if (embedPolicy != null && Policy.ACTION_VALIDATE.equals(embedPolicy.getAction())) {
 				tag = embedPolicy;// Constants.BASIC_PARAM_TAG_RULE;
 				masqueradingParam = true;
@@ -224,119 +234,57 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 			}
 		}
 
-		XMLAttributes validattributes = new XMLAttributesImpl();
-		if (!operations.isEmpty() && ("remove".equals(operations.peek()) || "css".equals(operations.peek()))) {
+		XMLAttributes validattributes = null;
+
+		if (isDroppingContent()) {
 			// we are in removal-mode, so remove this tag as well
-			// we also remove all child elements of a style element
+			// we also remove all child elements of a style or truncated element
 			this.operations.push("remove");
-		} else if ((tag == null && "encode".equals(policy.getDirective("onUnknownTag"))) || (tag != null && "encode".equals(tag.getAction()))) {
-			String name = "<" + element.localpart + ">";
-			super.characters(new XMLString(name.toCharArray(), 0, name.length()), augs);
-			this.operations.push("filter");
-		} else if (tag == null) {
-			addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
-			});
-			this.operations.push("filter");
-		} else if ("filter".equals(tag.getAction())) {
-			addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
-			});
-			this.operations.push("filter");
-		} else if ("validate".equals(tag.getAction())) {
-
-			boolean isStyle = "style".endsWith(element.localpart);
-
-			if (isStyle) {
-				this.operations.push("css");
-				cssContent = new StringBuffer();
-				cssAttributes = attributes;
-			} else {
+		} else {
+			switch (validator.getTagAction(tag, element.localpart)) {
+
+			case TagValidator.ENCODE:
+				encodeStartTag(element, augs);
+				break;
+
+			case TagValidator.FILTER:
+				this.operations.push("filter");
+				break;
+
+			case TagValidator.VALIDATE: {
 				// validate all attributes, we need to do this now to find out
 				// how to deal with the element
-				boolean removeTag = false;
-				boolean filterTag = false;
+				validattributes = new XMLAttributesImpl();
+				int elementOutcome = TagValidator.KEEP_ATTRIBUTE;
+
 				for (int i = 0; i < attributes.getLength(); i++) {
 					String name = attributes.getQName(i);
-					String value = attributes.getValue(i);
-					Attribute attribute = tag.getAttributeByName(name.toLowerCase());
-					if (attribute == null) {
-						// no policy defined, perhaps it is a global attribute
-						attribute = policy.getGlobalAttributeByName(name.toLowerCase());
-					}
-					// boolean isAttributeValid = false;
-					if ("style".equalsIgnoreCase(name)) {
-						CssScanner styleScanner = makeCssScanner();
-						try {
-							CleanResults cr = styleScanner.scanInlineStyle(value, element.localpart, policy.getMaxInputSize());
-							attributes.setValue(i, cr.getCleanHTML());
-							validattributes.addAttribute(makeSimpleQname(name), "CDATA", cr.getCleanHTML());
-							errorMessages.addAll(cr.getErrorMessages());
-						} catch (ScanException e) {
-							addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[] {
-									element.localpart, HTMLEntityEncoder.htmlEntityEncode(value)
-							});
-						}
-					} else if (attribute != null) {
-						// validate the values against the policy
-						boolean isValid = false;
-						Iterator allowedValues = attribute.getAllowedValues().iterator();
-						while (allowedValues.hasNext()) {
-							String allowedValue = (String) allowedValues.next();
-							if (allowedValue != null && allowedValue.equalsIgnoreCase(value)) {
-								validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-								isValid = true;
-								break;
-							}
-						}
-						Iterator allowedRexexps = attribute.getAllowedRegExp().iterator();
-						while (!isValid && allowedRexexps.hasNext()) {
-							Pattern pattern = (Pattern) allowedRexexps.next();
-							if (pattern != null && pattern.matcher(value.toLowerCase()).matches()) {
-								validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-								isValid = true;
-								break;
-							}
-						}
-						
-						// if value or regexp matched, attribute is already
-						// copied, but what happens if not
-						if (!isValid && "removeTag".equals(attribute.getOnInvalid())) {
-							
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-							
-							removeTag = true;
-							
-						} else if (!isValid && ("filterTag".equals(attribute.getOnInvalid()) || masqueradingParam)) {
-							
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, 
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-							
-							filterTag = true;
-							
-						} else if (!isValid) {
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-						}
-						
-					} else { // attribute == null
-						addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[] {
-								element.localpart, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)
-						});
-						
-						if (masqueradingParam) {
-							filterTag = true;
-						}
+					int outcome = validator.validateAttribute(tag, element.localpart, name, attributes.getValue(i));
+
+					if (outcome == TagValidator.KEEP_ATTRIBUTE) {
+						validattributes.addAttribute(makeSimpleQname(name), "CDATA", validator.getAttributeValue());
+					} else if (masqueradingParam) {
+						// a <param> that is not a valid <embed> attribute is filtered
+						elementOutcome = Math.max(elementOutcome, Math.max(outcome, TagValidator.FILTER_TAG));
+					} else {
+						elementOutcome = Math.max(elementOutcome, outcome);
 					}
 				}
 
-				if (removeTag) {
+				if (elementOutcome == TagValidator.REMOVE_TAG) {
 					this.operations.push("remove");
-				} else if (filterTag) {
+				} else if (elementOutcome == TagValidator.FILTER_TAG) {
 					this.operations.push("filter");
+				} else if (elementOutcome == TagValidator.ENCODE_TAG) {
+					encodeStartTag(element, augs);
+				} else if ("style".equals(tagNameLowerCase)) {
+					// the style sheet is collected and validated at the end tag
+					this.operations.push("css");
+					cssContent = new StringBuffer();
+					cssAttributes = validattributes;
 				} else {
 
-					if (isNofollowAnchors && "a".equals(element.localpart)) {
+					if (isNofollowAnchors && "a".equals(tagNameLowerCase)) {
 						validattributes.addAttribute(makeSimpleQname("rel"), "CDATA", "nofollow");
 					}
 
@@ -348,16 +296,23 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 
 					this.operations.push("keep");
 				}
+				break;
+			}
+
+			case TagValidator.TRUNCATE:
+				for (int i = 0; i < attributes.getLength(); i++) {
+					validator.attributeTruncated(element.localpart, attributes.getQName(i), attributes.getValue(i));
+				}
+				this.operations.push("truncate");
+				break;
+
+			default:
+				// no options left, so the tag will be removed
+				this.operations.push("remove");
+				break;
 			}
-		} else if ("truncate".equals(tag.getAction())) {
-			this.operations.push("truncate");
-		} else {
-			// no options left, so the tag will be removed
-			addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
-			});
-			this.operations.push("remove");
 		}
+
 		// now we know exactly what to do, let's do it
 		if ("truncate".equals(operations.peek())) {
 			// copy the element, but remove all attributes
@@ -368,6 +323,19 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 		}
 	}
 
+	/**
+	 * Writes the start tag out as text and keeps the element's content; the
+	 * end tag follows as text too.
+	 */
+	private void encodeStartTag(QName element, Augmentations augs) {
+		characters("<" + element.localpart + ">", augs);
+		this.operations.push("encode");
+	}
+
+	private void characters(String text, Augmentations augs) {
+		super.characters(new XMLString(text.toCharArray(), 0, text.length()), augs);
+	}
+
 	private QName makeSimpleQname(String name) {
 		return new QName("", name, name, "");
 	}
@@ -380,4 +348,35 @@ public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 		return errorMessages;
 	}
 
+	/**
+	 * @return the stylesheets imported while filtering the current document
+	 */
+	public StyleSheetImports getStyleSheetImports() {
+		return styleSheetImports;
+	}
+
+	/*
+	 * An error list that ignores what is added once it is full.
+	 */
+	private static class LimitedList extends ArrayList {
+
+		private final int max;
+
+		LimitedList(int max) {
+			this.max = max;
+		}
+
+		public boolean add(Object o) {
+			return size() < max && super.add(o);
+		}
+
+		public boolean addAll(Collection c) {
+			boolean changed = false;
+			for (Iterator i = c.iterator(); i.hasNext() && size() < max;) {
+				changed |= super.add(i.next());
+			}
+			return changed;
+		}
+	}
+
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.io.Writer;
+
+/**
+ * An unsynchronized, growable character buffer the scanners write their
+ * output into. Unlike <code>StringWriter</code> it does not lock a
+ * <code>StringBuffer</code> on every write, and it is created with room for
+ * about as much output as there was input, so a typical scan never grows it
+ * and turns it into a String with a single copy.
+ */
+class OutputBuffer extends Writer {
+
+	private char[] buffer;
+	private int count = 0;
+
+	/**
+	 * @param capacity The number of characters to make room for up front.
+	 */
+	OutputBuffer(int capacity) {
+		buffer = new char[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Creates a buffer sized for the clean output of the given input, which
+	 * is rarely much longer than the input itself.
+	 */
+	static OutputBuffer forInput(String html) {
+		return new OutputBuffer(html.length() + 128);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			char[] grown = new char[Math.max(count + extra, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		}
+	}
+
+	public void write(int c) {
+		if (count == buffer.length) {
+			ensureCapacity(1);
+		}
+		buffer[count++] = (char) c;
+	}
+
+	public void write(char[] cbuf, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(cbuf, off, buffer, count, len);
+		count += len;
+	}
+
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	public void write(String str, int off, int len) {
+		ensureCapacity(len);
+		str.getChars(off, off + len, buffer, count);
+		count += len;
+	}
+
+	/**
+	 * Returns the number of characters written so far.
+	 */
+	int length() {
+		return count;
+	}
+
+	public String toString() {
+		return new String(buffer, 0, count);
+	}
+
+	public void flush() {
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+/**
+ * Scans a document that arrives in pieces, such as the contents of an editor
+ * sent as the user types. Each piece is handed over with <code>feed()</code>,
+ * which returns once the SAX engine has sanitized it and written the clean
+ * HTML for every complete tag and run of text to the session's
+ * <code>Writer</code>; only the open elements and an unfinished tag are
+ * carried over to the next piece, so each call costs in proportion to the
+ * piece rather than to the document. <code>finish()</code> ends the document.
+ * 
+ * The document is scanned like a streamed scan (see
+ * <code>AntiSamy.scan(Reader, Writer, Policy)</code>) on a thread of its own
+ * that waits for input between calls. A session must therefore be ended with
+ * <code>finish()</code> or <code>close()</code>, best in a
+ * <code>finally</code> block. A session that is dropped without either, such
+ * as that of a client that went away, holds on to its thread, the parser,
+ * the open elements and the <code>Writer</code> until it has gone without
+ * input for the policy's <code>sessionIdleTimeout</code>; it is then closed,
+ * and the next <code>feed()</code> or <code>finish()</code> fails. A session
+ * may be fed from any thread, but from one at a time.
+ * 
+ * This should be called implicitly through
+ * <code>AntiSamy.startSession()</code>.
+ */
+public class ScanSession {
+
+	private final AntiSamySAXScanner scanner;
+	private final Writer out;
+	private final String outputEncoding;
+	private final long idleTimeout;
+	private final Input input = new Input();
+
+	private Thread thread = null;
+
+	/*
+	 * Guarded by the input: the piece the parser has not taken yet, whether
+	 * the parser is waiting for more, whether the end of the document or an
+	 * abort was signalled, and how the scan ended.
+	 */
+	private char[] pending = new char[0];
+	private int pendingOffset = 0;
+	private int pendingLength = 0;
+	private boolean waiting = false;
+	private boolean finished = false;
+	private boolean closed = false;
+	private boolean done = false;
+	private CleanResults results = null;
+	private ScanException failure = null;
+
+	/**
+	 * Creates a session that writes the clean HTML of the document to the
+	 * given <code>Writer</code>.
+	 * 
+	 * @param out
+	 *            Receives the clean HTML; it is flushed after every piece but
+	 *            not closed.
+	 */
+	public ScanSession(Policy policy, Writer out, String outputEncoding) {
+		this.scanner = new AntiSamySAXScanner(policy);
+		this.out = out;
+		this.outputEncoding = outputEncoding;
+		this.idleTimeout = policy.getSessionIdleTimeout();
+	}
+
+	public void feed(char[] chunk) throws ScanException {
+		feed(chunk, 0, chunk.length);
+	}
+
+	/**
+	 * Sanitizes the next piece of the document. The characters are copied,
+	 * so the array may be reused afterwards.
+	 * 
+	 * @throws ScanException
+	 *             If the scan failed, now or on an earlier piece, or the
+	 *             session has been finished or closed.
+	 */
+	public void feed(char[] chunk, int offset, int length) throws ScanException {
+		synchronized (input) {
+			checkOpen();
+
+			if (length == 0) {
+				return;
+			}
+
+			if (pending.length < length) {
+				pending = new char[length];
+			}
+			System.arraycopy(chunk, offset, pending, 0, length);
+			pendingOffset = 0;
+			pendingLength = length;
+
+			if (thread == null) {
+				start();
+			}
+			input.notifyAll();
+
+			// the parser has written all it can once it asks for more
+			while (!done && (pendingLength > 0 || !waiting)) {
+				await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Ends the document: elements still open are closed and the rest of the
+	 * clean HTML is written.
+	 * 
+	 * @return The results of the scan, without clean HTML.
+	 */
+	public CleanResults finish() throws ScanException {
+		synchronized (input) {
+			checkOpen();
+
+			finished = true;
+			if (thread == null) {
+				start();
+			}
+			input.notifyAll();
+
+			while (!done) {
+				await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Abandons the document, if it has not been finished, and lets the
+	 * session's thread go.
+	 */
+	public void close() {
+		synchronized (input) {
+			closed = true;
+			input.notifyAll();
+		}
+	}
+
+	private void checkOpen() throws ScanException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (finished || closed) {
+			throw new ScanException("Scan session has ended");
+		}
+	}
+
+	private void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				CleanResults scanResults = null;
+				ScanException scanFailure = null;
+				try {
+					scanResults = scanner.scan(input, out, outputEncoding);
+				} catch (ScanException e) {
+					scanFailure = e;
+				} catch (RuntimeException e) {
+					scanFailure = new ScanException(e);
+				} catch (Error e) {
+					scanFailure = new ScanException(e.toString());
+					throw e;
+				} finally {
+					// whatever happened, the thread waiting on the session is let go
+					synchronized (input) {
+						results = scanResults;
+						failure = scanFailure;
+						done = true;
+						input.notifyAll();
+					}
+				}
+			}
+		}, "AntiSamy scan session");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void await() throws ScanException {
+		try {
+			input.wait();
+		} catch (InterruptedException e) {
+			closed = true;
+			input.notifyAll();
+			Thread.currentThread().interrupt();
+			throw new ScanException(e);
+		}
+	}
+
+	/*
+	 * What the parser reads from: the pieces fed so far, blocking until the
+	 * next one arrives. It flushes the clean HTML before it waits.
+	 */
+	private class Input extends Reader {
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			synchronized (input) {
+				if (pendingLength == 0 && !finished && !closed) {
+					out.flush();
+				}
+				long deadline = System.currentTimeMillis() + idleTimeout;
+				while (pendingLength == 0 && !finished && !closed) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (idleTimeout > 0 && remaining <= 0) {
+						// given up on, so the thread does not wait forever
+						closed = true;
+						throw new IOException("Scan session idle for more than " + idleTimeout + " ms");
+					}
+					waiting = true;
+					input.notifyAll();
+					try {
+						input.wait(idleTimeout > 0 ? remaining : 0);
+					} catch (InterruptedException e) {
+						throw new IOException("Scan session interrupted");
+					} finally {
+						waiting = false;
+					}
+				}
+				if (closed) {
+					throw new IOException("Scan session closed");
+				}
+				if (pendingLength == 0) {
+					return -1;
+				}
+				int n = Math.min(len, pendingLength);
+				System.arraycopy(pending, pendingOffset, cbuf, off, n);
+				pendingOffset += n;
+				pendingLength -= n;
+				return n;
+			}
+		}
+
+		public void close() {
+		}
+	}
+
+}
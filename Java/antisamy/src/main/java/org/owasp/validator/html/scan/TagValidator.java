@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.ResourceBundle;
+import java.util.regex.Pattern;
+
+import org.apache.batik.css.parser.ParseException;
+import org.owasp.validator.css.CssScanner;
+import org.owasp.validator.css.ExternalCssScanner;
+import org.owasp.validator.css.StyleSheetImports;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+
+/**
+ * The policy decisions both scanners make about the markup they are given:
+ * what to do with an element, whether an attribute is kept, and the hand-off
+ * of style sheets and inline styles to the CSS scanner. The DOM scanner asks
+ * while it walks the parsed fragment and <code>MagicSAXFilter</code> asks as
+ * the parser's events arrive; each then carries the decision out on its own
+ * representation. The error messages for the decisions are added here, so
+ * both engines report the same problems in the same words.
+ * 
+ * A validator belongs to one scanner and is not safe to use from several
+ * threads at once. It keeps the CSS scanners it creates, and with them
+ * their Batik parser, for as long as the scanner it belongs to is reused,
+ * as in a batch or by an asynchronous worker.
+ */
+class TagValidator {
+
+	/*
+	 * What happens to an element.
+	 */
+
+	/** The tag is written out as text; its contents are kept. */
+	static final int ENCODE = 0;
+
+	/** The tag is dropped; its contents are kept. */
+	static final int FILTER = 1;
+
+	/** The tag is kept, with the attributes that pass validation. */
+	static final int VALIDATE = 2;
+
+	/** The tag is kept without attributes or child elements. */
+	static final int TRUNCATE = 3;
+
+	/** The tag and its contents are dropped. */
+	static final int REMOVE = 4;
+
+	/*
+	 * What happens to an attribute, and through the onInvalid actions of the
+	 * policy, to its element. The outcomes for the element are ordered by
+	 * strength, so when several attributes of an element are invalid the one
+	 * that applies is the largest.
+	 */
+
+	/** The attribute is kept, with the value <code>getAttributeValue()</code> returns. */
+	static final int KEEP_ATTRIBUTE = 0;
+
+	/** The attribute is dropped. */
+	static final int REMOVE_ATTRIBUTE = 1;
+
+	/** The element is written out as text, its contents are kept. */
+	static final int ENCODE_TAG = 2;
+
+	/** The element is dropped, its contents are kept. */
+	static final int FILTER_TAG = 3;
+
+	/** The element and its contents are dropped. */
+	static final int REMOVE_TAG = 4;
+
+	/**
+	 * Conditional comment directives, taken out of comments that are kept.
+	 */
+	private static final Pattern CONDITIONAL_DIRECTIVE = Pattern.compile("<?!?\\[\\s*(?:end)?if[^]]*\\]>?");
+
+	private final Policy policy;
+	private final ResourceBundle messages;
+
+	private ArrayList errorMessages = new ArrayList();
+	private StyleSheetImports styleSheetImports = new StyleSheetImports();
+
+	private String attributeValue = null;
+
+	/*
+	 * Created when first needed: the scanner for inline styles and style
+	 * sheets, and the one that also fetches imported style sheets.
+	 */
+	private CssScanner styleScanner = null;
+	private CssScanner externalStyleScanner = null;
+
+	TagValidator(Policy policy, ResourceBundle messages) {
+		this.policy = policy;
+		this.messages = messages;
+	}
+
+	/**
+	 * Starts a document: errors are added to the given list, and the style
+	 * sheets it imports are tracked in the given imports.
+	 */
+	void reset(ArrayList errorMessages, StyleSheetImports styleSheetImports) {
+		this.errorMessages = errorMessages;
+		this.styleSheetImports = styleSheetImports;
+	}
+
+	/**
+	 * Decides what happens to an element with the given policy rule, which
+	 * is null if the policy has none for it.
+	 * 
+	 * @param tag The rule for the element, or null.
+	 * @param tagName The name of the element, for the error messages.
+	 * @return One of <code>ENCODE</code>, <code>FILTER</code>,
+	 *         <code>VALIDATE</code>, <code>TRUNCATE</code> and
+	 *         <code>REMOVE</code>.
+	 */
+	int getTagAction(Tag tag, String tagName) {
+
+		if ((tag == null && "encode".equals(policy.getDirective(Policy.ENCODE_TAGS))) || (tag != null && "encode".equals(tag.getAction()))) {
+			addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[] { HTMLEntityEncoder.htmlEntityEncode(tagName) });
+			return ENCODE;
+		}
+
+		if (tag == null) {
+			addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[] { HTMLEntityEncoder.htmlEntityEncode(tagName) });
+			return FILTER;
+		}
+
+		String action = tag.getAction();
+
+		if (Policy.ACTION_FILTER.equals(action)) {
+			addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[] { HTMLEntityEncoder.htmlEntityEncode(tagName) });
+			return FILTER;
+		}
+
+		if (Policy.ACTION_VALIDATE.equals(action)) {
+			return VALIDATE;
+		}
+
+		if (Policy.ACTION_TRUNCATE.equals(action)) {
+			return TRUNCATE;
+		}
+
+		// the only action left is "remove"
+		addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[] { HTMLEntityEncoder.htmlEntityEncode(tagName) });
+		return REMOVE;
+	}
+
+	/**
+	 * Validates an attribute of an element whose action is
+	 * <code>VALIDATE</code>. The rule comes from the element's tag, or
+	 * failing that from the global attributes. A <code>style</code>
+	 * attribute with a rule is handed to the CSS scanner, anything else has
+	 * to match one of the allowed values or patterns of its rule.
+	 * 
+	 * @return <code>KEEP_ATTRIBUTE</code>, <code>REMOVE_ATTRIBUTE</code>, or
+	 *         for an invalid value, <code>ENCODE_TAG</code>,
+	 *         <code>FILTER_TAG</code> or <code>REMOVE_TAG</code> depending
+	 *         on the rule's onInvalid action.
+	 */
+	int validateAttribute(Tag tag, String tagName, String name, String value) {
+
+		String nameLowerCase = name.toLowerCase();
+		Attribute attribute = tag.getAttributeByName(nameLowerCase);
+
+		if (attribute == null) {
+			attribute = policy.getGlobalAttributeByLowercaseName(nameLowerCase);
+		}
+
+		if (attribute == null) {
+			// the attribute isn't in our policy - remove it (whitelisting!)
+			addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[] { tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
+			return REMOVE_ATTRIBUTE;
+		}
+
+		if ("style".equals(nameLowerCase)) {
+			attributeValue = scanInlineStyle(tagName, value);
+			return attributeValue != null ? KEEP_ATTRIBUTE : REMOVE_ATTRIBUTE;
+		}
+
+		if (isAllowed(attribute, value)) {
+			attributeValue = value;
+			return KEEP_ATTRIBUTE;
+		}
+
+		/*
+		 * Document transgression and perform the "onInvalid" action. The
+		 * default action is to strip the attribute and leave the rest intact.
+		 */
+		String onInvalidAction = attribute.getOnInvalid();
+		Object[] args = new Object[] { tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) };
+
+		if ("removeTag".equals(onInvalidAction)) {
+			addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED, args);
+			return REMOVE_TAG;
+		} else if ("filterTag".equals(onInvalidAction)) {
+			addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, args);
+			return FILTER_TAG;
+		} else if ("encodeTag".equals(onInvalidAction)) {
+			addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, args);
+			return ENCODE_TAG;
+		}
+
+		addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, args);
+		return REMOVE_ATTRIBUTE;
+	}
+
+	/**
+	 * The value to write for the attribute <code>validateAttribute()</code>
+	 * last kept: its own value, or the clean form of an inline style.
+	 */
+	String getAttributeValue() {
+		return attributeValue;
+	}
+
+	private static boolean isAllowed(Attribute attribute, String value) {
+
+		Iterator allowedValues = attribute.getAllowedValues().iterator();
+
+		while (allowedValues.hasNext()) {
+			String allowedValue = (String) allowedValues.next();
+			if (allowedValue != null && allowedValue.equalsIgnoreCase(value)) {
+				return true;
+			}
+		}
+
+		Iterator allowedRegexps = attribute.getAllowedRegExp().iterator();
+
+		if (allowedRegexps.hasNext()) {
+			String valueLowerCase = value.toLowerCase();
+			while (allowedRegexps.hasNext()) {
+				Pattern pattern = (Pattern) allowedRegexps.next();
+				if (pattern != null && pattern.matcher(valueLowerCase).matches()) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reports an attribute dropped because its element is truncated.
+	 */
+	void attributeTruncated(String tagName, String name, String value) {
+		addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[] { tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
+	}
+
+	/**
+	 * Returns the comment to keep in place of the given one, with any
+	 * conditional comment directives taken out, or null if the policy does
+	 * not preserve comments.
+	 */
+	String cleanComment(String value) {
+		if (!"true".equals(policy.getDirective(Policy.PRESERVE_COMMENTS))) {
+			return null;
+		}
+		return value != null ? CONDITIONAL_DIRECTIVE.matcher(value).replaceAll("") : null;
+	}
+
+	/**
+	 * Validates the contents of a <code>style</code> element.
+	 * 
+	 * @return The clean style sheet, empty if nothing in it was allowed, or
+	 *         null if it could not be parsed.
+	 */
+	String scanStyleSheet(String css) {
+		CssScanner scanner = getStyleScanner("true".equals(policy.getDirective(Policy.EMBED_STYLESHEETS)));
+
+		try {
+			CleanResults cr = scanner.scanStyleSheet(css, policy.getMaxInputSize(), styleSheetImports);
+			errorMessages.addAll(cr.getErrorMessages());
+			return cr.getCleanHTML() != null ? cr.getCleanHTML() : "";
+		} catch (ScanException e) {
+			// the failure is reported below
+		} catch (ParseException e) {
+			// the failure is reported below
+		} catch (NumberFormatException e) {
+			// Batik can throw NumberFormatExceptions (see bug #48)
+		}
+
+		addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[] { HTMLEntityEncoder.htmlEntityEncode(css) });
+		return null;
+	}
+
+	/**
+	 * Validates the value of a <code>style</code> attribute.
+	 * 
+	 * @return The clean declarations, or null if they could not be parsed.
+	 */
+	String scanInlineStyle(String tagName, String value) {
+		CssScanner scanner = getStyleScanner(false);
+
+		try {
+			CleanResults cr = scanner.scanInlineStyle(value, tagName, policy.getMaxInputSize(), styleSheetImports);
+			errorMessages.addAll(cr.getErrorMessages());
+			return cr.getCleanHTML() != null ? cr.getCleanHTML() : "";
+		} catch (ScanException e) {
+			addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[] { tagName, HTMLEntityEncoder.htmlEntityEncode(value) });
+			return null;
+		}
+	}
+
+	private CssScanner getStyleScanner(boolean embedStyleSheets) {
+		if (embedStyleSheets) {
+			if (externalStyleScanner == null) {
+				externalStyleScanner = new ExternalCssScanner(policy, messages);
+			}
+			return externalStyleScanner;
+		}
+		if (styleScanner == null) {
+			styleScanner = new CssScanner(policy, messages);
+		}
+		return styleScanner;
+	}
+
+	private void addError(String errorKey, Object[] objs) {
+		errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, objs));
+	}
+}
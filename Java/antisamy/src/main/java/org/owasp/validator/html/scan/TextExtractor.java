@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.scan;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Collects the text of the clean markup, for callers that index or
+ * otherwise process the words of a document rather than its HTML. The
+ * <code>HTMLWriter</code> feeds it what it writes, so the text stops where
+ * the output limit cuts the HTML off. When a content handler of the
+ * caller's takes the place of the writer, the DOM scanner hands it the
+ * cleaned <code>DocumentFragment</code> through <code>extract()</code> and
+ * the SAX scanner registers it next to that handler.
+ * 
+ * Entities come out decoded, the contents of <code>style</code> and
+ * <code>script</code> elements and comments are left out, and whitespace is
+ * collapsed to single spaces except inside <code>pre</code>. Block elements
+ * and <code>br</code> start a new line, table cells are separated by a
+ * space.
+ * 
+ * An extractor may be used for any number of documents in a row, but not by
+ * several threads at once.
+ */
+public class TextExtractor implements ContentHandler, LexicalHandler {
+
+	private static final Set BLOCK_TAGS = new HashSet();
+	private static final Set CELL_TAGS = new HashSet();
+	private static final Set SKIPPED_TAGS = new HashSet();
+
+	static {
+		String[] block = { "address", "article", "aside", "blockquote", "br", "caption", "center", "dd", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li", "nav", "ol", "p", "pre", "section", "table", "tbody", "tfoot", "thead", "tr", "ul" };
+		for (int i = 0; i < block.length; i++) {
+			BLOCK_TAGS.add(block[i]);
+		}
+		CELL_TAGS.add("td");
+		CELL_TAGS.add("th");
+		SKIPPED_TAGS.add("script");
+		SKIPPED_TAGS.add("style");
+	}
+
+	private final StringBuffer text = new StringBuffer();
+
+	/*
+	 * Whether a space or a line break is owed before the next character,
+	 * and how many pre and skipped elements are open.
+	 */
+	private boolean pendingSpace = false;
+	private boolean pendingBreak = false;
+	private int preDepth = 0;
+	private int skipDepth = 0;
+
+	/**
+	 * Clears the text of the previous document.
+	 */
+	public void reset() {
+		text.setLength(0);
+		pendingSpace = false;
+		pendingBreak = false;
+		preDepth = 0;
+		skipDepth = 0;
+	}
+
+	/**
+	 * Returns the text collected since the last <code>reset()</code>.
+	 */
+	public String getText() {
+		return text.toString();
+	}
+
+	/**
+	 * Adds the text of a node and its descendants.
+	 */
+	public void extract(Node node) {
+
+		switch (node.getNodeType()) {
+
+		case Node.ELEMENT_NODE: {
+			String name = ((Element) node).getTagName().toLowerCase(Locale.ENGLISH);
+			open(name);
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				extract(child);
+			}
+			close(name);
+			break;
+		}
+
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE: {
+			String value = node.getNodeValue();
+			if (value != null) {
+				extract(value);
+			}
+			break;
+		}
+
+		case Node.ENTITY_REFERENCE_NODE:
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				extract(child);
+			}
+			break;
+
+		default:
+			// comments and processing instructions have no text
+			break;
+		}
+	}
+
+	/**
+	 * Adds a run of text that contains no markup.
+	 */
+	public void extract(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			append(value.charAt(i));
+		}
+	}
+
+	/*
+	 * The start and end of an element, by its lower case name. The
+	 * HTMLWriter calls these itself for the elements it writes.
+	 */
+	void open(String name) {
+		if (SKIPPED_TAGS.contains(name)) {
+			skipDepth++;
+		} else if (BLOCK_TAGS.contains(name)) {
+			lineBreak();
+		} else if (CELL_TAGS.contains(name)) {
+			space();
+		}
+		if ("pre".equals(name)) {
+			preDepth++;
+		}
+	}
+
+	void close(String name) {
+		if (SKIPPED_TAGS.contains(name)) {
+			skipDepth--;
+		} else if (BLOCK_TAGS.contains(name)) {
+			lineBreak();
+		}
+		if ("pre".equals(name)) {
+			preDepth--;
+		}
+	}
+
+	private void lineBreak() {
+		if (text.length() > 0) {
+			pendingBreak = true;
+			pendingSpace = false;
+		}
+	}
+
+	private void space() {
+		if (text.length() > 0 && !pendingBreak) {
+			pendingSpace = true;
+		}
+	}
+
+	private void append(char c) {
+		if (skipDepth > 0) {
+			return;
+		}
+
+		if (preDepth == 0 && (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u00A0')) {
+			space();
+			return;
+		}
+
+		if (pendingBreak) {
+			text.append('\n');
+		} else if (pendingSpace) {
+			text.append(' ');
+		}
+		pendingBreak = false;
+		pendingSpace = false;
+
+		text.append(c);
+	}
+
+	/*
+	 * ContentHandler and LexicalHandler, for the SAX scanner.
+	 */
+
+	public void startDocument() {
+	}
+
+	public void endDocument() {
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		open((qName == null || qName.length() == 0 ? localName : qName).toLowerCase(Locale.ENGLISH));
+	}
+
+	public void endElement(String uri, String localName, String qName) {
+		close((qName == null || qName.length() == 0 ? localName : qName).toLowerCase(Locale.ENGLISH));
+	}
+
+	public void characters(char[] ch, int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			append(ch[i]);
+		}
+	}
+
+	public void ignorableWhitespace(char[] ch, int start, int length) {
+		characters(ch, start, length);
+	}
+
+	public void comment(char[] ch, int start, int length) {
+	}
+
+	public void startCDATA() {
+	}
+
+	public void endCDATA() {
+	}
+
+	public void processingInstruction(String target, String data) {
+	}
+
+	public void setDocumentLocator(Locator locator) {
+	}
+
+	public void startPrefixMapping(String prefix, String uri) {
+	}
+
+	public void endPrefixMapping(String prefix) {
+	}
+
+	public void skippedEntity(String name) {
+	}
+
+	public void startDTD(String name, String publicId, String systemId) {
+	}
+
+	public void endDTD() {
+	}
+
+	public void startEntity(String name) {
+	}
+
+	public void endEntity(String name) {
+	}
+}
@@ -24,7 +24,100 @@
 
 package org.owasp.validator.html.util;
 
+import java.util.Arrays;
+
 public class HTMLEntityEncoder {
+
+	/*
+	 * The characters that have a named entity in HTML 4.01, in ascending
+	 * order, and the names of those entities. This is the table the Xerces
+	 * serializers used through HTMLdtd.fromChar().
+	 */
+	private static final char[] ENTITY_CHARS = {
+		0x0022, 0x0026, 0x003C, 0x003E, 0x00A0, 0x00A1, 0x00A2, 0x00A3, 0x00A4, 0x00A5, 0x00A6, 0x00A7,
+		0x00A8, 0x00A9, 0x00AA, 0x00AB, 0x00AC, 0x00AD, 0x00AE, 0x00AF, 0x00B0, 0x00B1, 0x00B2, 0x00B3,
+		0x00B4, 0x00B5, 0x00B6, 0x00B7, 0x00B8, 0x00B9, 0x00BA, 0x00BB, 0x00BC, 0x00BD, 0x00BE, 0x00BF,
+		0x00C0, 0x00C1, 0x00C2, 0x00C3, 0x00C4, 0x00C5, 0x00C6, 0x00C7, 0x00C8, 0x00C9, 0x00CA, 0x00CB,
+		0x00CC, 0x00CD, 0x00CE, 0x00CF, 0x00D0, 0x00D1, 0x00D2, 0x00D3, 0x00D4, 0x00D5, 0x00D6, 0x00D7,
+		0x00D8, 0x00D9, 0x00DA, 0x00DB, 0x00DC, 0x00DD, 0x00DE, 0x00DF, 0x00E0, 0x00E1, 0x00E2, 0x00E3,
+		0x00E4, 0x00E5, 0x00E6, 0x00E7, 0x00E8, 0x00E9, 0x00EA, 0x00EB, 0x00EC, 0x00ED, 0x00EE, 0x00EF,
+		0x00F0, 0x00F1, 0x00F2, 0x00F3, 0x00F4, 0x00F5, 0x00F6, 0x00F7, 0x00F8, 0x00F9, 0x00FA, 0x00FB,
+		0x00FC, 0x00FD, 0x00FE, 0x00FF, 0x0152, 0x0153, 0x0178, 0x0192, 0x02C6, 0x02DC, 0x0391, 0x0392,
+		0x0393, 0x0394, 0x0395, 0x0396, 0x0397, 0x0398, 0x0399, 0x039A, 0x039B, 0x039C, 0x039D, 0x039E,
+		0x039F, 0x03A0, 0x03A1, 0x03A3, 0x03A4, 0x03A5, 0x03A6, 0x03A7, 0x03A8, 0x03A9, 0x03B1, 0x03B2,
+		0x03B3, 0x03B4, 0x03B5, 0x03B6, 0x03B7, 0x03B8, 0x03B9, 0x03BA, 0x03BB, 0x03BC, 0x03BD, 0x03BE,
+		0x03BF, 0x03C0, 0x03C1, 0x03C2, 0x03C3, 0x03C4, 0x03C5, 0x03C6, 0x03C7, 0x03C8, 0x03C9, 0x03D1,
+		0x03D2, 0x03D6, 0x2002, 0x2003, 0x2009, 0x200C, 0x200D, 0x200E, 0x200F, 0x2013, 0x2014, 0x2018,
+		0x2019, 0x201A, 0x201C, 0x201D, 0x201E, 0x2020, 0x2021, 0x2022, 0x2026, 0x2030, 0x2032, 0x2033,
+		0x2039, 0x203A, 0x203E, 0x2044, 0x20AC, 0x2111, 0x2118, 0x211C, 0x2122, 0x2135, 0x2190, 0x2191,
+		0x2192, 0x2193, 0x2194, 0x21B5, 0x21D0, 0x21D1, 0x21D2, 0x21D3, 0x21D4, 0x2200, 0x2202, 0x2203,
+		0x2205, 0x2207, 0x2208, 0x2209, 0x220B, 0x220F, 0x2211, 0x2212, 0x2217, 0x221A, 0x221D, 0x221E,
+		0x2220, 0x2227, 0x2228, 0x2229, 0x222A, 0x222B, 0x2234, 0x223C, 0x2245, 0x2248, 0x2260, 0x2261,
+		0x2264, 0x2265, 0x2282, 0x2283, 0x2284, 0x2286, 0x2287, 0x2295, 0x2297, 0x22A5, 0x22C5, 0x2308,
+		0x2309, 0x230A, 0x230B, 0x2329, 0x232A, 0x25CA, 0x2660, 0x2663, 0x2665, 0x2666
+	};
+
+	private static final String[] ENTITY_NAMES = {
+		"quot", "amp", "lt", "gt", "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect",
+		"uml", "copy", "ordf", "laquo", "not", "shy", "reg", "macr", "deg", "plusmn", "sup2", "sup3",
+		"acute", "micro", "para", "middot", "cedil", "sup1", "ordm", "raquo", "frac14", "frac12", "frac34",
+		"iquest", "Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil", "Egrave",
+		"Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml", "ETH", "Ntilde", "Ograve",
+		"Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml",
+		"Yacute", "THORN", "szlig", "agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig",
+		"ccedil", "egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml", "eth",
+		"ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide", "oslash", "ugrave", "uacute",
+		"ucirc", "uuml", "yacute", "thorn", "yuml", "OElig", "oelig", "Yuml", "fnof", "circ", "tilde",
+		"Alpha", "Beta", "Gamma", "Delta", "Epsilon", "Zeta", "Eta", "Theta", "Iota", "Kappa", "Lambda",
+		"Mu", "Nu", "Xi", "Omicron", "Pi", "Rho", "Sigma", "Tau", "Upsilon", "Phi", "Chi", "Psi", "Omega",
+		"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta", "iota", "kappa", "lambda",
+		"mu", "nu", "xi", "omicron", "pi", "rho", "sigmaf", "sigma", "tau", "upsilon", "phi", "chi", "psi",
+		"omega", "thetasym", "upsih", "piv", "ensp", "emsp", "thinsp", "zwnj", "zwj", "lrm", "rlm",
+		"ndash", "mdash", "lsquo", "rsquo", "sbquo", "ldquo", "rdquo", "bdquo", "dagger", "Dagger", "bull",
+		"hellip", "permil", "prime", "Prime", "lsaquo", "rsaquo", "oline", "frasl", "euro", "image",
+		"weierp", "real", "trade", "alefsym", "larr", "uarr", "rarr", "darr", "harr", "crarr", "lArr",
+		"uArr", "rArr", "dArr", "hArr", "forall", "part", "exist", "empty", "nabla", "isin", "notin", "ni",
+		"prod", "sum", "minus", "lowast", "radic", "prop", "infin", "ang", "and", "or", "cap", "cup",
+		"int", "there4", "sim", "cong", "asymp", "ne", "equiv", "le", "ge", "sub", "sup", "nsub", "sube",
+		"supe", "oplus", "otimes", "perp", "sdot", "lceil", "rceil", "lfloor", "rfloor", "lang", "rang",
+		"loz", "spades", "clubs", "hearts", "diams"
+	};
+
+	/*
+	 * One bit per character up to the last one in ENTITY_CHARS, set if that
+	 * character has a named entity.
+	 */
+	private static final long[] HAS_ENTITY_NAME = new long[(ENTITY_CHARS[ENTITY_CHARS.length - 1] >> 6) + 1];
+
+	static {
+		for (int i = 0; i < ENTITY_CHARS.length; i++) {
+			HAS_ENTITY_NAME[ENTITY_CHARS[i] >> 6] |= 1L << (ENTITY_CHARS[i] & 63);
+		}
+	}
+
+	/**
+	 * Tells whether a character has a named entity, such as
+	 * <code>&amp;eacute;</code> for '&#233;'. This is a single bit lookup.
+	 * @param ch The character.
+	 * @return True if <code>getEntityName(ch)</code> returns a name.
+	 */
+	public static boolean hasEntityName(int ch) {
+		int word = ch >> 6;
+		return ch >= 0 && word < HAS_ENTITY_NAME.length && (HAS_ENTITY_NAME[word] & (1L << (ch & 63))) != 0;
+	}
+
+	/**
+	 * Returns the name of the HTML entity for a character.
+	 * @param ch The character.
+	 * @return The entity name without '&amp;' and ';', or null if the
+	 * character has none.
+	 */
+	public static String getEntityName(int ch) {
+		if (!hasEntityName(ch)) {
+			return null;
+		}
+		return ENTITY_NAMES[Arrays.binarySearch(ENTITY_CHARS, (char) ch)];
+	}
 	
 	/**
 	 * A helper method for HTML entity-encoding a String value.
@@ -24,14 +24,29 @@
 
 package org.owasp.validator.html.test;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.ResourceBundle;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import junit.framework.Test;
@@ -39,12 +54,32 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.xml.serialize.HTMLdtd;
+import org.owasp.validator.css.CssDeclarationTokenizer;
+import org.owasp.validator.css.CssScanner;
+import org.owasp.validator.css.CssSelectorRules;
+import org.owasp.validator.css.HttpStyleSheetResolver;
+import org.owasp.validator.css.InMemoryStyleSheetResolver;
+import org.owasp.validator.css.InlineStyleCache;
+import org.owasp.validator.css.MappedStyleSheetResolver;
+import org.owasp.validator.css.StyleSheetImports;
+import org.owasp.validator.css.StyleSheetSource;
 import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.BatchCleanResults;
+import org.owasp.validator.html.BatchScanListener;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanCallback;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanFuture;
 import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.scan.AsyncScanner;
+import org.owasp.validator.html.scan.ScanSession;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+import org.w3c.dom.DocumentFragment;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * This class tests AntiSamy functionality and the basic policy file which
@@ -1251,6 +1286,1525 @@ public class AntiSamyTest extends TestCase {
 		}
 	}
 
+	public void testPlainTextFastPath() {
+		try {
+			String isFastPath = policy.getDirective(Policy.PLAIN_TEXT_FAST_PATH);
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			String isEncodeIntl = policy.getDirective(Policy.ENTITY_ENCODE_INTL_CHARS);
+			String isPreserveSpace = policy.getDirective(Policy.PRESERVE_SPACE);
+
+			String[] edgeCases = {
+					"", "hello world", "  leading space", "trailing space ", "ends in newline\n", "dos\r\nline\rendings", "tab\tseparated",
+					"quotes \" and ' and > too", "caf\u00e9 \u00f7 \u00a0 \u4e2d\u6587 \u0440\u0443\u0441", "\ud83d\ude00 surrogate pair",
+					"control\u0001char", "lone \ud800 surrogate", "not &amp; plain", "not < plain",
+					"This is a considerably longer comment that is going to be wrapped once output is formatted."
+			};
+
+			/*
+			 * Besides the edge cases, every string literal in this file that
+			 * the fast path could take (no '<' or '&') is checked.
+			 */
+			ArrayList inputs = new ArrayList();
+			for (int i = 0; i < edgeCases.length; i++) {
+				inputs.add(edgeCases[i]);
+			}
+			ArrayList literals = readTestLiterals();
+			for (int i = 0; i < literals.size(); i++) {
+				String literal = (String) literals.get(i);
+				if (literal.indexOf('<') == -1 && literal.indexOf('&') == -1) {
+					inputs.add(literal);
+				}
+			}
+
+			String[] flags = { Policy.FORMAT_OUTPUT, Policy.ENTITY_ENCODE_INTL_CHARS, Policy.PRESERVE_SPACE };
+
+			for (int combo = 0; combo < 8; combo++) {
+				for (int f = 0; f < flags.length; f++) {
+					policy.setDirective(flags[f], (combo & (1 << f)) != 0 ? "true" : "false");
+				}
+
+				for (int i = 0; i < inputs.size(); i++) {
+					String input = (String) inputs.get(i);
+					policy.setDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+					String domFull = as.scan(input, policy, AntiSamy.DOM).getCleanHTML();
+					String saxFull = as.scan(input, policy, AntiSamy.SAX).getCleanHTML();
+
+					policy.setDirective(Policy.PLAIN_TEXT_FAST_PATH, "true");
+					CleanResults dom = as.scan(input, policy, AntiSamy.DOM);
+					assertEquals(input, domFull, dom.getCleanHTML());
+					assertNotNull(dom.getCleanXMLDocumentFragment());
+					assertEquals(input, saxFull, as.scan(input, policy, AntiSamy.SAX).getCleanHTML());
+				}
+			}
+
+			policy.setDirective(Policy.PLAIN_TEXT_FAST_PATH, isFastPath);
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+			policy.setDirective(Policy.ENTITY_ENCODE_INTL_CHARS, isEncodeIntl);
+			policy.setDirective(Policy.PRESERVE_SPACE, isPreserveSpace);
+
+		} catch (Exception e) {
+			fail("Caught exception in testPlainTextFastPath(): " + e.getMessage());
+		}
+	}
+
+	public void testHTMLWriter() {
+		try {
+			String isPreserveComments = policy.getDirective(Policy.PRESERVE_COMMENTS);
+			String isUseXhtml = policy.getDirective(Policy.USE_XHTML);
+
+			policy.setDirective(Policy.PRESERVE_COMMENTS, "true");
+
+			/*
+			 * A comment after the last element is written by both engines and
+			 * does not turn up in the next scan.
+			 */
+			String trailing = "<b>text</b><!-- end -->";
+			assertEquals(as.scan(trailing, policy, AntiSamy.SAX).getCleanHTML(), as.scan(trailing, policy, AntiSamy.DOM).getCleanHTML());
+			assertTrue(as.scan(trailing, policy, AntiSamy.DOM).getCleanHTML().indexOf("<!-- end -->") != -1);
+
+			ArrayList inputs = new ArrayList();
+			inputs.add(trailing);
+			inputs.add("<i>next</i>");
+			assertTrue(as.scanAll(inputs, policy, AntiSamy.DOM).getResults(1).getCleanHTML().indexOf("end") == -1);
+
+			policy.setDirective(Policy.PRESERVE_COMMENTS, isPreserveComments);
+
+			String input = "<div><br><img src=\"http://www.owasp.org/x.gif\"><p title=\"a &amp; b\">x</p></div>";
+
+			policy.setDirective(Policy.USE_XHTML, "true");
+			String xhtml = as.scan(input, policy, AntiSamy.DOM).getCleanHTML();
+			assertTrue(xhtml.indexOf("<br />") != -1);
+			assertTrue(xhtml.indexOf("title=\"a &amp; b\"") != -1);
+			assertEquals(xhtml, as.scan(input, policy, AntiSamy.SAX).getCleanHTML());
+
+			policy.setDirective(Policy.USE_XHTML, "false");
+			String html = as.scan(input, policy, AntiSamy.DOM).getCleanHTML();
+			assertTrue(html.indexOf("<br>") != -1);
+			assertTrue(html.indexOf("</br>") == -1);
+			assertEquals(html, as.scan(input, policy, AntiSamy.SAX).getCleanHTML());
+
+			// an attribute given twice is written once
+			String twice = as.scan("<p title=\"a\" title=\"b\">x</p>", policy, AntiSamy.SAX).getCleanHTML();
+			assertEquals(twice.indexOf("title="), twice.lastIndexOf("title="));
+
+			policy.setDirective(Policy.USE_XHTML, isUseXhtml);
+
+		} catch (Exception e) {
+			fail("Caught exception in testHTMLWriter(): " + e.getMessage());
+		}
+	}
+
+	public void testTrailingLineBreak() {
+		try {
+			String isPreserveSpace = policy.getDirective(Policy.PRESERVE_SPACE);
+			String isFastPath = policy.getDirective(Policy.PLAIN_TEXT_FAST_PATH);
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.PRESERVE_SPACE, "true");
+			policy.setDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+			policy.setDirective(Policy.FORMAT_OUTPUT, "false");
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				// a line break at the end is only kept if the input ended with one
+				assertEquals("x", as.scan("x&#10;", policy, scanTypes[t]).getCleanHTML());
+				assertEquals("x", as.scan("x&#13;&#10;", policy, scanTypes[t]).getCleanHTML());
+				assertEquals("x\n", as.scan("x\n", policy, scanTypes[t]).getCleanHTML());
+				assertEquals("x\r", as.scan("x&#13;", policy, scanTypes[t]).getCleanHTML());
+				assertEquals("<b>x</b>\n<i>y</i>", as.scan("<b>x</b>&#10;<i>y</i>", policy, scanTypes[t]).getCleanHTML());
+			}
+
+			policy.setDirective(Policy.PRESERVE_SPACE, isPreserveSpace);
+			policy.setDirective(Policy.PLAIN_TEXT_FAST_PATH, isFastPath);
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+		} catch (Exception e) {
+			fail("Caught exception in testTrailingLineBreak(): " + e.getMessage());
+
+		}
+	}
+
+	public void testRetainDocumentFragment() {
+		try {
+			String isRetain = policy.getDirective(Policy.RETAIN_DOCUMENT_FRAGMENT);
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.FORMAT_OUTPUT, "true");
+
+			String input = "<div><p>a</p><p>b</p><script>alert(1)</script></div>";
+
+			CleanResults retained = as.scan(input, policy, AntiSamy.DOM);
+			assertEquals("ab", retained.getCleanXMLDocumentFragment().getTextContent());
+
+			policy.setDirective(Policy.RETAIN_DOCUMENT_FRAGMENT, "false");
+			CleanResults dropped = as.scan(input, policy, AntiSamy.DOM);
+			assertEquals(retained.getCleanHTML(), dropped.getCleanHTML());
+
+			/*
+			 * The fragment is parsed from the clean HTML when asked for, so it
+			 * has the whitespace formatting added as well.
+			 */
+			DocumentFragment fragment = dropped.getCleanXMLDocumentFragment();
+			assertNotNull(fragment);
+			assertSame(fragment, dropped.getCleanXMLDocumentFragment());
+			assertEquals("ab", fragment.getTextContent().replaceAll("\\s", ""));
+
+			// the scan option wins over the policy
+			AntiSamy retaining = new AntiSamy();
+			retaining.setRetainDocumentFragment(Boolean.TRUE);
+			assertEquals("ab", retaining.scan(input, policy, AntiSamy.DOM).getCleanXMLDocumentFragment().getTextContent());
+
+			policy.setDirective(Policy.RETAIN_DOCUMENT_FRAGMENT, isRetain);
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+			/*
+			 * Keep a few hundred results of each kind around and print how
+			 * much heap each one holds on to. This is a benchmark, only run
+			 * with -Dantisamy.benchmarks=true.
+			 */
+			if (!Boolean.getBoolean("antisamy.benchmarks")) {
+				return;
+			}
+			StringBuffer document = new StringBuffer();
+			for (int i = 0; i < 20; i++) {
+				document.append("<p>Paragraph <b>").append(i).append("</b> with <a href=\"http://www.owasp.org/\">a link</a> and <i>some</i> text.</p>\n");
+			}
+			String html = document.toString();
+
+			Boolean[] settings = { Boolean.TRUE, Boolean.FALSE };
+			AntiSamy measuring = new AntiSamy();
+
+			for (int k = 0; k < settings.length; k++) {
+				measuring.setRetainDocumentFragment(settings[k]);
+				ArrayList results = new ArrayList();
+				long before = usedMemory();
+				for (int i = 0; i < 500; i++) {
+					results.add(measuring.scan(html, policy, AntiSamy.DOM));
+				}
+				long after = usedMemory();
+				System.out.println("retainDocumentFragment: " + settings[k] + " bytes per result: " + (after - before) / results.size());
+			}
+
+		} catch (Exception e) {
+			fail("Caught exception in testRetainDocumentFragment(): " + e.getMessage());
+		}
+	}
+
+	public void testMaxOutputSize() {
+		try {
+			String maxOutputSize = policy.getDirective(Policy.MAX_OUTPUT_SIZE);
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.FORMAT_OUTPUT, "false");
+
+			StringBuffer document = new StringBuffer();
+			for (int i = 0; i < 200; i++) {
+				document.append("<div><p>Paragraph <b>").append(i).append("</b> of <i>some</i> text.</p></div>");
+			}
+			String html = document.toString();
+
+			CleanResults full = as.scan(html, policy, AntiSamy.DOM);
+			assertFalse(full.isTruncated());
+
+			policy.setDirective(Policy.MAX_OUTPUT_SIZE, "100");
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+			String[] outputs = new String[scanTypes.length];
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				CleanResults results = as.scan(html, policy, scanTypes[t]);
+				outputs[t] = results.getCleanHTML();
+
+				assertTrue(results.isTruncated());
+				// the first 100 characters match, and the open elements are closed after them
+				assertTrue(full.getCleanHTML().startsWith(outputs[t].substring(0, 100)));
+				assertEquals(count(outputs[t], "<div>"), count(outputs[t], "</div>"));
+				assertEquals(count(outputs[t], "<p>"), count(outputs[t], "</p>"));
+			}
+			assertEquals(outputs[0], outputs[1]);
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				policy.setDirective(Policy.MAX_OUTPUT_SIZE, "100");
+				CleanResults results = as.scan("just some text", policy, scanTypes[t]);
+				assertEquals("just some text", results.getCleanHTML());
+				assertFalse(results.isTruncated());
+
+				policy.setDirective(Policy.MAX_OUTPUT_SIZE, "5");
+				results = as.scan("just some text", policy, scanTypes[t]);
+				assertEquals("just ", results.getCleanHTML());
+				assertTrue(results.isTruncated());
+
+				// style sheets are not cut in half
+				policy.setDirective(Policy.MAX_OUTPUT_SIZE, "20");
+				results = as.scan("<p>x</p><style>p { color: red; }</style>", policy, scanTypes[t]);
+				assertEquals("<p>x</p><style></style>", results.getCleanHTML());
+			}
+
+			policy.setDirective(Policy.MAX_OUTPUT_SIZE, maxOutputSize);
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+		} catch (Exception e) {
+			fail("Caught exception in testMaxOutputSize(): " + e.getMessage());
+		}
+	}
+
+	public void testExtractText() {
+		try {
+			String isExtractText = policy.getDirective(Policy.EXTRACT_TEXT);
+
+			String input = "<div><h1>Title</h1><p>Fish &amp; chips,\n  <b>hot</b>&nbsp;and <i>fresh</i>.</p>"
+				+ "<style>p { color: red; }</style><!-- note --><script>alert(1)</script>"
+				+ "<ul><li>one</li><li>two</li></ul>line<br>break<pre>  kept\n  as is</pre>"
+				+ "<table><tr><td>a</td><td>b</td></tr></table></div>";
+			String expected = "Title\nFish & chips, hot and fresh.\none\ntwo\nline\nbreak\n  kept\n  as is\na b";
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				assertNull(as.scan(input, policy, scanTypes[t]).getCleanText());
+			}
+
+			policy.setDirective(Policy.EXTRACT_TEXT, "true");
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				CleanResults results = as.scan(input, policy, scanTypes[t]);
+				assertEquals(expected, results.getCleanText());
+				assertEquals("plain text", as.scan(" plain \n text ", policy, scanTypes[t]).getCleanText());
+			}
+
+			// the text stops where the output limit cuts off the HTML
+			String maxOutputSize = policy.getDirective(Policy.MAX_OUTPUT_SIZE);
+			String[] limited = { "<p>Hello &amp; <b>bold</b> tail text here</p>", "Hello world, and then some", "<p>one</p><p>two three</p>", "<div>abc<p>defghijklmnop</p>qrs</div>" };
+			String[] limits = { "12", "8", "14", "10" };
+			String[] texts = { "Hello &", "Hello wo", "one\nt", "abc" };
+
+			for (int i = 0; i < limited.length; i++) {
+				policy.setDirective(Policy.MAX_OUTPUT_SIZE, limits[i]);
+				for (int t = 0; t < scanTypes.length; t++) {
+					CleanResults results = as.scan(limited[i], policy, scanTypes[t]);
+					assertTrue(results.isTruncated());
+					assertEquals(texts[i], results.getCleanText());
+				}
+			}
+
+			policy.setDirective(Policy.MAX_OUTPUT_SIZE, maxOutputSize);
+			policy.setDirective(Policy.EXTRACT_TEXT, isExtractText);
+
+		} catch (Exception e) {
+			fail("Caught exception in testExtractText(): " + e.getMessage());
+		}
+	}
+
+	public void testContentHandler() {
+		try {
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.FORMAT_OUTPUT, "false");
+
+			String[] inputs = {
+				"<p>Hello <b>world</b> <a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a><script>alert(1)</script></p>",
+				"just text",
+				"<div><i>one</i><u>two</u></div>tail" };
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int i = 0; i < inputs.length; i++) {
+				for (int t = 0; t < scanTypes.length; t++) {
+					final StringBuffer events = new StringBuffer();
+					DefaultHandler handler = new DefaultHandler() {
+						public void startElement(String uri, String localName, String qName, Attributes attributes) {
+							events.append('<').append(qName);
+							for (int a = 0; a < attributes.getLength(); a++) {
+								events.append(' ').append(attributes.getQName(a)).append("=\"").append(attributes.getValue(a)).append('"');
+							}
+							events.append('>');
+						}
+
+						public void endElement(String uri, String localName, String qName) {
+							events.append("</").append(qName).append('>');
+						}
+
+						public void characters(char[] ch, int start, int length) {
+							events.append(ch, start, length);
+						}
+					};
+
+					CleanResults results = as.scan(inputs[i], policy, scanTypes[t], handler);
+					assertNull(results.getCleanHTML());
+
+					// the handler sees what would otherwise have been written
+					assertEquals(as.scan(inputs[i], policy, scanTypes[t]).getCleanHTML(), events.toString());
+				}
+			}
+
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+		} catch (Exception e) {
+			fail("Caught exception in testContentHandler(): " + e.getMessage());
+		}
+	}
+
+	/*
+	 * The inputs on which the engines are known to differ. NekoHTML's DOM and
+	 * SAX parsers balance and drop elements differently, and the DOM scanner
+	 * keeps a style element whose rules were all removed.
+	 */
+	private static final String[] KNOWN_ENGINE_DIFFERENCES = {
+			"<BODY onload!#$%&()*~+-_.,:;?@[/|\\]^`=alert(\"XSS\")>",
+			"<BODY ONLOAD=alert('XSS')>",
+			"<LINK REL=\"stylesheet\" HREF=\"javascript:alert('XSS');\">",
+			"<LINK REL=\"stylesheet\" HREF=\"http://ha.ckers.org/xss.css\">",
+			"<TABLE BACKGROUND=\"javascript:alert('XSS')\">",
+			"<TABLE><TD BACKGROUND=\"javascript:alert('XSS')\">",
+			"<OBJECT classid=clsid:ae24fdae-03c6-11d1-8b76-0080c744f389><param name=url value=javascript:alert('XSS')></OBJECT>",
+			"<br ><strong></strong><a>hello world</a><b /><i/><hr>",
+			"<b><i>Some Text</b></i>",
+			"<STYLE>@import'http://ha.ckers.org/xss.css';</STYLE>",
+			"<style>z-index:25</style>",
+			"<style>@import url(" };
+
+	/*
+	 * Runs every literal input of this test class through both engines and
+	 * fails where their clean markup differs, except on the known
+	 * differences above. The engines share their validation decisions, so
+	 * those are parser and serializer differences. The DOM scanner writes
+	 * style sheets as CDATA sections, which is not counted as a difference.
+	 */
+	public void testEngineDifferences() {
+		try {
+			String text = readTestSource();
+
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.FORMAT_OUTPUT, "false");
+
+			HashSet known = new HashSet();
+			for (int i = 0; i < KNOWN_ENGINE_DIFFERENCES.length; i++) {
+				known.add(KNOWN_ENGINE_DIFFERENCES[i]);
+			}
+
+			int inputs = 0;
+			int failures = 0;
+			ArrayList unexpected = new ArrayList();
+			Matcher m = Pattern.compile("scan\\(\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(text);
+			while (m.find()) {
+				String input = unescape(m.group(1));
+				inputs++;
+
+				String dom;
+				String sax;
+				try {
+					dom = as.scan(input, policy, AntiSamy.DOM).getCleanHTML();
+					sax = as.scan(input, policy, AntiSamy.SAX).getCleanHTML();
+				} catch (ScanException e) {
+					failures++;
+					continue;
+				}
+
+				assertNotNull(dom);
+				assertNotNull(sax);
+				assertTrue(dom.toLowerCase().indexOf("<script") == -1);
+				assertTrue(sax.toLowerCase().indexOf("<script") == -1);
+
+				dom = dom.replaceAll("<!\\[CDATA\\[|\\]\\]>", "");
+				if (!dom.equals(sax) && !known.contains(input)) {
+					unexpected.add("input: " + input + "\n  DOM: " + dom + "\n  SAX: " + sax);
+				}
+			}
+
+			assertTrue(inputs > 100);
+			assertTrue(failures < 5);
+			assertTrue("Engines differ on:\n" + unexpected, unexpected.isEmpty());
+
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+		} catch (Exception e) {
+			fail("Caught exception in testEngineDifferences(): " + e.getMessage());
+		}
+	}
+
+	public void testTruncatedAttributeErrors() {
+		try {
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				CleanResults results = as.scan("<dl title=\"a&amp;b\">list</dl>", policy, scanTypes[t]);
+				assertEquals(1, results.getNumberOfErrors());
+				String message = results.getErrorMessages().get(0).toString();
+				assertTrue(message.indexOf("{2}") == -1);
+				assertTrue(message.indexOf("a&amp;b") != -1);
+			}
+
+		} catch (Exception e) {
+			fail("Caught exception in testTruncatedAttributeErrors(): " + e.getMessage());
+		}
+	}
+
+	public void testStreamedScan() {
+		try {
+			String[] inputs = {
+				"<p>Hello <b>world</b> <a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a><script>alert(1)</script></p>",
+				"<div style=\"color: red\"><i>one</i><u>two</u></div>tail\n",
+				"<style>p { color: red }</style><table><tr><td>cell</td></tr></table>\n\n",
+				"just text" };
+
+			for (int i = 0; i < inputs.length; i++) {
+				CleanResults expected = as.scan(inputs[i], policy, AntiSamy.SAX);
+
+				StringWriter out = new StringWriter();
+				CleanResults results = as.scan(new StringReader(inputs[i]), out, policy);
+
+				assertNull(results.getCleanHTML());
+				assertEquals(expected.getCleanHTML(), out.toString());
+				assertEquals(expected.getErrorMessages(), results.getErrorMessages());
+			}
+
+			// the streaming cap applies instead of maxInputSize
+			String maxStreamInputSize = policy.getDirective(Policy.MAX_STREAM_INPUT_SIZE);
+			policy.setDirective(Policy.MAX_STREAM_INPUT_SIZE, "100");
+
+			StringBuffer sb = new StringBuffer();
+			while (sb.length() <= 100) {
+				sb.append("<p>paragraph</p>");
+			}
+			try {
+				as.scan(new StringReader(sb.toString()), new StringWriter(), policy);
+				fail("input over maxStreamInputSize was scanned");
+			} catch (ScanException e) {
+				// expected
+			}
+
+			policy.setDirective(Policy.MAX_STREAM_INPUT_SIZE, maxStreamInputSize);
+
+		} catch (Exception e) {
+			fail("Caught exception in testStreamedScan(): " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Streams 1MB of generated input through the SAX engine. The clean HTML
+	 * has to keep up with the input, so that neither is held in memory as a
+	 * whole.
+	 */
+	public void testStreamedScanMemory() {
+		try {
+			long[] counts = streamGenerated(1000 * 1000, false);
+
+			// nearly all of the output was written before the input ran out
+			assertTrue(counts[1] > 500 * 1000);
+			assertTrue(counts[1] - counts[0] < 64 * 1024);
+
+		} catch (Exception e) {
+			fail("Caught exception in testStreamedScanMemory(): " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Streams generated input from 100KB to 50MB through the SAX engine and
+	 * measures the heap while it runs, which should stay the same. Like
+	 * testCompareSpeeds() it is a benchmark; it takes a while and depends on
+	 * the garbage collector, so it only runs with -Dantisamy.benchmarks=true.
+	 */
+	public void testStreamedScanSpeeds() {
+		if (!Boolean.getBoolean("antisamy.benchmarks")) {
+			return;
+		}
+		try {
+			int[] sizes = { 100 * 1000, 1000 * 1000, 10 * 1000 * 1000, 50 * 1000 * 1000 };
+			long baseline = usedMemory();
+
+			for (int s = 0; s < sizes.length; s++) {
+				long start = System.currentTimeMillis();
+				long[] counts = streamGenerated(sizes[s], true);
+				long time = System.currentTimeMillis() - start;
+
+				System.out.println("streamed " + sizes[s] + " chars in " + time + " ms, " + counts[1] + " chars out, heap grew by " + (counts[2] - baseline) / 1024 + " KB");
+				assertTrue(counts[2] - baseline < 16 * 1024 * 1024);
+			}
+
+		} catch (Exception e) {
+			fail("Caught exception in testStreamedScanSpeeds(): " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Scans size characters of generated input into a Writer that only
+	 * counts them. Returns the characters written by the time the last of
+	 * the input was read, the characters written in all and, if asked to
+	 * measure it, the most heap used along the way.
+	 */
+	private long[] streamGenerated(final int size, final boolean measure) throws Exception {
+		final String chunk = "<p class=\"x\">Hello <b>world</b> <a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a>"
+			+ "<script>alert(1)</script></p>\n<div style=\"color: red\"><i>text</i> more text &amp; so on</div>\n";
+		final long[] counts = { 0, 0, 0 };
+
+		Reader in = new Reader() {
+			private int position = 0;
+			private int nextSample = size / 10;
+
+			public int read(char[] cbuf, int off, int len) {
+				if (position == size) {
+					return -1;
+				}
+				int n = 0;
+				while (n < len && position < size) {
+					cbuf[off + n++] = chunk.charAt(position++ % chunk.length());
+				}
+				if (position == size) {
+					counts[0] = counts[1];
+				}
+				if (measure && position >= nextSample) {
+					nextSample += size / 10;
+					counts[2] = Math.max(counts[2], usedMemory());
+				}
+				return n;
+			}
+
+			public void close() {
+			}
+		};
+
+		Writer out = new Writer() {
+			public void write(char[] cbuf, int off, int len) {
+				counts[1] += len;
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+
+		as.scan(in, new BufferedWriter(out), policy);
+		return counts;
+	}
+
+	public void testScanSession() {
+		try {
+			String isFormatOutput = policy.getDirective(Policy.FORMAT_OUTPUT);
+			policy.setDirective(Policy.FORMAT_OUTPUT, "false");
+
+			// clean HTML comes out as the pieces arrive
+			StringWriter out = new StringWriter();
+			ScanSession session = as.startSession(out, policy);
+
+			session.feed("<p>Hello <b>wor".toCharArray());
+			assertTrue(out.toString().startsWith("<p>Hello <b>wor"));
+
+			session.feed("ld</b> <a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a><script>alert(1)</scr".toCharArray());
+			assertTrue(out.toString().indexOf("onclick") == -1);
+			assertTrue(out.toString().endsWith("link</a>"));
+
+			session.feed("ipt> there</p>".toCharArray());
+			CleanResults results = session.finish();
+
+			assertNull(results.getCleanHTML());
+			assertEquals(2, results.getNumberOfErrors());
+			assertTrue(out.toString().endsWith(" there</p>"));
+
+			try {
+				session.feed("more".toCharArray());
+				fail("a finished session took more input");
+			} catch (ScanException e) {
+				// expected
+			}
+
+			// however the input is split, the result is that of a single scan
+			String[] inputs = {
+				"<p>a<script>alert(1)</script></p><div>x &amp; y</div>\n",
+				"<p>a<title>x<b>y</b></title><div>t</div>",
+				"<p>a<TITLE lang=\"en\"><b>y</b></TITLE><style>p { color: red }</style>tail",
+				"<table><tr><td>cell<!-- comment --></td></tr></table>" };
+
+			for (int i = 0; i < inputs.length; i++) {
+				StringWriter expected = new StringWriter();
+				as.scan(new StringReader(inputs[i]), expected, policy);
+
+				out = new StringWriter();
+				session = as.startSession(out, policy);
+				char[] input = inputs[i].toCharArray();
+				for (int k = 0; k < input.length; k++) {
+					session.feed(input, k, 1);
+				}
+				session.finish();
+
+				assertEquals(expected.toString(), out.toString());
+			}
+
+			// an abandoned session lets its thread go
+			session = as.startSession(new StringWriter(), policy);
+			session.feed("<p>unfinished".toCharArray());
+			session.close();
+
+			// so does one that is dropped, once it has gone without input for too long
+			String sessionIdleTimeout = policy.getDirective(Policy.SESSION_IDLE_TIMEOUT);
+			policy.setDirective(Policy.SESSION_IDLE_TIMEOUT, "500");
+			session = as.startSession(new StringWriter(), policy);
+			session.feed("<p>abandoned".toCharArray());
+
+			Thread[] threads = new Thread[Thread.activeCount() * 2];
+			int count = Thread.enumerate(threads);
+			int sessions = 0;
+			for (int i = 0; i < count; i++) {
+				if ("AntiSamy scan session".equals(threads[i].getName())) {
+					threads[i].join(10000);
+					assertFalse(threads[i].isAlive());
+					sessions++;
+				}
+			}
+			assertTrue(sessions > 0);
+
+			try {
+				session.feed("more".toCharArray());
+				fail("a timed out session took more input");
+			} catch (ScanException e) {
+				// expected
+			}
+			policy.setDirective(Policy.SESSION_IDLE_TIMEOUT, sessionIdleTimeout);
+
+			// so does one whose scan dies with an Error, failing the caller
+			session = as.startSession(new Writer() {
+				public void write(char[] cbuf, int off, int len) {
+					throw new Error("broken writer");
+				}
+
+				public void flush() {
+					throw new Error("broken writer");
+				}
+
+				public void close() {
+				}
+			}, policy);
+			try {
+				session.feed("<p>text</p>".toCharArray());
+				session.finish();
+				fail("a session whose scan died did not fail");
+			} catch (ScanException e) {
+				assertTrue(e.getMessage().indexOf("broken writer") != -1);
+			}
+
+			policy.setDirective(Policy.FORMAT_OUTPUT, isFormatOutput);
+
+		} catch (Exception e) {
+			fail("Caught exception in testScanSession(): " + e.getMessage());
+		}
+	}
+
+	private static int count(String s, String substring) {
+
+		int count = 0;
+		for (int i = s.indexOf(substring); i != -1; i = s.indexOf(substring, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	private static long usedMemory() {
+
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void testScanAll() {
+		try {
+			ArrayList inputs = new ArrayList();
+			inputs.add("<b>bold</b> and <script>alert(1)</script>");
+			inputs.add("just text");
+			inputs.add("<style>a { color: red; behavior: url(x.htc) }</style><p style=\"color: blue\">styled</p>");
+			inputs.add("<div><a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a>");
+			inputs.add("<b>bold</b> and <script>alert(1)</script>");
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				BatchCleanResults batch = as.scanAll(inputs, policy, scanTypes[t]);
+
+				assertEquals(inputs.size(), batch.getNumberOfScans());
+
+				int errors = 0;
+				long length = 0;
+
+				for (int i = 0; i < inputs.size(); i++) {
+					CleanResults single = as.scan((String) inputs.get(i), policy, scanTypes[t]);
+					assertEquals(single.getCleanHTML(), batch.getResults(i).getCleanHTML());
+					assertEquals(single.getErrorMessages(), batch.getResults(i).getErrorMessages());
+					errors += single.getNumberOfErrors();
+					length += ((String) inputs.get(i)).length();
+				}
+
+				assertEquals(errors, batch.getNumberOfErrors());
+				assertEquals(length, batch.getInputLength());
+			}
+
+		} catch (Exception e) {
+			fail("Caught exception in testScanAll(): " + e.getMessage());
+		}
+	}
+
+	public void testParallelScanAll() {
+		try {
+			String[] samples = {
+					"<b>bold</b> and <script>alert(1)</script>",
+					"<style>a { color: red; behavior: url(x.htc) }</style><p style=\"color: blue\">styled</p>",
+					"<div><a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a>",
+					"<table><tr><td background=\"javascript:alert(1)\">cell</td></tr></table>",
+					"plain text comment" };
+
+			final ArrayList inputs = new ArrayList();
+			for (int i = 0; i < 200; i++) {
+				inputs.add(samples[i % samples.length] + i);
+			}
+
+			int cpus = Runtime.getRuntime().availableProcessors();
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				BatchCleanResults serial = as.scanAll(inputs, policy, scanTypes[t], 1);
+
+				for (int threads = 2; threads <= Math.max(4, cpus); threads *= 2) {
+					BatchCleanResults parallel = as.scanAll(inputs, policy, scanTypes[t], threads);
+
+					assertEquals(serial.getNumberOfScans(), parallel.getNumberOfScans());
+					assertEquals(serial.getNumberOfErrors(), parallel.getNumberOfErrors());
+					for (int i = 0; i < inputs.size(); i++) {
+						assertEquals(serial.getResults(i).getCleanHTML(), parallel.getResults(i).getCleanHTML());
+					}
+				}
+
+				// results reach a slow listener in input order, one at a time
+				final int[] expected = { 0 };
+				final int[] inside = { 0 };
+				BatchCleanResults streamed = as.scanAll(inputs.iterator(), policy, scanTypes[t], 3, new BatchScanListener() {
+					public void scanned(int index, CleanResults results) {
+						assertEquals(1, ++inside[0]);
+						assertEquals(expected[0]++, index);
+						Thread.yield();
+						inside[0]--;
+					}
+				});
+				assertEquals(inputs.size(), expected[0]);
+				assertEquals(inputs.size(), streamed.getNumberOfScans());
+				assertTrue(streamed.getResults().isEmpty());
+			}
+
+			// scaling, a benchmark only run with -Dantisamy.benchmarks=true
+			if (Boolean.getBoolean("antisamy.benchmarks")) {
+				for (int threads = 1; threads <= cpus; threads *= 2) {
+					BatchCleanResults results = as.scanAll(inputs, policy, AntiSamy.SAX, threads);
+					System.out.println("Threads: " + threads + " scans/second: " + results.getScansPerSecond());
+				}
+			}
+
+		} catch (Exception e) {
+			fail("Caught exception in testParallelScanAll(): " + e.getMessage());
+		}
+	}
+
+	public void testScanAsync() {
+		try {
+			String input = "<div><a href=\"http://www.owasp.org/\" onclick=\"evil()\">link</a><script>alert(1)</script>";
+
+			final ArrayList completed = new ArrayList();
+			ScanCallback callback = new ScanCallback() {
+				public void completed(CleanResults results) {
+					synchronized (completed) {
+						completed.add(results.getCleanHTML());
+					}
+				}
+				public void failed(ScanException e) {
+				}
+			};
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				String expected = as.scan(input, policy, scanTypes[t]).getCleanHTML();
+
+				ScanFuture[] futures = new ScanFuture[10];
+				for (int i = 0; i < futures.length; i++) {
+					futures[i] = as.scanAsync(input, policy, scanTypes[t], callback);
+				}
+				for (int i = 0; i < futures.length; i++) {
+					assertEquals(expected, futures[i].get().getCleanHTML());
+					assertTrue(futures[i].isDone());
+				}
+			}
+
+			// callbacks run just after the futures complete
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (completed) {
+				while (completed.size() < 20 && System.currentTimeMillis() < deadline) {
+					completed.wait(10);
+				}
+				assertEquals(20, completed.size());
+			}
+
+			// failures are reported through the future
+			try {
+				as.scanAsync(null, policy, AntiSamy.SAX, null).get();
+				fail("Null input should have failed");
+			} catch (ScanException e) {
+				// expected
+			}
+
+			// a full queue rejects instead of blocking
+			AntiSamy bounded = new AntiSamy(policy);
+			AsyncScanner scanner = new AsyncScanner(1, 0);
+			bounded.setAsyncScanner(scanner);
+			ScanFuture rejected = bounded.scanAsync(input, null);
+			assertTrue(rejected.isDone());
+			try {
+				rejected.get();
+				fail("Scan should have been rejected");
+			} catch (ScanException e) {
+				// expected
+			}
+			scanner.shutdown();
+
+			// a worker's scanners pick up directives changed since they were made
+			String isNofollowAnchors = policy.getDirective(Policy.ANCHORS_NOFOLLOW);
+			String link = "<a href=\"http://www.owasp.org/\">link</a>";
+			scanner = new AsyncScanner(1, 16);
+			policy.setDirective(Policy.ANCHORS_NOFOLLOW, "false");
+			assertTrue(scanner.submit(link, policy, AntiSamy.SAX, "UTF-8", "UTF-8", null).get().getCleanHTML().indexOf("nofollow") == -1);
+			policy.setDirective(Policy.ANCHORS_NOFOLLOW, "true");
+			assertTrue(scanner.submit(link, policy, AntiSamy.SAX, "UTF-8", "UTF-8", null).get().getCleanHTML().indexOf("nofollow") != -1);
+			policy.setDirective(Policy.ANCHORS_NOFOLLOW, isNofollowAnchors);
+			scanner.shutdown();
+
+			// a worker killed by an Error is replaced
+			scanner = new AsyncScanner(1, 16);
+			scanner.submit(link, policy, AntiSamy.SAX, "UTF-8", "UTF-8", new ScanCallback() {
+				public void completed(CleanResults results) {
+					throw new Error("broken callback");
+				}
+				public void failed(ScanException e) {
+				}
+			});
+			assertNotNull(scanner.submit(link, policy, AntiSamy.SAX, "UTF-8", "UTF-8", null).get(10000));
+			scanner.shutdown();
+
+			// the shared scanner cannot be shut down by any one caller
+			try {
+				AsyncScanner.getDefault().shutdown();
+				fail("The default scanner was shut down");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertNotNull(as.scanAsync(input, policy, AntiSamy.SAX, null).get(10000));
+
+		} catch (Exception e) {
+			fail("Caught exception in testScanAsync(): " + e.getMessage());
+		}
+	}
+
+	public void testInlineStyleCache() {
+		try {
+			String input = "<p style=\"color: red; behavior: url(evil.htc)\">styled</p>";
+
+			InlineStyleCache cache = policy.getInlineStyleCache();
+			assertNotNull(cache);
+
+			int[] scanTypes = { AntiSamy.DOM, AntiSamy.SAX };
+
+			for (int t = 0; t < scanTypes.length; t++) {
+				cache.clear();
+
+				CleanResults first = as.scan(input, policy, scanTypes[t]);
+				assertEquals(0, cache.getHits());
+				assertEquals(1, cache.getMisses());
+
+				CleanResults second = as.scan(input, policy, scanTypes[t]);
+				assertEquals(1, cache.getHits());
+				assertEquals(first.getCleanHTML(), second.getCleanHTML());
+				assertEquals(first.getErrorMessages(), second.getErrorMessages());
+			}
+
+			// changing the policy makes earlier entries unreachable
+			cache.clear();
+			as.scan(input, policy, AntiSamy.DOM);
+			policy.setDirective(Policy.PRESERVE_COMMENTS, policy.getDirective(Policy.PRESERVE_COMMENTS));
+			as.scan(input, policy, AntiSamy.DOM);
+			assertEquals(0, cache.getHits());
+
+			// the cache is bounded
+			policy.setDirective(Policy.INLINE_STYLE_CACHE_SIZE, "2");
+			cache = policy.getInlineStyleCache();
+			assertEquals(2, cache.getMaxSize());
+			for (int i = 0; i < 5; i++) {
+				as.scan("<p style=\"margin: " + i + "px\">x</p>", policy, AntiSamy.SAX);
+			}
+			assertEquals(2, cache.size());
+
+			policy.setDirective(Policy.INLINE_STYLE_CACHE_SIZE, "0");
+			assertNull(policy.getInlineStyleCache());
+			assertTrue(as.scan(input, policy, AntiSamy.DOM).getCleanHTML().indexOf("color: red") > -1);
+
+		} catch (Exception e) {
+			fail("Caught exception in testInlineStyleCache(): " + e.getMessage());
+		}
+	}
+
+	public void testCssScannerReuse() {
+		try {
+			CssScanner scanner = new CssScanner(policy, null);
+
+			// nothing from one scan may leak into the next
+			CleanResults sheet = scanner.scanStyleSheet("p { color: red; }", policy.getMaxInputSize());
+			CleanResults inline = scanner.scanInlineStyle("margin: 0px", "div", policy.getMaxInputSize());
+			CleanResults again = scanner.scanStyleSheet("p { color: red; }", policy.getMaxInputSize());
+
+			assertTrue(sheet.getCleanHTML().indexOf("color: red") > -1);
+			assertEquals("margin: 0.0px;", inline.getCleanHTML());
+			assertEquals(sheet.getCleanHTML(), again.getCleanHTML());
+
+		} catch (Exception e) {
+			fail("Caught exception in testCssScannerReuse(): " + e.getMessage());
+		}
+	}
+
+	public void testInlineStyleFastPath() {
+		try {
+			/*
+			 * The style attributes of the attacks and other inputs in this
+			 * file are scanned whole with both engines.
+			 */
+			ArrayList attributes = new ArrayList();
+			ArrayList literals = readTestLiterals();
+			Pattern style = Pattern.compile("style\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+			for (int i = 0; i < literals.size(); i++) {
+				Matcher m = style.matcher((String) literals.get(i));
+				while (m.find()) {
+					attributes.add(m.group(1) != null ? m.group(1) : m.group(2));
+				}
+			}
+
+			/*
+			 * Declarations put together from the pieces below, with commas and
+			 * !important in and out of place, only go through the CSS scanner.
+			 */
+			ArrayList declarations = new ArrayList();
+			String[] properties = { "color", "font-family", "margin", "font-size", "width", "text-align", "behavior", "x", "Color" };
+			String[] values = { "red", "Red", "0", "-0", "007", "-1.5", ".5", "10px", "10.5em", "50%", "12pt", "90deg", "#fff", "#abcdef",
+					"'a b'", "\"x\"", "bold", "Arial", "sans-serif", "center" };
+			String[] oddValues = { "-moz-thing", "5.", "+5", "1e3", "12345678901", "10PX", "10vw", "#abcd", "inherit", "url(x)", "rgb(1,2,3)",
+					"expression(alert(1))", "\\72 ed", "a/b", "/**/" };
+			String[] separators = { " ", " ", " ", ", ", ", ", ",", " , ", ",,", ", , " };
+			String[] endings = { "", "", "", ";", ";", " !important", "!important;", ",", " ,", ", !important", " ! important" };
+			String[] commas = {
+					"font-family: , Arial", "font-family: Arial,,serif", "font-family: a,b,c,", "font-family: Arial, !important", "margin: 1px,",
+					"font-family: ,", "font-family: Arial, serif", "font-family: a ,b" };
+			for (int i = 0; i < commas.length; i++) {
+				declarations.add(commas[i]);
+			}
+			Random random = new Random(33);
+			for (int i = 0; i < 3000; i++) {
+				StringBuffer css = new StringBuffer();
+				for (int d = random.nextInt(3); d >= 0; d--) {
+					css.append(properties[random.nextInt(properties.length)]).append(random.nextBoolean() ? ": " : ":");
+					for (int v = random.nextInt(3); v >= 0; v--) {
+						if (random.nextInt(8) == 0) {
+							css.append(oddValues[random.nextInt(oddValues.length)]);
+						} else {
+							css.append(values[random.nextInt(values.length)]);
+						}
+						if (v > 0) {
+							css.append(separators[random.nextInt(separators.length)]);
+						}
+					}
+					css.append(endings[random.nextInt(endings.length)]);
+					if (d > 0) {
+						css.append("; ");
+					}
+				}
+				declarations.add(css.toString());
+			}
+			declarations.addAll(attributes);
+
+			String isFastPath = policy.getDirective(Policy.INLINE_STYLE_FAST_PATH);
+			String inlineStyleCacheSize = policy.getDirective(Policy.INLINE_STYLE_CACHE_SIZE);
+			policy.setDirective(Policy.INLINE_STYLE_CACHE_SIZE, "0");
+
+			CssScanner scanner = new CssScanner(policy, ResourceBundle.getBundle("AntiSamy", Locale.getDefault()));
+			int tokenized = 0;
+
+			for (int i = 0; i < declarations.size(); i++) {
+				String css = (String) declarations.get(i);
+				if (CssDeclarationTokenizer.tokenize(css, new ArrayList()) != null) {
+					tokenized++;
+				}
+
+				policy.setDirective(Policy.INLINE_STYLE_FAST_PATH, "false");
+				CleanResults batik = scanner.scanInlineStyle(css, "div", policy.getMaxInputSize());
+
+				policy.setDirective(Policy.INLINE_STYLE_FAST_PATH, "true");
+				CleanResults fast = scanner.scanInlineStyle(css, "div", policy.getMaxInputSize());
+				assertEquals(css, batik.getCleanHTML(), fast.getCleanHTML());
+				assertEquals(css, batik.getErrorMessages(), fast.getErrorMessages());
+			}
+
+			// the comparison means nothing if the tokenizer gave up on everything
+			assertTrue(tokenized > declarations.size() / 10);
+
+			for (int i = 0; i < attributes.size(); i++) {
+				String html = "<div style=\"" + attributes.get(i) + "\">x</div>";
+
+				policy.setDirective(Policy.INLINE_STYLE_FAST_PATH, "false");
+				String domBatik = as.scan(html, policy, AntiSamy.DOM).getCleanHTML();
+				String saxBatik = as.scan(html, policy, AntiSamy.SAX).getCleanHTML();
+
+				policy.setDirective(Policy.INLINE_STYLE_FAST_PATH, "true");
+				assertEquals(domBatik, as.scan(html, policy, AntiSamy.DOM).getCleanHTML());
+				assertEquals(saxBatik, as.scan(html, policy, AntiSamy.SAX).getCleanHTML());
+			}
+
+			policy.setDirective(Policy.INLINE_STYLE_FAST_PATH, isFastPath);
+			policy.setDirective(Policy.INLINE_STYLE_CACHE_SIZE, inlineStyleCacheSize);
+
+		} catch (Exception e) {
+			fail("Caught exception in testInlineStyleFastPath(): " + e.getMessage());
+		}
+	}
+
+	public void testCssSelectorMemo() {
+		try {
+			String s = "<style>p.intro, div#main > a:hover { color: red } a[href] { color: red } p.intro { margin: 0 }</style>";
+
+			CleanResults first = as.scan(s, policy, AntiSamy.DOM);
+			CleanResults second = as.scan(s, policy, AntiSamy.DOM);
+
+			assertTrue(first.getCleanHTML().indexOf("div#main > a:hover") != -1);
+			assertTrue(first.getCleanHTML().indexOf("href") == -1);
+			assertEquals(1, first.getErrorMessages().size());
+
+			assertEquals(first.getCleanHTML(), second.getCleanHTML());
+			assertEquals(first.getErrorMessages(), second.getErrorMessages());
+
+			assertTrue(policy.getCssSelectorRules().getMemoSize() >= 3);
+			assertTrue(policy.getCssSelectorRules().getMemoSize() <= CssSelectorRules.MAX_MEMO_SIZE);
+
+		} catch (Exception e) {
+			fail("Caught exception in testCssSelectorMemo(): " + e.getMessage());
+		}
+	}
+
+	public void testImportedStyleSheets() throws Exception {
+
+		StubHttpServer server = new StubHttpServer();
+
+		try {
+			policy.setDirective(Policy.EMBED_STYLESHEETS, "true");
+			policy.setDirective("maxStyleSheetImports", "3");
+
+			server.serve("/a.css", "p { color: red }");
+			server.serve("/b.css", "@import url(" + server.url("/c.css") + "); div { margin: 0 }");
+			server.serve("/c.css", "span { color: blue }");
+
+			String s = "<style>@import url(" + server.url("/a.css") + "); @import url(" + server.url("/b.css") + "); h1 { color: red }</style>";
+
+			CleanResults first = as.scan(s, policy, AntiSamy.DOM);
+			String html = first.getCleanHTML();
+			assertTrue(html.indexOf("h1 {") != -1);
+			assertTrue(html.indexOf("p {") != -1);
+			assertTrue(html.indexOf("div {") != -1);
+			assertTrue(html.indexOf("span {") != -1);
+			assertTrue(html.indexOf("p {") < html.indexOf("div {"));
+			assertTrue(html.indexOf("div {") < html.indexOf("span {"));
+			assertEquals(0, first.getNumberOfErrors());
+
+			// served from the cache the second time
+			CleanResults second = as.scan(s, policy, AntiSamy.DOM);
+			assertEquals(html, second.getCleanHTML());
+			assertEquals(first.getErrorMessages(), second.getErrorMessages());
+			assertEquals(1, server.getHits("/a.css"));
+			assertEquals(1, server.getHits("/b.css"));
+			assertEquals(1, server.getHits("/c.css"));
+			assertTrue(policy.getImportedStyleSheetCache().getHits() >= 3);
+
+			// also when its URI is spelled differently
+			String respelled = "<style>@import url(" + server.url("/css/../a.css") + ");</style>";
+			assertTrue(as.scan(respelled, policy, AntiSamy.DOM).getCleanHTML().indexOf("p {") != -1);
+			assertEquals(1, server.getHits("/a.css"));
+
+			// the import limit still applies to cached stylesheets
+			policy.setDirective("maxStyleSheetImports", "1");
+			CleanResults limited = as.scan(s, policy, AntiSamy.DOM);
+			assertTrue(limited.getCleanHTML().indexOf("p {") != -1);
+			assertTrue(limited.getCleanHTML().indexOf("div {") == -1);
+			assertEquals(1, limited.getNumberOfErrors());
+			policy.setDirective("maxStyleSheetImports", "3");
+
+			// failures are remembered too
+			ServerSocket unused = new ServerSocket(0);
+			String dead = "http://127.0.0.1:" + unused.getLocalPort() + "/dead.css";
+			unused.close();
+
+			String t = "<style>@import url(" + dead + "); h1 { color: red }</style>";
+			CleanResults failed = as.scan(t, policy, AntiSamy.DOM);
+			assertEquals(1, failed.getNumberOfErrors());
+			long hits = policy.getImportedStyleSheetCache().getHits();
+			assertEquals(failed.getErrorMessages(), as.scan(t, policy, AntiSamy.DOM).getErrorMessages());
+			assertEquals(hits + 1, policy.getImportedStyleSheetCache().getHits());
+
+			// so are error pages, which are not taken for stylesheets
+			server.serveStatus("/missing.css", "404 Not Found", "p.missing { color: red }");
+			String m = "<style>@import url(" + server.url("/missing.css") + "); h1 { color: red }</style>";
+			CleanResults missing = as.scan(m, policy, AntiSamy.DOM);
+			assertEquals(1, missing.getNumberOfErrors());
+			assertTrue(missing.getCleanHTML().indexOf("p.missing") == -1);
+			assertTrue(missing.getCleanHTML().indexOf("h1 {") != -1);
+			assertEquals(missing.getErrorMessages(), as.scan(m, policy, AntiSamy.SAX).getErrorMessages());
+			assertEquals(1, server.getHits("/missing.css"));
+
+			// stylesheets imported together are fetched together
+			server.serve("/slow1.css", "p { color: red }", 500);
+			server.serve("/slow2.css", "div { color: red }", 500);
+			server.serve("/slow3.css", "span { color: red }", 500);
+
+			String u = "<style>@import url(" + server.url("/slow1.css") + "); @import url(" + server.url("/slow2.css")
+					+ "); @import url(" + server.url("/slow3.css") + ");</style>";
+			long start = System.currentTimeMillis();
+			CleanResults slow = as.scan(u, policy, AntiSamy.SAX);
+			assertTrue(System.currentTimeMillis() - start < 1400);
+			assertTrue(slow.getCleanHTML().indexOf("p {") < slow.getCleanHTML().indexOf("div {"));
+			assertTrue(slow.getCleanHTML().indexOf("div {") < slow.getCleanHTML().indexOf("span {"));
+
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testStyleSheetResolvers() throws Exception {
+
+		policy.setDirective(Policy.EMBED_STYLESHEETS, "true");
+		policy.setDirective("maxStyleSheetImports", "3");
+
+		String s = "<style>@import url(http://cdn.example.com/css/a.css); h1 { color: red }</style>";
+
+		// from memory
+		policy.setDirective(Policy.STYLESHEET_RESOLVER, "memory");
+		InMemoryStyleSheetResolver memory = (InMemoryStyleSheetResolver) policy.getStyleSheetResolver();
+		memory.put("http://cdn.example.com/css/a.css", "p { color: red }");
+
+		CleanResults cr = as.scan(s, policy, AntiSamy.DOM);
+		assertTrue(cr.getCleanHTML().indexOf("p {") != -1);
+		assertEquals(0, cr.getNumberOfErrors());
+
+		// a stylesheet put again is what the next scan embeds
+		memory.put("http://cdn.example.com/css/a.css", "span { color: blue }");
+		cr = as.scan(s, policy, AntiSamy.DOM);
+		assertTrue(cr.getCleanHTML().indexOf("span {") != -1);
+		assertTrue(cr.getCleanHTML().indexOf("p {") == -1);
+
+		cr = as.scan("<style>@import url(http://cdn.example.com/css/b.css); h1 { color: red }</style>", policy, AntiSamy.SAX);
+		assertEquals(1, cr.getNumberOfErrors());
+
+		// from a directory
+		File dir = File.createTempFile("antisamy", "css");
+		dir.delete();
+		dir.mkdir();
+		File css = new File(dir, "a.css");
+
+		try {
+			FileOutputStream out = new FileOutputStream(css);
+			out.write("div { margin: 0 }".getBytes());
+			out.close();
+
+			policy.setDirective(Policy.STYLESHEET_RESOLVER, "mapped");
+			policy.setDirective(Policy.STYLESHEET_MAPPINGS, "http://cdn.example.com/css/=" + dir.getAbsolutePath());
+
+			cr = as.scan(s, policy, AntiSamy.DOM);
+			assertTrue(cr.getCleanHTML().indexOf("div {") != -1);
+			assertEquals(0, cr.getNumberOfErrors());
+
+			// nothing outside the mapped directory
+			cr = as.scan("<style>@import url(http://cdn.example.com/css/../a.css); h1 { color: red }</style>", policy, AntiSamy.DOM);
+			assertEquals(1, cr.getNumberOfErrors());
+
+		} finally {
+			css.delete();
+			dir.delete();
+		}
+
+		// from the classpath
+		MappedStyleSheetResolver classpath = new MappedStyleSheetResolver("http://cdn.example.com/=classpath:/");
+		StyleSheetSource source = classpath.open(new URI("http://cdn.example.com/antisamy.xml"), 1000);
+		try {
+			assertTrue(source.getInputStream().read() != -1);
+		} finally {
+			source.close();
+		}
+
+		try {
+			classpath.open(new URI("http://elsewhere.example.com/antisamy.xml"), 1000);
+			fail("Expected no stylesheet outside the mappings");
+		} catch (IOException e) {
+		}
+
+		policy.setDirective(Policy.STYLESHEET_RESOLVER, "no.such.Resolver");
+		try {
+			policy.getStyleSheetResolver();
+			fail("Expected an unknown resolver to be rejected");
+		} catch (IllegalStateException e) {
+		}
+
+		policy.setDirective(Policy.STYLESHEET_RESOLVER, "http");
+		assertTrue(policy.getStyleSheetResolver() instanceof HttpStyleSheetResolver);
+	}
+
+	public void testStyleSheetImportsPerScan() throws Exception {
+
+		policy.setDirective(Policy.EMBED_STYLESHEETS, "true");
+		policy.setDirective("maxStyleSheetImports", "2");
+		policy.setDirective(Policy.STYLESHEET_RESOLVER, "http");
+		policy.setDirective(Policy.STYLESHEET_CACHE_TTL, "0");
+		policy.setDirective(Policy.STYLESHEET_FAILURE_CACHE_TTL, "0");
+
+		StubHttpServer server = new StubHttpServer();
+
+		try {
+			server.serve("/a.css", "p { color: red }");
+			server.serve("/b.css", "div { color: red }");
+			server.serve("/c.css", "span { color: red }");
+
+			String a = "<style>@import url(" + server.url("/a.css") + ");</style>";
+			String b = "<style>@import url(" + server.url("/b.css") + ");</style>";
+			String c = "<style>@import url(" + server.url("/c.css") + ");</style>";
+
+			for (int mode = 0; mode < 2; mode++) {
+				int scanType = mode == 0 ? AntiSamy.DOM : AntiSamy.SAX;
+				int hits = server.getHits("/a.css");
+
+				// the same stylesheet in several style elements is fetched
+				// and embedded once
+				CleanResults cr = as.scan(a + a + b, policy, scanType);
+				assertEquals(hits + 1, server.getHits("/a.css"));
+				assertEquals(cr.getCleanHTML().indexOf("p {"), cr.getCleanHTML().lastIndexOf("p {"));
+				assertTrue(cr.getCleanHTML().indexOf("div {") != -1);
+				assertEquals(0, cr.getNumberOfErrors());
+
+				StyleSheetImports imports = cr.getStyleSheetImports();
+				assertEquals(2, imports.getImportCount());
+				assertEquals(1, imports.getDuplicateCount());
+				assertEquals(2, imports.getFetchCount());
+				assertEquals("p { color: red }div { color: red }".length(), imports.getBytesRead());
+				assertEquals(imports.getBytesRead(), imports.getImportedSize());
+
+				// the import limit is for the whole document
+				cr = as.scan(a + b + c, policy, scanType);
+				assertEquals(1, cr.getNumberOfErrors());
+				assertTrue(cr.getCleanHTML().indexOf("span {") == -1);
+				assertEquals(3, cr.getStyleSheetImports().getImportCount());
+				assertEquals(1, cr.getStyleSheetImports().getRejectionCount());
+			}
+
+			// a stylesheet importing itself is embedded once
+			server.serve("/self.css", "@import url(" + server.url("/self.css") + "); p { color: red }");
+			CleanResults cr = as.scan("<style>@import url(" + server.url("/self.css") + ");</style>", policy, AntiSamy.DOM);
+			assertEquals(0, cr.getNumberOfErrors());
+			assertEquals(1, server.getHits("/self.css"));
+
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testStreamedStyleSheetImports() throws Exception {
+
+		policy.setDirective(Policy.EMBED_STYLESHEETS, "true");
+		policy.setDirective("maxStyleSheetImports", "3");
+		policy.setDirective(Policy.STYLESHEET_RESOLVER, "http");
+
+		StubHttpServer server = new StubHttpServer();
+
+		try {
+			// read in the charset of the response
+			server.serve("/utf16.css", "p { color: red }".getBytes("UTF-16"), "text/css; charset=UTF-16", 0);
+
+			CleanResults cr = as.scan("<style>@import url(" + server.url("/utf16.css") + ");</style>", policy, AntiSamy.DOM);
+			assertTrue(cr.getCleanHTML().indexOf("p {") != -1);
+			assertEquals(0, cr.getNumberOfErrors());
+
+			// too large without saying so up front, and nothing of it is kept
+			StringBuffer big = new StringBuffer();
+			while (big.length() <= policy.getMaxInputSize()) {
+				big.append("p { color: red }\n");
+			}
+			server.drip("/big.css", big.toString(), 4096, 0);
+
+			cr = as.scan("<style>@import url(" + server.url("/big.css") + "); h1 { color: red }</style>", policy, AntiSamy.SAX);
+			assertEquals(1, cr.getNumberOfErrors());
+			assertTrue(cr.getCleanHTML().indexOf("p {") == -1);
+			assertTrue(cr.getCleanHTML().indexOf("h1 {") != -1);
+
+			// given up on once the time for imports runs out
+			StringBuffer slow = new StringBuffer();
+			for (int i = 0; i < 50; i++) {
+				slow.append("div { color: red }\n");
+			}
+			server.drip("/slow.css", slow.toString(), 20, 50);
+			policy.setDirective(Policy.MAX_STYLESHEET_IMPORT_TIME, "300");
+
+			long start = System.currentTimeMillis();
+			cr = as.scan("<style>@import url(" + server.url("/slow.css") + "); h1 { color: red }</style>", policy, AntiSamy.DOM);
+			assertTrue(System.currentTimeMillis() - start < 1500);
+			assertEquals(1, cr.getNumberOfErrors());
+			assertTrue(cr.getCleanHTML().indexOf("div {") == -1);
+			assertTrue(cr.getCleanHTML().indexOf("h1 {") != -1);
+
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testEntityNames() {
+		for (int ch = 0; ch < 0x10000; ch++) {
+			assertEquals(HTMLdtd.fromChar(ch), HTMLEntityEncoder.getEntityName(ch));
+			assertEquals(HTMLdtd.fromChar(ch) != null, HTMLEntityEncoder.hasEntityName(ch));
+		}
+		assertNull(HTMLEntityEncoder.getEntityName(0x1D11E));
+		assertNull(HTMLEntityEncoder.getEntityName(-1));
+	}
+
+	/*
+	 * Scans documents made of the Chinese and Russian error messages bundled
+	 * with AntiSamy with and without entityEncodeIntlChars, and prints the
+	 * average scan times. This is a benchmark, only run with
+	 * -Dantisamy.benchmarks=true.
+	 */
+	public void testCompareIntlEncodingSpeeds() throws IOException, ScanException, PolicyException {
+
+		if (!Boolean.getBoolean("antisamy.benchmarks")) {
+			return;
+		}
+
+		String[] locales = { "zh_CN", "ru_RU" };
+		String isEncodeIntl = policy.getDirective(Policy.ENTITY_ENCODE_INTL_CHARS);
+
+		int testReps = 15;
+
+		for (int i = 0; i < locales.length; i++) {
+			InputStreamReader in = new InputStreamReader(getClass().getResourceAsStream("/AntiSamy_" + locales[i] + ".properties"), "UTF-8");
+			StringBuffer messages = new StringBuffer();
+			char[] buffer = new char[5000];
+			int read = 0;
+			while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+				messages.append(buffer, 0, read);
+			}
+			in.close();
+
+			StringBuffer document = new StringBuffer();
+			String[] lines = messages.toString().split("\n");
+			while (document.length() < 40000) {
+				for (int j = 0; j < lines.length; j++) {
+					int equals = lines[j].indexOf('=');
+					if (equals != -1) {
+						document.append("<p>").append(lines[j].substring(equals + 1).trim()).append("</p>\n");
+					}
+				}
+			}
+			String html = document.toString();
+
+			String[] settings = { "false", "true" };
+
+			for (int k = 0; k < settings.length; k++) {
+				policy.setDirective(Policy.ENTITY_ENCODE_INTL_CHARS, settings[k]);
+
+				double domTime = 0;
+				double saxTime = 0;
+				String clean = null;
+
+				for (int j = 0; j < testReps; j++) {
+					CleanResults results = as.scan(html, policy, AntiSamy.DOM);
+					domTime += results.getScanTime();
+					saxTime += as.scan(html, policy, AntiSamy.SAX).getScanTime();
+					clean = results.getCleanHTML();
+				}
+
+				if ("true".equals(settings[k])) {
+					for (int j = 0; j < clean.length(); j++) {
+						char ch = clean.charAt(j);
+						assertFalse(ch >= 128 && HTMLEntityEncoder.hasEntityName(ch));
+					}
+				}
+
+				System.out.println(locales[i] + " size: " + html.length() + " entityEncodeIntlChars: " + settings[k]);
+				System.out.println("   DOM time: " + domTime / testReps);
+				System.out.println("   SAX time: " + saxTime / testReps);
+			}
+		}
+
+		policy.setDirective(Policy.ENTITY_ENCODE_INTL_CHARS, isEncodeIntl);
+	}
+
+	/*
+	 * Reads this file, whose string literals make up a corpus of test
+	 * inputs. It is looked for relative to the working directory
+	 * and then above the directory the test classes were loaded from, so
+	 * that it is found wherever the tests are run from.
+	 */
+	private static String readTestSource() throws IOException {
+		String path = "src/test/java/org/owasp/validator/html/test/AntiSamyTest.java";
+		File source = new File(path);
+
+		URL classes = AntiSamyTest.class.getProtectionDomain().getCodeSource().getLocation();
+		for (File dir = new File(URI.create(classes.toString())); !source.exists() && dir != null; dir = dir.getParentFile()) {
+			source = new File(dir, path);
+		}
+
+		if (!source.exists()) {
+			throw new FileNotFoundException(path);
+		}
+
+		StringBuffer text = new StringBuffer();
+		InputStreamReader reader = new InputStreamReader(new FileInputStream(source), "UTF-8");
+		char[] buffer = new char[8192];
+		int read;
+		while ((read = reader.read(buffer)) != -1) {
+			text.append(buffer, 0, read);
+		}
+		reader.close();
+		return text.toString();
+	}
+
+	/*
+	 * Returns every string literal in this file.
+	 */
+	private static ArrayList readTestLiterals() throws IOException {
+		ArrayList literals = new ArrayList();
+		Matcher m = Pattern.compile("\"((?:[^\"\\\\\\n]|\\\\.)*)\"").matcher(readTestSource());
+		while (m.find()) {
+			literals.add(unescape(m.group(1)));
+		}
+		return literals;
+	}
+
+	/*
+	 * Turns the body of a Java string literal back into the string.
+	 */
+	private static String unescape(String literal) {
+		StringBuffer sb = new StringBuffer(literal.length());
+		for (int i = 0; i < literal.length(); i++) {
+			char c = literal.charAt(i);
+			if (c != '\\' || i + 1 == literal.length()) {
+				sb.append(c);
+				continue;
+			}
+			c = literal.charAt(++i);
+			switch (c) {
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				sb.append((char) Integer.parseInt(literal.substring(i + 1, i + 5), 16));
+				i += 4;
+				break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
 	public void testCompareSpeeds() throws IOException, ScanException, PolicyException {
 
 		String urls[] = {
@@ -4,6 +4,7 @@ package org.owasp.validator.html.test;
 import junit.framework.TestCase;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.model.Property;
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,10 +33,21 @@ public class PolicyTest extends TestCase {
     private static final String FOOTER = "</anti-samy-rules>";
 
     private String assembleFile(String allowedEmptyTagsSection) {
-        return HEADER + DIRECTIVES + COMMON_REGEXPS + COMMON_ATTRIBUTES + GLOBAL_TAG_ATTRIBUTES + TAG_RULES + CSS_RULES +
+        return assembleFile(allowedEmptyTagsSection, CSS_RULES);
+    }
+
+    private String assembleFile(String allowedEmptyTagsSection, String cssRules) {
+        return HEADER + DIRECTIVES + COMMON_REGEXPS + COMMON_ATTRIBUTES + GLOBAL_TAG_ATTRIBUTES + TAG_RULES + cssRules +
                allowedEmptyTagsSection + FOOTER;
     }
 
+    private String cssProperty(String name, String literal, String shorthand) {
+        return "<property name=\"" + name + "\">\n" +
+               "    <literal-list><literal value=\"" + literal + "\"/></literal-list>\n" +
+               (shorthand == null ? "" : "    <shorthand-list><shorthand name=\"" + shorthand + "\"/></shorthand-list>\n") +
+               "</property>\n";
+    }
+
     public void testGetAllowedEmptyTags() throws PolicyException {
         String allowedEmptyTagsSection = "<allowed-empty-tags>\n" +
                                          "    <literal-list>\n" +
@@ -58,6 +70,9 @@ public class PolicyTest extends TestCase {
             assertEquals(expectedTags.get(i), actualTags[i]);
 
         }
+
+        assertTrue(policy.isAllowedEmptyTag("span"));
+        assertFalse(policy.isAllowedEmptyTag("div"));
     }
 
     public void testGetAllowedEmptyTags_emptyList() throws PolicyException {
@@ -92,4 +107,51 @@ public class PolicyTest extends TestCase {
         assertTrue(policy.getAllowedEmptyTags().length == Constants.defaultAllowedEmptyTags.size());
 
     }
+
+    public void testShorthandsResolved() throws PolicyException {
+        String cssRules = "<css-rules>\n" +
+                          cssProperty("border", "thin", "border-style") +
+                          cssProperty("border-style", "dotted", "Border-Color") +
+                          cssProperty("border-color", "red", "undefined-property") +
+                          "</css-rules>\n";
+
+        policy = Policy.getInstance(new ByteArrayInputStream(assembleFile("", cssRules).getBytes()));
+
+        Property border = policy.getPropertyByName("border");
+        assertEquals(1, border.getShorthands().length);
+        assertSame(policy.getPropertyByName("border-style"), border.getShorthands()[0]);
+        assertEquals(0, policy.getPropertyByName("border-color").getShorthands().length);
+
+        assertTrue(border.isAllowedValue("thin"));
+        assertTrue(border.isAllowedValue("dotted"));
+        assertTrue(border.isAllowedValue("red"));
+        assertFalse(border.isAllowedValue("blue"));
+        assertTrue(border.isAllowedValue(new StringBuffer("dotted")));
+        assertFalse(border.isAllowedValue(new StringBuffer("dotted ")));
+        assertFalse(policy.getPropertyByName("border-color").isAllowedValue("thin"));
+    }
+
+    public void testShorthandCycle() {
+        String cssRules = "<css-rules>\n" +
+                          cssProperty("a", "x", "b") +
+                          cssProperty("b", "y", "c") +
+                          cssProperty("c", "z", "a") +
+                          "</css-rules>\n";
+
+        try {
+            Policy.getInstance(new ByteArrayInputStream(assembleFile("", cssRules).getBytes()));
+            fail("Expected a PolicyException for the cyclic shorthand references");
+        } catch (PolicyException e) {
+            assertTrue(e.getMessage().indexOf("a -> b -> c -> a") != -1
+                       || e.getMessage().indexOf("b -> c -> a -> b") != -1
+                       || e.getMessage().indexOf("c -> a -> b -> c") != -1);
+        }
+
+        try {
+            Policy.getInstance(new ByteArrayInputStream(assembleFile("", "<css-rules>\n" + cssProperty("a", "x", "a") + "</css-rules>\n").getBytes()));
+            fail("Expected a PolicyException for the property referring to itself");
+        } catch (PolicyException e) {
+            assertTrue(e.getMessage().indexOf("a -> a") != -1);
+        }
+    }
 }
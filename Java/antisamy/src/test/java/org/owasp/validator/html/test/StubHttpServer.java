@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2007-2011, Arshan Dabirsiaghi, Jason Li
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of OWASP nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.owasp.validator.html.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server on the loopback interface, so stylesheet imports
+ * can be tested without going out to the network. Every path is served
+ * with a fixed body, optionally after a delay, and requests are counted
+ * per path. A body can also be dripped out a few bytes at a time, without
+ * a <code>Content-Length</code>, or served with an error status.
+ */
+public class StubHttpServer {
+
+	private final ServerSocket serverSocket;
+	private final Map bodies = new HashMap();
+	private final Map contentTypes = new HashMap();
+	private final Map delays = new HashMap();
+	private final Map drips = new HashMap();
+	private final Map statuses = new HashMap();
+	private final Map hits = new HashMap();
+
+	public StubHttpServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						Thread handler = new Thread(new Runnable() {
+							public void run() {
+								handle(socket);
+							}
+						});
+						handler.setDaemon(true);
+						handler.start();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			}
+		}, "stub http server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public String url(String path) {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+	}
+
+	public synchronized void serve(String path, String body) {
+		serve(path, body, 0);
+	}
+
+	public synchronized void serve(String path, String body, long delay) {
+		serve(path, body.getBytes(), "text/css", delay);
+	}
+
+	public synchronized void serve(String path, byte[] body, String contentType, long delay) {
+		bodies.put(path, body);
+		contentTypes.put(path, contentType);
+		delays.put(path, new Long(delay));
+		drips.remove(path);
+		statuses.remove(path);
+	}
+
+	/**
+	 * Serves the body with the given status line, such as
+	 * <code>"404 Not Found"</code>.
+	 */
+	public synchronized void serveStatus(String path, String status, String body) {
+		serve(path, body, 0);
+		statuses.put(path, status);
+	}
+
+	/**
+	 * Serves the body <code>chunkSize</code> bytes at a time, waiting
+	 * <code>interval</code> milliseconds between chunks.
+	 */
+	public synchronized void drip(String path, String body, int chunkSize, long interval) {
+		serve(path, body, 0);
+		drips.put(path, new long[] { chunkSize, interval });
+	}
+
+	public synchronized int getHits(String path) {
+		Integer count = (Integer) hits.get(path);
+		return count == null ? 0 : count.intValue();
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void handle(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			String requestLine = in.readLine();
+			String line;
+			while ((line = in.readLine()) != null && line.length() > 0) {
+				// skip the headers
+			}
+
+			String path = requestLine == null ? "" : requestLine.split(" ")[1];
+			byte[] body;
+			String contentType;
+			long delay;
+			long[] drip;
+			String status;
+
+			synchronized (this) {
+				hits.put(path, new Integer(getHits(path) + 1));
+				body = (byte[]) bodies.get(path);
+				contentType = (String) contentTypes.get(path);
+				Long d = (Long) delays.get(path);
+				delay = d == null ? 0 : d.longValue();
+				drip = (long[]) drips.get(path);
+				status = (String) statuses.get(path);
+			}
+
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+
+			if (status == null) {
+				status = body == null ? "404 Not Found" : "200 OK";
+			}
+			if (body == null) {
+				body = new byte[0];
+				contentType = "text/plain";
+			}
+
+			OutputStream out = socket.getOutputStream();
+
+			if (drip != null) {
+				out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + contentType
+						+ "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+				for (int i = 0; i < body.length; i += drip[0]) {
+					out.write(body, i, (int) Math.min(drip[0], body.length - i));
+					out.flush();
+					Thread.sleep(drip[1]);
+				}
+				return;
+			}
+
+			out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + body.length
+					+ "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+			out.write(body);
+			out.flush();
+
+		} catch (Exception e) {
+			// the client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}